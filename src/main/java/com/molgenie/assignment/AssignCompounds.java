@@ -16,12 +16,11 @@
 */
 package com.molgenie.assignment;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -29,6 +28,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.molgenie.assignment.OntologyLoader.OntologyData;
 import com.molgenie.smiles2concepts.models.common.Molecule2ringsystem;
@@ -49,6 +49,8 @@ public class AssignCompounds {
 	
 	private final static Logger LOG = Logger.getLogger( AssignCompounds.class.getName() );
 	private static final OntologyData oData = new OntologyData();
+	/* classes never written to the result */
+	private static final String[] EXCLUDED_CLASSES = { "MGN100001928", "MGN100003353" };
 	
 	public class comments{
 		// allowed in Ambit query
@@ -64,6 +66,13 @@ public class AssignCompounds {
 	    private String  module = "ambit";
 	    private String  ontologyFilename = "./src/main/resources/mol_classes_2025-07-18.obo";
 	    //private String  ontologyFilename = "/Users/lweber/Desktop/assignment/mol_classes_2025-07-18.obo";
+	    private String  statisticsFilename = null;
+	    private String  cacheFilename = null;
+	    private String  snapshotFilename = null;
+	    private boolean persistentCache = false;
+	    private boolean writeSnapshot = false;
+	    private SmartsQueryTable queryTable = null;
+	    private StringPool stringPool = null;
 	    private String  smiles = null;
 	    private String  compId = null;
 	    private String  timeOut = null;
@@ -76,6 +85,69 @@ public class AssignCompounds {
 	    	return this;
 	    }
 	    
+	    /*
+	     * smarts evaluation statistics, saved next to the ontology by default
+	     */
+	    public String getStatisticsFilename() { 
+	    	return statisticsFilename != null ? statisticsFilename : ontologyFilename + ".stats"; 
+	    }
+	    public AssignmentParameters setStatisticsFilename( String _fileName ) {
+	    	statisticsFilename = _fileName;
+	    	return this;
+	    }
+	    
+	    /*
+	     * binary ontology snapshot written by compile-ontology, next to the ontology by default
+	     */
+	    public String getSnapshotFilename() { 
+	    	return snapshotFilename != null ? snapshotFilename : ontologyFilename + ".snapshot"; 
+	    }
+	    public AssignmentParameters setSnapshotFilename( String _fileName ) {
+	    	snapshotFilename = _fileName;
+	    	return this;
+	    }
+	    
+	    /*
+	     * persistent assignment cache, kept next to the ontology by default
+	     */
+	    public boolean getPersistentCache() { return persistentCache; }
+	    public AssignmentParameters setPersistentCache( boolean _persistentCache ) {
+	    	persistentCache = _persistentCache;
+	    	return this;
+	    }
+	    /*
+	     * write the snapshot when the ontology had to be read from the obo file, for the next start or reload
+	     */
+	    public boolean getWriteSnapshot() { return writeSnapshot; }
+	    public AssignmentParameters setWriteSnapshot( boolean _writeSnapshot ) {
+	    	writeSnapshot = _writeSnapshot;
+	    	return this;
+	    }
+	    
+	    /*
+	     * query table and string pool shared by all ontologies loaded in one process, a new table if not set
+	     */
+	    @JsonIgnore
+	    public SmartsQueryTable getQueryTable() { return queryTable; }
+	    public AssignmentParameters setQueryTable( SmartsQueryTable _queryTable ) {
+	    	queryTable = _queryTable;
+	    	return this;
+	    }
+	    @JsonIgnore
+	    public StringPool getStringPool() { return stringPool; }
+	    public AssignmentParameters setStringPool( StringPool _stringPool ) {
+	    	stringPool = _stringPool;
+	    	return this;
+	    }
+	    
+	    public String getCacheFilename() { 
+	    	return cacheFilename != null ? cacheFilename : ontologyFilename + ".cache"; 
+	    }
+	    public AssignmentParameters setCacheFilename( String _fileName ) {
+	    	cacheFilename = _fileName;
+	    	return this;
+	    }
+	    
 	    public Level getLogLevel() { return logLevel; }
 	    public AssignmentParameters setLogLevel( Level _logLevel ) {
 	    	logLevel = _logLevel;
@@ -133,6 +205,20 @@ public class AssignCompounds {
 	}
   
 	public static OntologyData loadOntology( AssignmentParameters _parameters ) throws IOException {
+		return loadOntology( _parameters, true );
+	}
+	
+	/*
+	 * read the obo file and write the binary snapshot used by the next start
+	 */
+	public static OntologyData compileOntology( AssignmentParameters _parameters ) throws IOException {
+		OntologyData ontData = loadOntology( _parameters, false );
+		OntologySnapshot.write( ontData, _parameters.getSnapshotFilename() );
+		LOG.info( "snapshot written: " + _parameters.getSnapshotFilename() );
+		return ontData;
+	}
+	
+	private static OntologyData loadOntology( AssignmentParameters _parameters, boolean _useSnapshot ) throws IOException {
 		
 		_parameters.checkParameters();
 		LOG.setLevel(_parameters.getLogLevel());
@@ -143,12 +229,98 @@ public class AssignCompounds {
 		boolean aromatic = true;
 		boolean verbose = false;
 		
+	    //step 0: precompiled snapshot of this ontology file
+	    final byte[] checksum = OntologyLoader.checksum( _parameters.getOntologyFilename() );
+	    OntologyData ontData = null;
+	    if ( _useSnapshot ) {
+	    	try {
+	    		ontData = OntologySnapshot.read( _parameters.getSnapshotFilename(), checksum );
+	    	} catch ( IOException | RuntimeException e ) {
+	    		LOG.warning( "snapshot not read: " + _parameters.getSnapshotFilename() + " " + e );
+	    	}
+	    }
+	    final boolean fromSnapshot = ontData != null;
+	    if ( fromSnapshot ) {
+	    	LOG.info( "loaded snapshot: " + _parameters.getSnapshotFilename() + " version: " + ontData.getVersion() );
+	    } else {
+	    	ontData = readOntology( _parameters, aromatic );
+	    	ontData.setChecksum( checksum );
+	    }
+		
+	    if ( _parameters.getStringPool() != null ) {
+	    	ontData.internStrings( _parameters.getStringPool() );
+	    	LOG.info( "pooled strings: " + _parameters.getStringPool().size() );
+	    }
+	    if ( _parameters.getQueryTable() != null ) ontData.setSmartsQueries( _parameters.getQueryTable() );
+	    
+	    LOG.info("compile smarts queries ...");
+	    ontData.compileSmartsPlans( _parameters.getModule() );
+	    LOG.info( "smarts queries: " + ontData.getSmartsQueries().size() 
+	    		+ " pre-screened: " + ontData.getSmartsQueries().screenedSize() );
+	    
+	    LOG.info("order smarts by evaluation statistics ...");
+	    try {
+	    	int count = SmartsStatistics.load( _parameters.getStatisticsFilename(), ontData );
+	    	ontData.orderSmartsPlans();
+	    	LOG.info( "smarts statistics: " + count );
+	    } catch ( IOException e ) {
+	    	LOG.warning( "smarts statistics not loaded: " + _parameters.getStatisticsFilename() + " " + e );
+	    }
+	    
+	    if ( ontData.getGraph() == null ) {
+	    	LOG.info("build ontology graph and reachability index ...");
+	    	ontData.buildGraph();
+	    	final String inconsistent = ontData.getGraph().verify();
+	    	if ( inconsistent != null ) {
+	    		throw new IOException( "reachability index inconsistent at class " + inconsistent + ", cycle in the ontology?" );
+	    	}
+	    } else {
+	    	ontData.getGraph().setSmartsPlans( ontData.getIdSmartsPlanMap() );
+	    }
+	    if ( _useSnapshot && !fromSnapshot && _parameters.getWriteSnapshot() ) {
+	    	try {
+	    		OntologySnapshot.write( ontData, _parameters.getSnapshotFilename() );
+	    		LOG.info( "snapshot written: " + _parameters.getSnapshotFilename() );
+	    	} catch ( IOException e ) {
+	    		LOG.warning( "snapshot not written: " + _parameters.getSnapshotFilename() + " " + e );
+	    	}
+	    }
+	    final OntologyGraph graph = ontData.getGraph();
+	    LOG.info( "classes: " + graph.size() + " idcode leaf classes: " + graph.idcodeLeafCount() 
+	    		+ " idcodes: " + graph.idcodeCount() );
+	    LOG.info( "reachability intervals, ancestors: " + graph.getAncestors().intervalCount() 
+	    		+ " offsprings: " + graph.getOffsprings().intervalCount() );
+	    
+	    if ( _parameters.getPersistentCache() ) {
+	    	LOG.info("open persistent assignment cache ...");
+	    	try {
+	    		ontData.setAssignmentCache( AssignmentCache.open( _parameters.getCacheFilename(), ontData.getChecksum(), _parameters.getModule() ) );
+	    	} catch ( IOException e ) {
+	    		LOG.warning( "assignment cache not opened: " + _parameters.getCacheFilename() + " " + e );
+	    	}
+	    }
+	    LOG.info( "ontology loaded (ms): " + TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startTime ) );
+	   
+	    return ontData;
+	}
+	
+	/*
+	 * read the obo file, find the root and complete the child map
+	 */
+	private static OntologyData readOntology( AssignmentParameters _parameters, boolean _aromatic ) throws IOException {
+		
 		//step 1: read chemistry ontology
-	    OntologyData ontData = OntologyLoader.readObo( _parameters.getOntologyFilename(), _parameters.getModule(), aromatic );
+	    OntologyData ontData = OntologyLoader.readObo( _parameters.getOntologyFilename(), _parameters.getModule(), _aromatic );
 	    final Map<String,Set<String>>  idClass2childMap   		= ontData.getIdChildMap();
 	    final Map<String,Set<String>>  idClass2parentMap  		= ontData.getIdParentMap();
-	    final Map<String,String>       idClass2nameMap  		= ontData.getIdNameMap();
 	   
+	    //ontology version from the obo header, else the file and its modification time
+	    if ( ontData.getVersion() == null ) {
+	    	File oboFile = new File( _parameters.getOntologyFilename() );
+	    	ontData.setVersion( oboFile.getName() + "@" + oboFile.lastModified() );
+	    }
+	    LOG.info( "version: " + ontData.getVersion() );
+	    
 	    LOG.info("find root class ...");
 	   	String rootId = null;
 	    int countRoots = 0;
@@ -168,132 +340,149 @@ public class AssignCompounds {
 	    
 		if ( idClass2childMap.get(rootId).isEmpty() ) {
 			LOG.info("generating idClass2childMap ...");
-			final List<String> idList1 = new ArrayList<>();
-	   		idClass2parentMap.forEach( ( key, value )->{ idList1.addAll( value ); } );
-			for ( String id : idList1 ) {
-				List<String> list1 = new ArrayList<>();
-				Iterator<String> itre = idClass2parentMap.keySet().iterator();
-				while ( itre.hasNext() ) {
-					String key = itre.next();
-					Set<String> parents = idClass2parentMap.get(key);
-					if( parents.contains( id ) ) list1.add( key );
-				}
-				HashSet<String> hsList1 = new HashSet<String>( list1 );
-				idClass2childMap.put( id, hsList1 );
+			//one pass over the parent links, classes without children keep their child set
+			final Map<String,Set<String>> inverted = new HashMap<>();
+			idClass2parentMap.forEach( ( id, parents ) -> {
+				for ( String parent : parents ) inverted.computeIfAbsent( parent, p -> new HashSet<>() ).add( id );
+			} );
+			idClass2childMap.putAll( inverted );
+		}
+		
+		return ontData;
+	}
+	
+	/*
+	 * save the smarts evaluation statistics collected since loading, used to order the smarts at the next start
+	 */
+	public static void saveStatistics( AssignmentParameters _parameters, OntologyData _oData ) {
+		try {
+			SmartsStatistics.save( _parameters.getStatisticsFilename(), _oData );
+			LOG.info( "saved smarts statistics: " + _parameters.getStatisticsFilename() );
+		} catch ( IOException e ) {
+			LOG.warning( "smarts statistics not saved: " + _parameters.getStatisticsFilename() + " " + e );
+		}
+	}
+	
+	/*
+	 * save the statistics and close the persistent assignment cache, at the end of a batch or at shutdown
+	 */
+	public static void closeOntology( AssignmentParameters _parameters, OntologyData _oData ) {
+		saveStatistics( _parameters, _oData );
+		final AssignmentCache cache = _oData.getAssignmentCache();
+		if ( cache == null ) return;
+		try {
+			cache.close();
+			LOG.info( "closed assignment cache: " + cache.getPath() );
+		} catch ( IOException e ) {
+			LOG.warning( "assignment cache not closed: " + cache.getPath() + " " + e );
+		}
+	}
+	
+	/*
+	 * assignment of a compound with a canonical idcode as id, answered from the persistent cache if present
+	 */
+	public static HashMap<String,String> runCachedAssignment( AssignmentParameters _parameters, OntologyData oData ) throws Exception {
+		return runCachedAssignment( _parameters, oData, PreparedMolecule.prepare( _parameters.getSmiles(), true ) );
+	}
+	
+	/*
+	 * the prepared molecule can be shared by the assignments of one compound to several ontology versions
+	 */
+	public static HashMap<String,String> runCachedAssignment( AssignmentParameters _parameters, OntologyData oData, 
+			PreparedMolecule _mol ) throws Exception {
+		
+		final AssignmentCache cache = oData.getAssignmentCache();
+		final String idcode = _parameters.getId();
+		if ( cache == null || idcode == null ) return runAssignment( _parameters, oData, _mol );
+		
+		final OntologyGraph graph = oData.getGraph();
+		int[] classes = null;
+		try {
+			classes = cache.get( idcode, _parameters.getWriteLeafsOnly() );
+		} catch ( IOException e ) {
+			LOG.warning( "assignment cache read error: " + e );
+		}
+		if ( classes != null ) {
+			AssignmentMetrics.CACHE_HITS.increment();
+			HashMap<String,String> conceptMap = new HashMap<>();
+			for ( int idClass : classes ) {
+				if ( idClass < 0 || idClass >= graph.size() ) return runAssignment( _parameters, oData, _mol );
+				conceptMap.put( graph.getId( idClass ), graph.getName( idClass ) );
 			}
+			return conceptMap;
 		}
 		
-	    LOG.info("calculate ancestors and offsprings ...");
-	   
-	    int idClassC = 0; 
-	    for ( String idClass : idClass2nameMap.keySet() ) {
-	    	Set<String> ancestorSet = ancestors( idClass, idClass2parentMap );
-	    	ontData.setIdAncestorsMap(idClass, ancestorSet);
-	    	//LOG.info( "class: " + idClass + " " + ancestorSet );
-	    }
-	    for ( String idClass : idClass2nameMap.keySet() ) {
-	    	idClassC++;
-	    	//LOG.info( "class: "+idClassC+" "+idClass+" "+idClass2nameMap.get(idClass) );
-	    	Set<String> offspringSet = offsprings( idClass, idClass2childMap );
-	    	ontData.setIdOffspringsMap( idClass, offspringSet);
-	    	//if ( offspringSet.size() > 0 ) LOG.info( idClassC +" "+ idClass + " offsprings: " + offspringSet.size() );
-	    }
-	   
-	    return ontData;
+		AssignmentMetrics.CACHE_MISSES.increment();
+		final HashMap<String,String> conceptMap = runAssignment( _parameters, oData, _mol );
+		classes = new int[conceptMap.size()];
+		int k = 0;
+		for ( String id : conceptMap.keySet() ) classes[k++] = graph.indexOf( id );
+		try {
+			cache.put( idcode, _parameters.getWriteLeafsOnly(), classes );
+		} catch ( IOException e ) {
+			LOG.warning( "assignment cache write error: " + e );
+		}
+		return conceptMap;
 	}
 	
 	public static HashMap<String,String> runAssignment( AssignmentParameters _parameters, OntologyData oData ) throws Exception {
+		//parse and aromatize the input once, all smarts matches of this request reuse it
+		return runAssignment( _parameters, oData, PreparedMolecule.prepare( _parameters.getSmiles(), true ) );
+	}
+	
+	public static HashMap<String,String> runAssignment( AssignmentParameters _parameters, OntologyData oData, 
+			PreparedMolecule mol ) throws Exception {
 		
-		boolean aromatic = true;
 		boolean verbose = false;
 		HashMap<String,String> conceptMap = new HashMap();
 		
-	    String smiles = _parameters.getSmiles();
-	    String compId = _parameters.getId();
 	    long startTime = System.nanoTime();
 	   
-	    //follow hierarchy of class id top down and assign, write into idAssignmentMap
-	    Map<String,Set<String>> idAssignmentMap = 
-	    		AssignmentUtils.hierarchicalClassAssignment( _parameters.getModule(), 
-	    												aromatic, verbose, smiles, compId, oData);
+	    //follow hierarchy of class id top down and assign, classes as indices of the ontology graph
+	    final OntologyGraph graph = oData.getGraph();
+	    final ReachabilityIndex ancestors  = graph.getAncestors();
+	    final ReachabilityIndex offsprings = graph.getOffsprings();
+	    final BitSet idClassSet = AssignmentUtils.hierarchicalClassAssignment( _parameters.getModule(), 
+	    												verbose, mol, oData );
+	    final long postStart = System.nanoTime();
 
-	    Set<String> idClassSet1 = new HashSet<String>(); //all concepts only
-	    Set<String> idClassSet2 = new HashSet<String>(); //leaf concepts only
+	    final BitSet idClassSet1 = new BitSet( graph.size() ); //all concepts only
+	    final BitSet idClassSet2 = new BitSet( graph.size() ); //leaf concepts only
 	    
-	    for ( String id : idAssignmentMap.keySet() ) {
-	    	idClassSet1.clear(); 
-	        idClassSet2.clear();
-	        final Set<String> idClassSet = idAssignmentMap.get( id );
-	        
-	        // check ancestors, omit concept if a parent is missing
-		    for ( String idClass : idClassSet ) {
-		        final Set<String> classAncestorsSet = oData.getIdAncestorsMap().get(idClass);
-		        // leave out if a concept has no parents
-		        if ( classAncestorsSet==null || classAncestorsSet.isEmpty() ) continue;
-		        boolean missingParent = false;
-	        	//leave out if an ancestor concept is missing
-				for ( String ancestor : classAncestorsSet ) {
-					if ( !idClassSet.contains( ancestor ) ) {
-						//System.out.println( idClass+" missing parent: "+ancestor);
-						missingParent = true;
-						continue;
-					}
-    			}
-				boolean eligible = false;
-				if ( oData.getIdSmartsMap().get(idClass).isEmpty() && oData.getIdIdcodeMap().get(idClass) == null )
-					eligible = true;
-				if ( oData.getIdIdcodeMap().get(idClass) != null ) {
-					Set<String> ancestorList = oData.getIdAncestorsMap().get(idClass);
-					idClassSet1.addAll( ancestorList );
-				}
-	        	if ( missingParent || eligible ) {
-	        		continue;
-	        	} else {
-	        		idClassSet1.add( idClass );
-	        	}
-	        }
-	        
-	        // check for children present, omit concept if valid child with smarts has been found
-	        for ( String idClass : idClassSet1 ) {
-	        	boolean validChild = false;
-	        	final Set<String> classAllOffspringsSet = oData.getIdOffspringsMap().get(idClass);
-	        	//System.out.println( idClass + " offsprings: "+classAllOffspringsSet.size() );
-	        	
-	        	//leave out if offspring with smarts is present, one is enough
-	        	if ( classAllOffspringsSet != null ) {
-	        		for ( String offspring : classAllOffspringsSet ) {
-	        			if ( idClassSet1.contains( offspring ) && oData.getIdSmartsMap().containsKey( offspring ) ) {
-	        				validChild = true;
-	        				break;
-	        			}
-	        		}
-	        	}
-	        	if ( validChild ) {
-	        		continue;
-	        	} else {
-	        		idClassSet2.add( idClass );
-	        	}
-	        }
-	        
-	        if ( _parameters.writeLeafsOnly ) {
-	        	//System.out.println( "leaf concepts only:");
-	        	//for ( String newClass : idClassSet2 ) System.out.println( "\t" + newClass + "\t" + oData.getIdNameMap().get( newClass ));
-	        	for ( String newClass : idClassSet2 ) {
-	        		if (newClass.equals("MGN100001928") || newClass.equals("MGN100003353")) continue;
-	        		conceptMap.put(newClass,oData.getIdNameMap().get( newClass ));
-	        	}
-	        } else {
-	        	//System.out.println( "all concepts:");
-	        	//for ( String newClass : idClassSet1 ) System.out.println( "\t" + newClass + "\t" + oData.getIdNameMap().get( newClass ));
-	        	for ( String newClass : idClassSet1 ) {
-	        		if (newClass.equals("MGN100001928") || newClass.equals("MGN100003353")) continue;
-	        		conceptMap.put(newClass,oData.getIdNameMap().get( newClass ));
-	        	}
-	        }
-	        idClassSet1 = new HashSet<String>();
-	        idClassSet2 = new HashSet<String>();
-	    }  
+	    // check ancestors, omit concept if a parent is missing
+	    final BitSet assignedPost = ancestors.toPostSet( idClassSet );
+	    for ( int idClass = idClassSet.nextSetBit( 0 ); idClass >= 0; idClass = idClassSet.nextSetBit( idClass + 1 ) ) {
+	        // leave out if a concept has no parents
+	    	if ( !graph.isNamed( idClass ) || graph.ancestorCount( idClass ) == 0 ) continue;
+	    	//leave out if an ancestor concept is missing
+	    	boolean missingParent = !ancestors.allReachableInPostSet( idClass, assignedPost );
+	    	boolean eligible = !graph.hasSmarts( idClass ) && !graph.hasIdcode( idClass );
+	    	if ( graph.hasIdcode( idClass ) ) ancestors.addReachable( idClass, idClassSet1 );
+	    	if ( missingParent || eligible ) continue;
+	    	idClassSet1.set( idClass );
+	    }
+	    
+	    // check for children present, omit concept if valid child with smarts has been found
+	    final BitSet smartsChildren = new BitSet( graph.size() );
+	    smartsChildren.or( idClassSet1 );
+	    smartsChildren.and( graph.getSmartsEntries() );
+	    final BitSet smartsChildrenPost = offsprings.toPostSet( smartsChildren );
+	    for ( int idClass = idClassSet1.nextSetBit( 0 ); idClass >= 0; idClass = idClassSet1.nextSetBit( idClass + 1 ) ) {
+	    	//leave out if offspring with smarts is present, one is enough
+	    	if ( graph.isNamed( idClass ) && offsprings.anyReachableInPostSet( idClass, smartsChildrenPost ) ) continue;
+	    	idClassSet2.set( idClass );
+	    }
+	    
+	    final BitSet newClasses = _parameters.writeLeafsOnly ? idClassSet2 : idClassSet1;
+	    for ( String excluded : EXCLUDED_CLASSES ) {
+	    	int idClass = graph.indexOf( excluded );
+	    	if ( idClass >= 0 ) newClasses.clear( idClass );
+	    }
+	    for ( int newClass = newClasses.nextSetBit( 0 ); newClass >= 0; newClass = newClasses.nextSetBit( newClass + 1 ) ) {
+	    	conceptMap.put( graph.getId( newClass ), graph.getName( newClass ) );
+	    }
 	    
+	    AssignmentMetrics.POST_PROCESSING.recordSince( postStart );
 	    long duration = System.nanoTime() - startTime;
     
 	   if ( verbose ) LOG.info( "Elapsed time (s): " + TimeUnit.NANOSECONDS.toSeconds( duration ) );
@@ -301,56 +490,6 @@ public class AssignCompounds {
 	   return conceptMap;
 	}
     
-	private static Set<String> ancestors( String _classId, Map<String,Set<String>> _parentMap ) {
-		
-		final Set<String> ancestorList = new HashSet<>();
-		
-		Set<String> idList = Collections.singleton( _classId );
-		
-		while ( ! idList.isEmpty() ) {
-	    final Set<String> newIdList = new HashSet<>();  //list of all ids for one hierarchy level
-			for ( String id : idList ) {
-			  final Set<String> parentList = _parentMap.get( id );
-				if ( ( parentList != null ) && ( ! parentList.isEmpty() ) ) {
-				  newIdList.addAll( parentList );
-				}
-			}
-			idList = newIdList;
-			ancestorList.addAll( newIdList ); //list of all ids for down of classId
-		}
-		return ancestorList;
-	}
-
-	private static Set<String> offsprings( String _classId, Map<String,Set<String>> _childMap ){
-		
-		Set<String> idList 			= new HashSet<String>();
-		Set<String> childList  		= new HashSet<String>();
-		Set<String> offspringList	= new HashSet<String>();
-		Set<String> parsedList		= new HashSet<String>();
-		
-		idList.add( _classId );
-		//System.out.println("ocid: "+_classId);
-		String flag = "toContinue";
-		
-		while ( flag.equals( "toContinue" ) ) {
-			HashSet<String> newIdList = new HashSet<String>(); 	//list of all ids for one hierarchy level
-			flag = "Stop" ;
-			for ( String id : idList ) {
-				if ( parsedList.contains( id ) ) continue;
-				parsedList.add(id);
-				childList = _childMap.get( id );
-				if ( childList != null ) {
-					newIdList.addAll( childList );
-					flag = new String("toContinue");
-				}
-			}
-			idList = newIdList;
-			offspringList.addAll( newIdList ); //list of all ids for down of classId
-		}
-		//System.out.println("\t"+idList.size()+" childList: "+offspringList);
-		return offspringList;
-	}
-	
 	private static void help( int _exitCode ) {
     
 		System.err.println( "Run compound assignment.\n" +
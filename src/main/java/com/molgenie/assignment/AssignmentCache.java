@@ -0,0 +1,379 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import com.actelion.research.chem.CanonizerUtil.StrongHasher;
+
+/**
+ * Persistent cache of assignment results stored next to the ontology file, so
+ * that compounds classified in an earlier run are not searched again.
+ *
+ * The cache consists of an append-only log and a memory mapped index. A log
+ * record holds the idcode of the compound, the writeLeafsOnly flag and the
+ * assigned classes as indices of the {@link OntologyGraph}. The index is an
+ * open addressing hash table from the {@link StrongHasher} hash of the idcode
+ * to the offset of the record in the log.
+ *
+ * Both files start with the SHA-256 checksum of the ontology file and the
+ * chemistry module. A cache written for another ontology release or module is
+ * discarded when opened, as class indices are only valid for the ontology they
+ * were assigned with and the module decides which queries match. A missing
+ * or damaged index is rebuilt from the log, records appended after the last
+ * index update are indexed again and an incomplete last record is dropped.
+ *
+ * Lookups may run concurrently, appends are serialized. The log is locked for
+ * the process having it open; another process using the same ontology file
+ * runs without the cache.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class AssignmentCache implements Closeable {
+
+	private final static Logger LOG = Logger.getLogger( AssignmentCache.class.getName() );
+
+	private final static int MAGIC 			 = 0x4D474143; // MGAC
+	/* increase when the assignment rules change, old results are then discarded */
+	private final static int FORMAT 		 = 2;
+	private final static int CHECKSUM_LENGTH = 32;
+	/* module name, zero padded */
+	private final static int MODULE_LENGTH 	 = 16;
+	/* log header: magic, format, ontology checksum, module */
+	private final static int LOG_HEADER 	 = 8 + CHECKSUM_LENGTH + MODULE_LENGTH;
+	/* index header: log header, capacity, count, indexed log length */
+	private final static int INDEX_HEADER 	 = LOG_HEADER + 16;
+	private final static int CAPACITY_POS 	 = LOG_HEADER;
+	private final static int COUNT_POS 		 = LOG_HEADER + 4;
+	private final static int LOG_LENGTH_POS  = LOG_HEADER + 8;
+	/* slot: hash of the idcode, offset of the record in the log, 0 if empty */
+	private final static int SLOT 			 = 16;
+	private final static int MIN_CAPACITY 	 = 1 << 16;
+	/* a mapped buffer is limited to 2 GB */
+	private final static int MAX_CAPACITY 	 = 1 << 26;
+	private final static int FLAG_LEAFS_ONLY = 1;
+
+	private final Path 		  logPath;
+	private final Path 		  indexPath;
+	private final byte[] 	  checksum;
+	private final byte[] 	  module;
+	private final FileChannel log;
+	private FileChannel 	  indexChannel 	= null;
+	private MappedByteBuffer  index 		= null;
+	private int 			  capacity 		= 0;
+	private int 			  count 		= 0;
+	private long 			  logLength 	= 0;
+	private boolean 		  closed 		= false;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private AssignmentCache( Path _logPath, byte[] _checksum, byte[] _module, FileChannel _log ) {
+		logPath 	= _logPath;
+		indexPath 	= Path.of( _logPath + ".idx" );
+		checksum 	= _checksum;
+		module 		= _module;
+		log 		= _log;
+	}
+
+	/**
+	 * Opens or creates the cache of the ontology file with the given checksum and chemistry module,
+	 * discarding results of another ontology release or module. Null if another process has it open.
+	 */
+	public static AssignmentCache open( String _filename, byte[] _checksum, String _module ) throws IOException {
+		final byte[] module = _module.toLowerCase().getBytes( StandardCharsets.US_ASCII );
+		if ( module.length > MODULE_LENGTH ) throw new IOException( "module name too long for the assignment cache: " + _module );
+		final Path logPath = Path.of( _filename );
+		final FileChannel log = FileChannel.open( logPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
+		try {
+			if ( !lock( log ) ) {
+				LOG.warning( "assignment cache already in use, running without it: " + logPath );
+				log.close();
+				return null;
+			}
+			final AssignmentCache cache = new AssignmentCache( logPath, _checksum, Arrays.copyOf( module, MODULE_LENGTH ), log );
+			if ( !cache.hasHeader( log ) ) {
+				if ( log.size() > 0 ) LOG.info( "assignment cache of another ontology discarded: " + logPath );
+				log.truncate( 0 );
+				writeFully( log, ByteBuffer.wrap( cache.header() ), 0 );
+				Files.deleteIfExists( cache.indexPath );
+			}
+			cache.openIndex();
+			return cache;
+		} catch ( IOException e ) {
+			log.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Assigned classes of a compound as indices of the ontology graph, null if not cached.
+	 */
+	public int[] get( String _idcode, boolean _leafsOnly ) throws IOException {
+		final byte[] idcode = _idcode.getBytes( StandardCharsets.UTF_8 );
+		lock.readLock().lock();
+		try {
+			return closed ? null : find( StrongHasher.hash( _idcode ), idcode, _leafsOnly ? FLAG_LEAFS_ONLY : 0 );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends the assigned classes of a compound, ignored if already cached or the index is full.
+	 */
+	public void put( String _idcode, boolean _leafsOnly, int[] _classes ) throws IOException {
+		final long key = StrongHasher.hash( _idcode );
+		final byte[] idcode = _idcode.getBytes( StandardCharsets.UTF_8 );
+		final int flags = _leafsOnly ? FLAG_LEAFS_ONLY : 0;
+		lock.writeLock().lock();
+		try {
+			if ( closed || find( key, idcode, flags ) != null ) return;
+			if ( count >= MAX_CAPACITY / 2 ) return;
+			final ByteBuffer record = ByteBuffer.allocate( 13 + idcode.length + 4 * _classes.length );
+			record.putInt( record.capacity() - 4 ).put( (byte) flags ).putInt( idcode.length ).put( idcode ).putInt( _classes.length );
+			for ( int idClass : _classes ) record.putInt( idClass );
+			record.flip();
+			final long offset = logLength;
+			writeFully( log, record, offset );
+			insert( key, offset );
+			logLength = offset + record.capacity();
+			index.putLong( LOG_LENGTH_POS, logLength );
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public Path getPath() { return logPath; }
+
+	/**
+	 * Writes the index and the log to disk, later lookups miss and appends are ignored.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if ( closed ) return;
+			closed = true;
+			index.force();
+			log.force( false );
+		} finally {
+			try {
+				indexChannel.close();
+				log.close();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/*
+	 * probe the slots of the hash and compare the records, null if not found
+	 */
+	private int[] find( long _key, byte[] _idcode, int _flags ) throws IOException {
+		final int mask = capacity - 1;
+		for ( int slot = slot( _key ); ; slot = ( slot + 1 ) & mask ) {
+			final int pos = INDEX_HEADER + slot * SLOT;
+			final long offset = index.getLong( pos + 8 );
+			if ( offset == 0 ) return null;
+			if ( index.getLong( pos ) != _key ) continue;
+			final ByteBuffer record = readRecord( offset, log.size() );
+			if ( record == null || record.get() != _flags ) continue;
+			final int idcodeLength = record.getInt();
+			if ( idcodeLength != _idcode.length ) continue;
+			final byte[] idcode = new byte[idcodeLength];
+			record.get( idcode );
+			if ( !Arrays.equals( idcode, _idcode ) ) continue;
+			final int[] classes = new int[record.getInt()];
+			for ( int k = 0; k < classes.length; k++ ) classes[k] = record.getInt();
+			return classes;
+		}
+	}
+
+	/*
+	 * record at the offset without its length, null if incomplete
+	 */
+	private ByteBuffer readRecord( long _offset, long _logSize ) throws IOException {
+		if ( _offset + 4 > _logSize ) return null;
+		final ByteBuffer length = ByteBuffer.allocate( 4 );
+		readFully( log, length, _offset );
+		final int recordLength = length.getInt( 0 );
+		if ( recordLength < 9 || _offset + 4 + recordLength > _logSize ) return null;
+		final ByteBuffer record = ByteBuffer.allocate( recordLength );
+		readFully( log, record, _offset + 4 );
+		record.flip();
+		return record;
+	}
+
+	private int slot( long _key ) {
+		return (int) ( ( _key ^ ( _key >>> 32 ) ) & ( capacity - 1 ) );
+	}
+
+	/*
+	 * add the record offset to the index, growing the table beyond half load
+	 */
+	private void insert( long _key, long _offset ) throws IOException {
+		if ( ( count + 1 ) * 2L > capacity && capacity < MAX_CAPACITY ) grow();
+		final int mask = capacity - 1;
+		for ( int slot = slot( _key ); ; slot = ( slot + 1 ) & mask ) {
+			final int pos = INDEX_HEADER + slot * SLOT;
+			final long offset = index.getLong( pos + 8 );
+			if ( offset == _offset ) return;
+			if ( offset == 0 ) {
+				index.putLong( pos, _key );
+				index.putLong( pos + 8, _offset );
+				index.putInt( COUNT_POS, ++count );
+				return;
+			}
+		}
+	}
+
+	/*
+	 * rehash into an index of twice the capacity, written aside and moved over the old one
+	 */
+	private void grow() throws IOException {
+		final MappedByteBuffer oldIndex = index;
+		final int oldCapacity = capacity;
+		final FileChannel oldChannel = indexChannel;
+		final Path tmpPath = Path.of( indexPath + ".tmp" );
+		Files.deleteIfExists( tmpPath );
+		indexChannel = FileChannel.open( tmpPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW );
+		mapIndex( oldCapacity * 2 );
+		count = 0;
+		for ( int slot = 0; slot < oldCapacity; slot++ ) {
+			final int pos = INDEX_HEADER + slot * SLOT;
+			final long offset = oldIndex.getLong( pos + 8 );
+			if ( offset != 0 ) insert( oldIndex.getLong( pos ), offset );
+		}
+		index.putLong( LOG_LENGTH_POS, logLength );
+		index.force();
+		oldChannel.close();
+		Files.move( tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/*
+	 * map a new empty index of the given capacity into the current index channel
+	 */
+	private void mapIndex( int _capacity ) throws IOException {
+		indexChannel.truncate( 0 );
+		capacity = _capacity;
+		index = indexChannel.map( FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) _capacity * SLOT );
+		index.put( 0, header(), 0, LOG_HEADER );
+		index.putInt( CAPACITY_POS, _capacity );
+		index.putInt( COUNT_POS, 0 );
+		index.putLong( LOG_LENGTH_POS, LOG_HEADER );
+	}
+
+	/*
+	 * map the index if it belongs to the log, else start a new one, then index the log records not yet indexed
+	 */
+	private void openIndex() throws IOException {
+		indexChannel = FileChannel.open( indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
+		final long logSize = log.size();
+		boolean valid = false;
+		if ( indexChannel.size() >= INDEX_HEADER && hasHeader( indexChannel ) ) {
+			final ByteBuffer header = ByteBuffer.allocate( 16 );
+			readFully( indexChannel, header, CAPACITY_POS );
+			final int indexCapacity = header.getInt( 0 );
+			final long indexedLength = header.getLong( 8 );
+			valid = indexCapacity >= MIN_CAPACITY && indexCapacity <= MAX_CAPACITY && Integer.bitCount( indexCapacity ) == 1
+					&& indexChannel.size() == INDEX_HEADER + (long) indexCapacity * SLOT
+					&& indexedLength >= LOG_HEADER && indexedLength <= logSize;
+			if ( valid ) {
+				capacity = indexCapacity;
+				count = header.getInt( 4 );
+				logLength = indexedLength;
+				index = indexChannel.map( FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) capacity * SLOT );
+			}
+		}
+		if ( !valid ) {
+			mapIndex( MIN_CAPACITY );
+			logLength = LOG_HEADER;
+		}
+		int appended = 0;
+		while ( logLength < logSize ) {
+			final ByteBuffer record = readRecord( logLength, logSize );
+			if ( record == null ) break;
+			record.get();
+			final byte[] idcode = new byte[record.getInt()];
+			record.get( idcode );
+			if ( count < MAX_CAPACITY / 2 ) insert( StrongHasher.hash( new String( idcode, StandardCharsets.UTF_8 ) ), logLength );
+			logLength += 4 + record.capacity();
+			appended++;
+		}
+		if ( logLength < logSize ) {
+			LOG.warning( "assignment cache, incomplete record dropped at " + logLength + ": " + logPath );
+			log.truncate( logLength );
+		}
+		index.putLong( LOG_LENGTH_POS, logLength );
+		LOG.info( "assignment cache: " + count + " compounds, " + appended + " indexed from log: " + logPath );
+	}
+
+	private byte[] header() {
+		final ByteBuffer header = ByteBuffer.allocate( LOG_HEADER );
+		header.putInt( MAGIC ).putInt( FORMAT ).put( checksum ).put( module );
+		return header.array();
+	}
+
+	/*
+	 * exclusive lock of the log held until it is closed, false if another process holds it
+	 */
+	private static boolean lock( FileChannel _log ) throws IOException {
+		try {
+			return _log.tryLock() != null;
+		} catch ( OverlappingFileLockException e ) {
+			return false; 	//already open in this process
+		}
+	}
+
+	private boolean hasHeader( FileChannel _channel ) throws IOException {
+		if ( _channel.size() < LOG_HEADER ) return false;
+		final ByteBuffer header = ByteBuffer.allocate( LOG_HEADER );
+		readFully( _channel, header, 0 );
+		return Arrays.equals( header.array(), header() );
+	}
+
+	private static void readFully( FileChannel _channel, ByteBuffer _buffer, long _position ) throws IOException {
+		while ( _buffer.hasRemaining() ) {
+			if ( _channel.read( _buffer, _position + _buffer.position() ) < 0 ) throw new IOException( "unexpected end of file" );
+		}
+	}
+
+	private static void writeFully( FileChannel _channel, ByteBuffer _buffer, long _position ) throws IOException {
+		while ( _buffer.hasRemaining() ) _channel.write( _buffer, _position + _buffer.position() );
+	}
+}
@@ -0,0 +1,52 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counts of the assignment stages of all requests, recorded without
+ * allocation and exported by the metrics endpoint of the service.
+ *
+ * The stages nest: the hierarchy traversal includes the CDK preparation and the
+ * SMARTS matching it triggers, the ring systems are extracted before it.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class AssignmentMetrics {
+
+	/* ring system idcodes of the molecule, Molecule2ringsystem */
+	public final static Histogram RING_SYSTEMS 		= Histogram.nanos( "stage=\"ring_systems\"" );
+	/* CDK containers of the molecule, parsed, aromatized and with ring perception */
+	public final static Histogram CDK_PREPARATION 	= Histogram.nanos( "stage=\"cdk_preparation\"" );
+	/* top down traversal of the class hierarchy */
+	public final static Histogram TRAVERSAL 		= Histogram.nanos( "stage=\"hierarchy_traversal\"" );
+	/* one SMARTS graph match, queries rejected by the pre-screen or searched before are not counted */
+	public final static Histogram SMARTS_MATCH 		= Histogram.nanos( "stage=\"smarts_match\"" );
+	/* ancestor and leaf checks of the assigned classes */
+	public final static Histogram POST_PROCESSING 	= Histogram.nanos( "stage=\"post_processing\"" );
+
+	/* per molecule and ontology */
+	public final static Histogram CLASSES_VISITED 	= Histogram.counts( "" );
+	public final static Histogram SMARTS_EVALUATED 	= Histogram.counts( "" );
+
+	/* persistent assignment cache */
+	public final static LongAdder CACHE_HITS 		= new LongAdder();
+	public final static LongAdder CACHE_MISSES 		= new LongAdder();
+
+	private AssignmentMetrics() {}
+}
@@ -18,6 +18,7 @@ package com.molgenie.assignment;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,7 +32,6 @@ import java.util.logging.Logger;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.molgenie.assignment.OntologyLoader.OntologyData;
-import com.molgenie.smiles2concepts.models.common.Molecule2ringsystem;
 
 /**
  * Utilities for performing compound assignment.
@@ -44,99 +44,121 @@ public class AssignmentUtils {
 	public final static Map<String,Set<String>> hierarchicalClassAssignment( String _module, 
 								boolean _aromatic, boolean _verbose,
 								String _compSmiles, String _compId, OntologyData oData) throws IOException {
+		return hierarchicalClassAssignment( _module, _verbose, 
+								PreparedMolecule.prepare( _compSmiles, _aromatic ), _compId, oData );
+	}
+	
+	/*
+	 * the input molecule is prepared once by the caller and reused for every smarts match
+	 * 
+	 * A class is assigned when all its parents are assigned and its idcode or smarts match, classes
+	 * without smarts when they have children. The traversal runs on the int indices of the ontology
+	 * graph and only expands assigned classes. Ring system leafs with idcode alone are not traversed,
+	 * they are looked up by the idcodes of the molecule.
+	 */
+	public final static Map<String,Set<String>> hierarchicalClassAssignment( String _module, boolean _verbose,
+								PreparedMolecule _mol, String _compId, OntologyData oData) throws IOException {
     	
 		final Map<String,Set<String>> id2classMap = new HashMap<>();
+		final OntologyGraph graph = oData.getGraph();
+		final BitSet assigned = hierarchicalClassAssignment( _module, _verbose, _mol, oData );
+		
+		final Set<String> assignedSet = new HashSet<>( assigned.cardinality() * 2 );
+		for ( int classI = assigned.nextSetBit( 0 ); classI >= 0; classI = assigned.nextSetBit( classI + 1 ) ) {
+			assignedSet.add( graph.getId( classI ) );
+		}
+		id2classMap.put( _compId, assignedSet );
+		return id2classMap;
+	}
+	
+	/*
+	 * assigned classes as indices of the ontology graph
+	 */
+	public final static BitSet hierarchicalClassAssignment( String _module, boolean _verbose,
+								PreparedMolecule _mol, OntologyData oData) throws IOException {
 		
 		try {
-			Molecule2ringsystem m2rs = new Molecule2ringsystem();
-			HashSet<String> rSet = Molecule2ringsystem.smiles2ringsystem( _compSmiles );
+			Set<String> rSet = _mol.getRingSystems();
+			final long start = System.nanoTime();
+			final int searches = _mol.getSearchCount();
 			
-			Set<String> classIdList = new HashSet();
-			classIdList.add( oData.getRootId() );
+			final OntologyGraph graph = oData.getGraph();
+			final BitSet assigned  = new BitSet( graph.size() );
+			final BitSet evaluated = new BitSet( graph.size() );
 			
-			Set<String> childrenSet = new HashSet<>();
-			Set<String> assignedSet = new HashSet<>();
+			//classes with a ring system idcode of the molecule
+			final BitSet ringClasses = new BitSet( graph.size() );
+			for ( String cIdCode : rSet ) graph.addIdcodeClasses( cIdCode, ringClasses );
+			
+			BitSet classIdList = new BitSet( graph.size() );
+			classIdList.set( graph.indexOf( oData.getRootId() ) );
 			
-			int count    = 0;
-			int countAss = 0;
-			int countAll = 0;
 			while ( !classIdList.isEmpty() ) {
 			  
-				final Set<String> newIdList = new HashSet<String>(); 	//list of all ids for one hierarchy level
+				final BitSet newIdList = new BitSet( graph.size() ); 	//all classes of one hierarchy level
 				
-				for ( String classId : classIdList ) {
-					count++;
-					if ( oData.getCheckSet().contains(classId) ) continue;
-					if ( assignedSet.contains( classId ) ) continue;
-					
-					Set<String> classParents = oData.getIdParentMap().get( classId );
+				for ( int classI = classIdList.nextSetBit( 0 ); classI >= 0; classI = classIdList.nextSetBit( classI + 1 ) ) {
+					if ( graph.isChecked( classI ) ) continue;
+					if ( assigned.get( classI ) || evaluated.get( classI ) ) continue;
+					if ( !graph.parentsIn( classI, assigned ) ) continue;
+					evaluated.set( classI );
 					
-					boolean parentNotAssigned = false;
-					if ( classParents != null ) {
-						for ( String parent : classParents ) {
-							if ( parentNotAssigned ) break;
-							if ( !assignedSet.contains( parent ) ) parentNotAssigned = true;
-						}
+					if ( ringClasses.get( classI ) ) {
+						assigned.set( classI );
 					}
-					if ( parentNotAssigned ) continue;
 					
-					String classidcode = oData.getIdIdcodeMap().get(classId);
-					if ( classidcode != null ) {
-						for ( String cIdCode : rSet) {
-							if ( classidcode.equals(cIdCode) ) {
-								countAss++;
-								assignedSet.add( classId );
-								countAll++;
-							}
-						}
+					SmartsPlan smartsPlan = graph.getSmartsPlan( classI );
+					if ( smartsPlan == null && graph.hasSmarts( classI ) ) {
+						smartsPlan = oData.getSmartsPlan( graph.getId( classI ), _module );
 					}
 					
-					List<String> smartsList = oData.getIdSmartsMap().get( classId );
-					
-					if ( ( smartsList != null ) && !smartsList.isEmpty() ) {
-						count++;
-						
-						if ( assign( _compSmiles, smartsList, _module, _aromatic, _verbose ) ) {
-							countAss++;
-							assignedSet.add( classId );
-							countAll++;
+					if ( smartsPlan != null ) {
+						if ( assign( _mol, smartsPlan, _module, _verbose ) ) {
+							assigned.set( classI );
 						} 
-					} else {
-						if ( !oData.getIdChildMap().get(classId).isEmpty() ) {
-							assignedSet.add( classId );
-						}
-						countAll++;
+					} else if ( graph.childCount( classI ) > 0 ) {
+						assigned.set( classI );
 					}
 					
-					childrenSet = oData.getIdChildMap().get( classId );
-					//System.out.println( classId+" childs: "+childrenSet);
-					if ( _verbose ) System.out.println( "childs: "+childrenSet.size());
+					//children of a class not assigned cannot be assigned
+					if ( !assigned.get( classI ) ) continue;
 					
-					if ( ( childrenSet != null ) && !childrenSet.isEmpty() ){
-						newIdList.addAll( childrenSet );
+					if ( _verbose ) System.out.println( "childs: "+graph.childCount( classI ) );
+					for ( int k = 0; k < graph.childCount( classI ); k++ ) {
+						int child = graph.child( classI, k );
+						if ( !graph.isIdcodeLeaf( child ) ) newIdList.set( child );
 					}
 				}
 				classIdList = newIdList;
 			}
-			id2classMap.put( _compId, assignedSet );
+			
+			//ring system leafs, assigned if all parents are assigned
+			for ( int leaf = ringClasses.nextSetBit( 0 ); leaf >= 0; leaf = ringClasses.nextSetBit( leaf + 1 ) ) {
+				if ( graph.isIdcodeLeaf( leaf ) && !graph.isChecked( leaf ) && graph.parentsIn( leaf, assigned ) ) assigned.set( leaf );
+			}
+			
+			AssignmentMetrics.TRAVERSAL.recordSince( start );
+			AssignmentMetrics.CLASSES_VISITED.record( evaluated.cardinality() );
+			AssignmentMetrics.SMARTS_EVALUATED.record( _mol.getSearchCount() - searches );
+			return assigned;
 		} catch ( Exception e ) {
 			throw new IOException( "Error in hierarchical class assignment: " + e.getMessage(), e );
 		}
-		return id2classMap;
   }
     
-	public static boolean assign( String _smiles, List<String> _smartsList, String _module, 
-															boolean _aromatic, boolean _verbose ) {
+	/*
+	 * evaluate the smarts plan of a class compiled at ontology load time
+	 */
+	public static boolean assign( PreparedMolecule _mol, SmartsPlan _plan, String _module, boolean _verbose ) {
 		  
 		if ( ChemLib.CHEMLIB_CA.equals( _module ) ) {
 			LOG.info("ChemAxon is not implemented in public version...stopping");
 			return false;
-			//return assignChemaxon( _smiles, _smartsList, _module );
 		  
 		} else if ( ChemLib.CHEMLIB_CDK.equals( _module ) || 
 		            ChemLib.CHEMLIB_AMBIT.equals( _module ) ) {
 		  
-			return assignCdkOrAmbit( _smiles, _smartsList, _module, _aromatic, _verbose );
+			return _plan.evaluate( _mol, _verbose );
 		  
 		} else {
 			LOG.severe( "Unexpected chemical library module: '" + _module + "'" );
@@ -144,196 +166,6 @@ public class AssignmentUtils {
 		}
 	}
 	
-	public static boolean assignCdkOrAmbit( String _smiles, List<String> _smartsList, String _module, 
-																boolean _aromatic, boolean _verbose ) {
-		try {
-			List<String> ORResponse = new ArrayList<String>();
-			List<String> NOTResponse = new ArrayList<String>();
-			
-			boolean isORstructure 	= false;
-			boolean isNOTstructure 	= false;
-			String  trueResponse 	= new String( "true" );
-			int size = _smartsList.size();
-		
-			/*
-			 * A class consists of smarts set.
-			 * Smarts set is a collection of smarts query or smarts structures with logical operators
-			 * the following additional logic has been added to for CDK smarts:
-			 * 
-			 * AND structures: query1XXXquery2, query1.query2. Both dots or XXX separated smarts are taken apart and we check each of them individually and only when all are ok then the whole expression is considered as AND connected structure.
-			 * POLY structures: 3ZZZquery2 query 2 must occor 3 times
-			 * NOT structures: !query, !query1XXXquery2, !query1.query2
-			 * OR structures: queries without NOT symol, and AND structures after resolving XXX, WWW, dots.
-			 */
-			for ( int i=0; i < _smartsList.size(); i++ ) {
-				
-				String Qry = _smartsList.get( i );
-				String Qry2 = Qry.replaceAll( "^!", "" );
-				
-	    		if ( Qry2.equals( Qry ) ) {								//OR smarts
-	    			isORstructure = true;
-	    			
-	    			String Qry1 = Qry.replaceAll("XXX", "");
-	    			
-	    			if ( Qry1.equals( Qry ) ) {							//OR smarts
-	    				
-	    				String Qry3 = Qry.replace(".", "");
-		    			
-	    				if ( Qry3.equals( Qry ) ) {						//OR smarts, potential EXACT and MORE
-			    			int rspd = checkQueryMultiplicity( _smiles, Qry, _module, _aromatic, _verbose );
-			    			if ( rspd >0 ) ORResponse.add( "true" ); else ORResponse.add("false");
-		    				//System.out.println("checkQueryMultiplicity: " + " OR " + rspd + " " + Qry);
-			    			
-	    				} else {										//OR + ANDdot smarts, potential EXACT and MORE										
- 		    				List<String> newQryList = Segmenter( Qry, "." );
-		    				List<String> AndConnectedList = new ArrayList<String>();
-		    				for ( int j = 0; j<newQryList.size(); j++) { 
-		    					String newQry = newQryList.get(j);
-		    					int rspd = SubStructureSearchEngine( _smiles, newQry, _module, _aromatic, _verbose );
-		    					//System.out.println("sss: " + rspd + " " + newQry);
-		    					if ( rspd >0 ) AndConnectedList.add("true"); else AndConnectedList.add("false");
-		    				}
-		    				if ( IsAndConnected( AndConnectedList ) ) { 
-		    					String rspdS = AndConnectedList.get( 0 );
-		    					ORResponse.add( rspdS );
-		    					//System.out.println("AND with dots " + rspd + " " + Qry);
-		    				}
-		    			}
-	    				
-		    		} else {											//OR + AND smarts
-		    			List<String> newQryList = Segmenter( Qry, "XXX" );
-	    				List<String> AndConnectedList= new ArrayList<String>();
-	    				
-	    				String newQry = newQryList.get(0);				//stereospecific query preceeds before XXX
-	    				int rspd = checkQueryStereoSpecificity( _smiles, newQry, _module, _aromatic, _verbose );
-	    				if ( rspd >0 ) AndConnectedList.add( "true" ); else AndConnectedList.add( "false" );
-	    				//System.out.println("stereo: " + rspd + " " + newQry );
-	    				
-	    				newQry = newQryList.get( 1 );					//non-stereospecific query follows after XXX
-	    				////rspd = SubStructureSearchEngine( _smiles, newQry, _module, _aromatic, _verbose );
-	    				rspd = checkQueryMultiplicity( _smiles, newQry, _module, _aromatic, _verbose );
-	    				if ( rspd >0 ) AndConnectedList.add( "true" ); else AndConnectedList.add( "false" );
-	    				//System.out.println("sss: " + rspd + " " + newQry );
-	    				
-	    				if ( IsAndConnected( AndConnectedList ) ) { 
-	    					String rspdS = AndConnectedList.get(0);		//only true if both part1 and part2 are true
-	    					ORResponse.add( rspdS );
-	    					//System.out.println("AND with XXX " + rspd + " " + Qry);
-	    				}
-	    			}
-	    			
-	    		} else {												//NOT smarts
-	    			
-	    			isNOTstructure = true;
-	    			
-	    			String Qry1 = Qry2.replaceAll("XXX", "");
-	    			
-	    			if( Qry1.equals( Qry2 ) ) {							//NOT smarts
-	    				
-	    				String Qry3 = Qry2.replace(".", "");
-		    			
-	    				if( Qry3.equals( Qry2 ) ) {						//NOT as simple smarts
-	    					
-		    				// no patterns found, OR structure preceeded by NOT
-		    				int rspd1 = checkQueryMultiplicity( _smiles, Qry2, _module, _aromatic, _verbose );
-		    				if ( rspd1 >0 ) NOTResponse.add("false");
-	    					else NOTResponse.add("true");
-			    			
-		    			} else {										//NOT+AND smarts
-		    				
- 		    				List<String> newQryList = Segmenter( Qry2,"." );
-		    				List<String> AndConnectedList= new ArrayList<String>();
-		    				
-		    				for (int j = 0; j<newQryList.size(); j++) {
-		    					String newQry = newQryList.get(j);
-		    					int rspd = SubStructureSearchEngine( _smiles, newQry, _module, _aromatic, _verbose );
-		    					//System.out.println("sss: " + rspd + " " + newQry);
-		    					if ( rspd >0 ) AndConnectedList.add("true");
-		    					else AndConnectedList.add("false");
-		    				}
-		    				if ( IsAndConnected( AndConnectedList ) ) { 
-		    					String rspd1 = AndConnectedList.get(0);
-		    					if( rspd1.equals("true") ) NOTResponse.add("false"); else NOTResponse.add("true");
-		    				}
-		    			}
-	    				
-	    			} else { 											//NOT + AND smarts
-	    				List<String> newQryList = Segmenter( Qry2, "XXX" );
-	    				List<String> AndConnectedList= new ArrayList<String>();
-	    				
-	    				for ( int j = 0; j<newQryList.size(); j++ ) {
-	    					String newQry = newQryList.get(j);
-	    					int rspd = 0;
-	    					if ( j==0 ) {
-		    					//stereospecific query preceeds before XXX
-	    						rspd = checkQueryStereoSpecificity( _smiles, newQry, _module, _aromatic, _verbose );
-	    					} else {
-		    					//non-stereospecific query follows after XXX
-	    						rspd = SubStructureSearchEngine( _smiles, newQry, _module, _aromatic, _verbose );
-	    					}
-	    					if ( rspd >0 ) AndConnectedList.add( "true" ); else AndConnectedList.add( "false" );
-	    				}
-	    				if ( IsAndConnected(AndConnectedList ) ) { 
-	    					String rspd1 = AndConnectedList.get(0);
-	    					if ( rspd1.equals( "true" ) ) NOTResponse.add( "false" ); else NOTResponse.add( "true" );
-	    				}
-	    			}
-	    		}
-			}
-			
-			/*
-			 * a substructure match is considered, if at least one OR structure is a match in the smarts set
-			 * and all NOT structures in the smarts set did not match
-			 */
-			boolean asgn1 = IsOrConnected( ORResponse, "true") ;
-			
-			/*
-			 * two scenarios in NOT structures: 1. only NOT structure 2. both NOT and OR structures
-			 * scenario 1: only NOT
-			 */
-			if( isNOTstructure ) {
-				boolean asgn2 = false;
-				boolean check = IsAndConnected( NOTResponse );
-				if ( check ) asgn2 = Boolean.valueOf ( NOTResponse.get(0) );
-				
-				if ( !isORstructure ) {
-					if( asgn2 ) return true;
-					else return false;
-				}
-				
-				/*
-				 * two scenarios in NOT structures: 1. only NOT structure 2. both NOT and OR structures
-				 * scenario 2: both NOT and OR
-				 */
-				if ( isORstructure ) {
-		    		if ( asgn2 ) {
-		    			if ( asgn1 ) return true;
-		    			else return false;
-		    		}
-		    	}
-			}
-			
-			/*
-			 * scenario 3: no NOT structures, only OR structures
-			 */
-			else if ( isORstructure ) {
-		    	//System.out.println("found OR structures");
-		    	if ( asgn1 ) return true;
-		    	else return false;
-		    }
-				
-		} catch (Exception e) {
-			System.out.println("assigner subroutine error" + e );
-		}
-		return false;
-	}
-		
-    public static int checkQueryStereoSpecificity( String _smi, String _sma, String _module, 
-    															boolean _aromatic, boolean _verbose ) {
-    	// stereochemistry is implemented in cdk and not in ambit
-    	return SubStructureSearchEngine( _smi, _sma, "cdk", _aromatic, _verbose );
-    }
-
 	public static boolean assignChemaxon( String _smiles, List<String> _smartsList, String _module, 
 																boolean _aromatic, boolean _verbose ) {
 		try {
@@ -513,41 +345,6 @@ public class AssignmentUtils {
 		return null;
 	}
     
-	public static int checkQueryMultiplicity( String _smi, String _sma, String _module, boolean _aromatic,  boolean _verbose ) throws Exception {
-		try  {
-			// multiplicity keywords are only used for Cdk or Ambit handling.
-			String exact = _sma.replaceAll( "EXACT", "" );
-			String more = _sma.replaceAll( "MORE", "" );
-			
-			if ( exact.equals( _sma ) ) {
-				//does not contain EXACT keyword
-				if ( more.equals( _sma ) ) {
-					//does not contain MORE keyword
-	 				return StructureSearchEngine.searchBySubstructure( _smi, _sma, _module, _aromatic, _verbose );
-				} else {
-					//contains keyword MORE
-					List<String> listSmarts = Segmenter( _sma, "MORE" );
-					String query = listSmarts.get(1);
-					String threshold = listSmarts.get(0);
-					int cnt = StructureSearchEngine.searchBySubstructureAmbitAllInstances( _smi, query, _verbose );
-					if (cnt >= Integer.parseInt( threshold ) ) return 1;
-					else  return 0;
-				}
-	 		} else {
-				//contains keyword EXACT
-				List<String> listSmarts = Segmenter( _sma, "EXACT" );
-				String query = listSmarts.get(1);
-				String threshold = listSmarts.get(0);
-				int cnt = StructureSearchEngine.searchBySubstructureAmbitAllInstances( _smi, query, _verbose );
-				if ( cnt == Integer.parseInt(threshold) ) return 1;
-				else return 0;
-			}
-		} catch ( Exception e ) {
-			LOG.info( "ERROR: error in processing smarts multiplicity: " + e ) ;
-			return -1;
-		}
-	}
-	
 	private static int SubStructureSearchEngine( String _target, String _query, String _module, 
 																		boolean _aromatic, boolean _verbose ) {
 		try {
@@ -0,0 +1,107 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram with one bucket per power of two, recorded without
+ * allocation on the hot path and written in the Prometheus text format.
+ *
+ * A value is counted in the smallest bucket with an upper bound 2^k not below
+ * it, values above the largest bound in the overflow bucket. Latencies are
+ * recorded in nanoseconds and exported in seconds with a scale of 1e-9.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class Histogram {
+
+	private final String 		  labels;
+	private final int 			  minExponent;
+	private final double 		  scale;
+	private final AtomicLongArray counts; 	//buckets 2^minExponent .. 2^maxExponent, then overflow
+	private final LongAdder 	  sum = new LongAdder();
+
+	/*
+	 * _labels as written in the metric, e.g. stage="ocl_parse"
+	 */
+	public Histogram( String _labels, int _minExponent, int _maxExponent, double _scale ) {
+		labels 		= _labels;
+		minExponent = _minExponent;
+		scale 		= _scale;
+		counts 		= new AtomicLongArray( _maxExponent - _minExponent + 2 );
+	}
+
+	/*
+	 * latency histogram from about 1 microsecond to 69 seconds, exported in seconds
+	 */
+	public static Histogram nanos( String _labels ) {
+		return new Histogram( _labels, 10, 36, 1e-9 );
+	}
+
+	/*
+	 * histogram of counts up to 65536
+	 */
+	public static Histogram counts( String _labels ) {
+		return new Histogram( _labels, 0, 16, 1 );
+	}
+
+	public void record( long _value ) {
+		final int exponent = _value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros( _value - 1 );
+		counts.incrementAndGet( Math.min( Math.max( exponent - minExponent, 0 ), counts.length() - 1 ) );
+		sum.add( _value );
+	}
+
+	/*
+	 * record the nanoseconds since the start, returns the current time for the next stage
+	 */
+	public long recordSince( long _start ) {
+		final long now = System.nanoTime();
+		record( now - _start );
+		return now;
+	}
+
+	public long count() {
+		long count = 0;
+		for ( int i = 0; i < counts.length(); i++ ) count += counts.get( i );
+		return count;
+	}
+
+	/*
+	 * the histograms as one metric family
+	 */
+	public static void write( StringBuilder _sB, String _name, String _help, Histogram... _histograms ) {
+		_sB.append( "# HELP " ).append( _name ).append( ' ' ).append( _help ).append( '\n' );
+		_sB.append( "# TYPE " ).append( _name ).append( " histogram\n" );
+		for ( Histogram histogram : _histograms ) histogram.write( _sB, _name );
+	}
+
+	private void write( StringBuilder _sB, String _name ) {
+		final String prefix = labels == null || labels.isEmpty() ? "" : labels + ",";
+		long cumulative = 0;
+		for ( int i = 0; i < counts.length(); i++ ) {
+			cumulative += counts.get( i );
+			final String bound = i < counts.length() - 1 ? String.valueOf( Math.scalb( 1.0, minExponent + i ) * scale ) : "+Inf";
+			_sB.append( _name ).append( "_bucket{" ).append( prefix ).append( "le=\"" ).append( bound ).append( "\"} " )
+				.append( cumulative ).append( '\n' );
+		}
+		final String braces = labels == null || labels.isEmpty() ? "" : "{" + labels + "}";
+		_sB.append( _name ).append( "_sum" ).append( braces ).append( ' ' ).append( sum.sum() * scale ).append( '\n' );
+		_sB.append( _name ).append( "_count" ).append( braces ).append( ' ' ).append( cumulative ).append( '\n' );
+	}
+}
@@ -0,0 +1,609 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.actelion.research.chem.CanonizerUtil.StrongHasher;
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+
+/**
+ * Compact, read-only ontology graph built once the ontology is loaded.
+ *
+ * Every class has a dense int index, in the sort order of the class ids. Parents
+ * and children are kept in compressed sparse rows: one int buffer with the sorted
+ * class indices of all rows and one with the row offsets. Ancestors and offsprings
+ * are not materialized, they are answered by a {@link ReachabilityIndex} over the
+ * parents and over the children. Ids, names and idcodes are held in
+ * {@link StringTable}s and decoded when asked for; classes are found by idcode
+ * through a sorted table of idcode hashes. The String keyed maps of
+ * {@link OntologyData} are offered as read-only views.
+ *
+ * A graph read from an {@link OntologySnapshot} keeps all tables in the memory
+ * mapped file, only the bit sets and the smarts plans are on the heap.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class OntologyGraph {
+
+	private final StringTable 		  ids;
+	private final StringTable 		  names;
+	private final StringTable 		  idcodes;
+	private final Rows 				  parents;
+	private final Rows 				  children;
+	private final ReachabilityIndex   ancestors;
+	private final ReachabilityIndex   offsprings;
+
+	private final SmartsPlan[] 		  smartsPlans;
+	private final BitSet 			  smarts;
+	private final BitSet 			  smartsEntries;
+	private final BitSet 			  checked;
+	private final BitSet 			  idcodeLeafs;
+	private final LongBuffer 		  idcodeHashes; 	//sorted distinct hashes of the idcodes
+	private final Rows 				  idcodeClasses; 	//classes per idcode hash
+
+	private OntologyGraph( OntologyData _oData ) {
+
+		//string table of all ids, including classes only referenced as parent or child
+		final TreeSet<String> idSet = new TreeSet<>();
+		idSet.addAll( _oData.getIdNameMap().keySet() );
+		idSet.addAll( _oData.getIdParentMap().keySet() );
+		idSet.addAll( _oData.getIdChildMap().keySet() );
+		_oData.getIdParentMap().values().forEach( idSet::addAll );
+		_oData.getIdChildMap().values().forEach( idSet::addAll );
+
+		final String[] idArray = idSet.toArray( new String[0] );
+		final int size = idArray.length;
+		final Map<String,Integer> index = new HashMap<>( size * 2 );
+		for ( int i = 0; i < size; i++ ) index.put( idArray[i], i );
+		ids = StringTable.of( idArray );
+
+		final String[] nameArray = new String[size];
+		_oData.getIdNameMap().forEach( ( id, name ) -> nameArray[index.get( id )] = name );
+		names = StringTable.of( nameArray );
+
+		parents 	= Rows.of( _oData.getIdParentMap(), index, size );
+		children 	= Rows.of( _oData.getIdChildMap(), index, size );
+		ancestors 	= ReachabilityIndex.build( size, parents );
+		offsprings 	= ReachabilityIndex.build( size, children );
+
+		final String[] idcodeArray = new String[size];
+		_oData.getIdIdcodeMap().forEach( ( id, idcode ) -> idcodeArray[index.get( id )] = idcode );
+		idcodes 	= StringTable.of( idcodeArray );
+
+		smartsPlans = new SmartsPlan[size];
+		smarts 		= new BitSet( size );
+		smartsEntries = new BitSet( size );
+		checked 	= new BitSet( size );
+		_oData.getIdSmartsMap().forEach( ( id, smartsList ) -> {
+			smartsEntries.set( index.get( id ) );
+			if ( !smartsList.isEmpty() ) smarts.set( index.get( id ) );
+		} );
+		_oData.getIdSmartsPlanMap().forEach( ( id, plan ) -> smartsPlans[index.get( id )] = plan );
+		for ( String id : _oData.getCheckSet() ) {
+			Integer i = index.get( id );
+			if ( i != null ) checked.set( i );
+		}
+
+		idcodeLeafs = new BitSet( size );
+		indexIdcodeLeafs();
+
+		//classes sorted by the hash of their idcode, then by index
+		final long[] hashes = new long[size];
+		for ( int i = idcodes.present().nextSetBit( 0 ); i >= 0; i = idcodes.present().nextSetBit( i + 1 ) ) {
+			hashes[i] = StrongHasher.hash( idcodeArray[i] );
+		}
+		final int[] byHash = idcodes.present().stream().boxed()
+				.sorted( Comparator.comparingLong( ( Integer i ) -> hashes[i] ).thenComparingInt( i -> i ) )
+				.mapToInt( Integer::intValue ).toArray();
+		final long[] distinct = new long[byHash.length];
+		final int[] offsets = new int[byHash.length + 1];
+		int rows = 0;
+		for ( int k = 0; k < byHash.length; k++ ) {
+			if ( k == 0 || hashes[byHash[k]] != distinct[rows - 1] ) {
+				offsets[rows] = k;
+				distinct[rows++] = hashes[byHash[k]];
+			}
+		}
+		offsets[rows] = byHash.length;
+		idcodeHashes 	= LongBuffer.wrap( distinct, 0, rows ).slice();
+		idcodeClasses 	= new Rows( IntBuffer.wrap( offsets, 0, rows + 1 ).slice(), IntBuffer.wrap( byHash ), new BitSet() );
+	}
+
+	/*
+	 * graph read from a snapshot, the smarts plans are set once compiled
+	 */
+	private OntologyGraph( StringTable _ids, StringTable _names, StringTable _idcodes, Rows _parents, Rows _children,
+			ReachabilityIndex _ancestors, ReachabilityIndex _offsprings, BitSet _smarts, BitSet _smartsEntries,
+			BitSet _checked, BitSet _idcodeLeafs, LongBuffer _idcodeHashes, Rows _idcodeClasses ) {
+		ids 		= _ids;
+		names 		= _names;
+		idcodes 	= _idcodes;
+		parents 	= _parents;
+		children 	= _children;
+		ancestors 	= _ancestors;
+		offsprings 	= _offsprings;
+		smartsPlans = new SmartsPlan[_ids.size()];
+		smarts 		= _smarts;
+		smartsEntries = _smartsEntries;
+		checked 	= _checked;
+		idcodeLeafs = _idcodeLeafs;
+		idcodeHashes  = _idcodeHashes;
+		idcodeClasses = _idcodeClasses;
+	}
+
+	/*
+	 * build the graph from the String keyed maps read from the obo file
+	 */
+	public static OntologyGraph build( OntologyData _oData ) {
+		return new OntologyGraph( _oData );
+	}
+
+	/*
+	 * binary form for the ontology snapshot, see {@link OntologySnapshot}
+	 */
+	void write( DataOutputStream _out ) throws IOException {
+		ids.write( _out );
+		names.write( _out );
+		idcodes.write( _out );
+		parents.write( _out );
+		children.write( _out );
+		ancestors.write( _out );
+		offsprings.write( _out );
+		OntologySnapshot.writeBits( _out, smarts );
+		OntologySnapshot.writeBits( _out, smartsEntries );
+		OntologySnapshot.writeBits( _out, checked );
+		OntologySnapshot.writeBits( _out, idcodeLeafs );
+		OntologySnapshot.writeLongs( _out, idcodeHashes );
+		idcodeClasses.write( _out );
+	}
+
+	static OntologyGraph read( ByteBuffer _in ) {
+		final StringTable ids 		= StringTable.read( _in );
+		final StringTable names 	= StringTable.read( _in );
+		final StringTable idcodes 	= StringTable.read( _in );
+		final Rows parents 			= Rows.read( _in );
+		final Rows children 		= Rows.read( _in );
+		final ReachabilityIndex ancestors  = ReachabilityIndex.read( _in );
+		final ReachabilityIndex offsprings = ReachabilityIndex.read( _in );
+		final BitSet smarts 		= OntologySnapshot.readBits( _in );
+		final BitSet smartsEntries 	= OntologySnapshot.readBits( _in );
+		final BitSet checked 		= OntologySnapshot.readBits( _in );
+		final BitSet idcodeLeafs 	= OntologySnapshot.readBits( _in );
+		final LongBuffer idcodeHashes = OntologySnapshot.readLongs( _in );
+		final Rows idcodeClasses 	= Rows.read( _in );
+		return new OntologyGraph( ids, names, idcodes, parents, children, ancestors, offsprings,
+				smarts, smartsEntries, checked, idcodeLeafs, idcodeHashes, idcodeClasses );
+	}
+
+	/*
+	 * plans compiled after the graph was read from a snapshot
+	 */
+	void setSmartsPlans( Map<String,SmartsPlan> _plans ) {
+		_plans.forEach( ( id, plan ) -> {
+			int i = indexOf( id );
+			if ( i >= 0 ) smartsPlans[i] = plan;
+		} );
+	}
+
+	public int 	   size() 					{ return ids.size(); }
+	public String  getId( int _i ) 			{ return ids.get( _i ); }
+	public String  getName( int _i ) 		{ return names.get( _i ); }
+	public boolean isNamed( int _i ) 		{ return names.has( _i ); }
+	public String  getIdcode( int _i ) 		{ return idcodes.get( _i ); }
+	public boolean hasIdcode( int _i ) 		{ return idcodes.has( _i ); }
+
+	/*
+	 * index of a class id, -1 if unknown
+	 */
+	public int indexOf( String _id ) {
+		return _id != null ? ids.binarySearch( _id ) : -1;
+	}
+
+	private int indexOfKey( Object _id ) {
+		return _id instanceof String ? indexOf( (String) _id ) : -1;
+	}
+
+	public int parentCount( int _i ) 				{ return parents.count( _i ); }
+	public int parent( int _i, int _k ) 			{ return parents.get( _i, _k ); }
+	public int childCount( int _i ) 				{ return children.count( _i ); }
+	public int child( int _i, int _k ) 				{ return children.get( _i, _k ); }
+	public int ancestorCount( int _i ) 					{ return ancestors.count( _i ); }
+	public int offspringCount( int _i ) 				{ return offsprings.count( _i ); }
+	public boolean isAncestor( int _i, int _ancestor ) 	{ return ancestors.reaches( _i, _ancestor ); }
+	public boolean isOffspring( int _i, int _offspring ) { return offsprings.reaches( _i, _offspring ); }
+	/*
+	 * id of the first class whose ancestors or offsprings differ from a search over its parents or children, null if none
+	 */
+	public String verify() {
+		int u = ancestors.verify( parents );
+		if ( u < 0 ) u = offsprings.verify( children );
+		return u < 0 ? null : ids.get( u );
+	}
+
+	public ReachabilityIndex getAncestors() 			{ return ancestors; }
+	public ReachabilityIndex getOffsprings() 			{ return offsprings; }
+
+	public boolean 	  hasSmarts( int _i ) 		{ return smarts.get( _i ); }
+	public BitSet 	  getSmarts() 				{ return smarts; }
+	public BitSet 	  getSmartsEntries() 		{ return smartsEntries; }
+	public SmartsPlan getSmartsPlan( int _i ) 	{ return smartsPlans[_i]; }
+	public boolean 	  isChecked( int _i ) 		{ return checked.get( _i ); }
+	public boolean 	  isIdcodeLeaf( int _i ) 	{ return idcodeLeafs.get( _i ); }
+	public int 		  idcodeLeafCount() 		{ return idcodeLeafs.cardinality(); }
+	public int 		  idcodeCount() 			{ return idcodeHashes.limit(); }
+
+	/*
+	 * add all classes with the idcode to the set
+	 */
+	public void addIdcodeClasses( String _idcode, BitSet _set ) {
+		final long hash = StrongHasher.hash( _idcode );
+		int lo = 0;
+		int hi = idcodeHashes.limit() - 1;
+		while ( lo <= hi ) {
+			final int mid = ( lo + hi ) >>> 1;
+			final long midHash = idcodeHashes.get( mid );
+			if ( midHash < hash ) lo = mid + 1;
+			else if ( midHash > hash ) hi = mid - 1;
+			else {
+				final byte[] idcode = _idcode.getBytes( StandardCharsets.UTF_8 );
+				for ( int k = 0; k < idcodeClasses.count( mid ); k++ ) {
+					final int i = idcodeClasses.get( mid, k );
+					if ( idcodes.equals( i, idcode ) ) _set.set( i );
+				}
+				return;
+			}
+		}
+	}
+
+	/*
+	 * true if all parents of the class are in the set
+	 */
+	public boolean parentsIn( int _i, BitSet _set ) {
+		for ( int k = parents.offsets.get( _i ), end = parents.offsets.get( _i + 1 ); k < end; k++ ) {
+			if ( !_set.get( parents.values.get( k ) ) ) return false;
+		}
+		return true;
+	}
+
+	public Map<String,Set<String>> getParentMap() 		{ return new RowsMap( parents ); }
+	public Map<String,Set<String>> getChildMap() 		{ return new RowsMap( children ); }
+	public Map<String,Set<String>> getAncestorsMap() 	{ return new ReachMap( ancestors ); }
+	public Map<String,Set<String>> getOffspringsMap() 	{ return new ReachMap( offsprings ); }
+	public Map<String,String> 	   getNameMap() 		{ return new TableMap( names ); }
+	public Map<String,String> 	   getIdcodeMap() 		{ return new TableMap( idcodes ); }
+
+	/*
+	 * Ring system classes assigned by their idcode alone: classes with idcode, without smarts and
+	 * without children, which are no parent of another class and are listed as child by all parents.
+	 * They are not traversed but looked up by the idcodes of the molecule.
+	 */
+	private void indexIdcodeLeafs() {
+		final BitSet isParent = new BitSet( size() );
+		for ( int k = 0; k < parents.values.limit(); k++ ) isParent.set( parents.values.get( k ) );
+
+		for ( int i = 0; i < size(); i++ ) {
+			if ( !idcodes.has( i ) || smarts.get( i ) || children.count( i ) > 0 || isParent.get( i ) ) continue;
+			if ( !parents.present.get( i ) || parents.count( i ) == 0 ) continue;
+			boolean childOfAllParents = true;
+			for ( int k = 0; k < parents.count( i ); k++ ) {
+				if ( !children.contains( parents.get( i, k ), i ) ) childOfAllParents = false;
+			}
+			if ( childOfAllParents ) idcodeLeafs.set( i );
+		}
+	}
+
+	/*
+	 * compressed sparse rows, the values of row i are values[offsets[i]..offsets[i+1]) in ascending order
+	 */
+	private final static class Rows implements ReachabilityIndex.Successors {
+		private final IntBuffer offsets;
+		private final IntBuffer values;
+		private final BitSet 	present;
+
+		private Rows( IntBuffer _offsets, IntBuffer _values, BitSet _present ) {
+			offsets = _offsets;
+			values 	= _values;
+			present = _present;
+		}
+
+		@Override
+		public int count( int _i ) 		  { return offsets.get( _i + 1 ) - offsets.get( _i ); }
+		@Override
+		public int get( int _i, int _k ) { return values.get( offsets.get( _i ) + _k ); }
+
+		void write( DataOutputStream _out ) throws IOException {
+			OntologySnapshot.writeInts( _out, offsets );
+			OntologySnapshot.writeInts( _out, values );
+			OntologySnapshot.writeBits( _out, present );
+		}
+
+		static Rows read( ByteBuffer _in ) {
+			return new Rows( OntologySnapshot.readInts( _in ), OntologySnapshot.readInts( _in ), OntologySnapshot.readBits( _in ) );
+		}
+
+		boolean contains( int _i, int _value ) {
+			int lo = offsets.get( _i );
+			int hi = offsets.get( _i + 1 ) - 1;
+			while ( lo <= hi ) {
+				final int mid = ( lo + hi ) >>> 1;
+				final int value = values.get( mid );
+				if ( value < _value ) lo = mid + 1;
+				else if ( value > _value ) hi = mid - 1;
+				else return true;
+			}
+			return false;
+		}
+
+		static Rows of( Map<String,Set<String>> _map, Map<String,Integer> _index, int _size ) {
+			final BitSet present = new BitSet( _size );
+			final int[][] rows = new int[_size][];
+			int total = 0;
+			for ( Map.Entry<String,Set<String>> entry : _map.entrySet() ) {
+				final int i = _index.get( entry.getKey() );
+				present.set( i );
+				if ( entry.getValue() == null ) continue;
+				rows[i] = entry.getValue().stream().mapToInt( _index::get ).sorted().toArray();
+				total += rows[i].length;
+			}
+			return pack( rows, total, present );
+		}
+
+		private static Rows pack( int[][] _rows, int _total, BitSet _present ) {
+			final int[] offsets = new int[_rows.length + 1];
+			final int[] values 	= new int[_total];
+			int pos = 0;
+			for ( int i = 0; i < _rows.length; i++ ) {
+				offsets[i] = pos;
+				if ( _rows[i] == null ) continue;
+				System.arraycopy( _rows[i], 0, values, pos, _rows[i].length );
+				pos += _rows[i].length;
+			}
+			offsets[_rows.length] = pos;
+			return new Rows( IntBuffer.wrap( offsets ), IntBuffer.wrap( values ), _present );
+		}
+	}
+
+	/*
+	 * read-only String view of one row
+	 */
+	private final class RowSet extends AbstractSet<String> {
+		private final Rows rows;
+		private final int  row;
+
+		RowSet( Rows _rows, int _row ) {
+			rows = _rows;
+			row  = _row;
+		}
+
+		@Override
+		public int size() { return rows.count( row ); }
+
+		@Override
+		public boolean contains( Object _id ) {
+			int i = indexOfKey( _id );
+			return i >= 0 && rows.contains( row, i );
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				private int k = rows.offsets.get( row );
+
+				@Override
+				public boolean hasNext() { return k < rows.offsets.get( row + 1 ); }
+
+				@Override
+				public String next() {
+					if ( !hasNext() ) throw new NoSuchElementException();
+					return ids.get( rows.values.get( k++ ) );
+				}
+			};
+		}
+	}
+
+	/*
+	 * read-only String keyed view of all rows, with the keys of the map the rows were built from
+	 */
+	private final class RowsMap extends AbstractMap<String,Set<String>> {
+		private final Rows rows;
+
+		RowsMap( Rows _rows ) { rows = _rows; }
+
+		@Override
+		public Set<String> get( Object _id ) {
+			int i = indexOfKey( _id );
+			return ( i >= 0 && rows.present.get( i ) ) ? new RowSet( rows, i ) : null;
+		}
+
+		@Override
+		public boolean containsKey( Object _id ) {
+			int i = indexOfKey( _id );
+			return i >= 0 && rows.present.get( i );
+		}
+
+		@Override
+		public int size() { return rows.present.cardinality(); }
+
+		@Override
+		public Set<Map.Entry<String,Set<String>>> entrySet() {
+			return new AbstractSet<Map.Entry<String,Set<String>>>() {
+				@Override
+				public int size() { return rows.present.cardinality(); }
+
+				@Override
+				public Iterator<Map.Entry<String,Set<String>>> iterator() {
+					return new BitIterator<Map.Entry<String,Set<String>>>( rows.present ) {
+						@Override
+						Map.Entry<String,Set<String>> get( int _i ) {
+							return new SimpleImmutableEntry<>( ids.get( _i ), new RowSet( rows, _i ) );
+						}
+					};
+				}
+			};
+		}
+	}
+
+	/*
+	 * read-only String view of the classes reachable from one class
+	 */
+	private final class ReachSet extends AbstractSet<String> {
+		private final ReachabilityIndex reach;
+		private final int 				row;
+
+		ReachSet( ReachabilityIndex _reach, int _row ) {
+			reach = _reach;
+			row   = _row;
+		}
+
+		@Override
+		public int size() { return reach.count( row ); }
+
+		@Override
+		public boolean contains( Object _id ) {
+			int i = indexOfKey( _id );
+			return i >= 0 && reach.reaches( row, i );
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			final BitSet reached = new BitSet( ids.size() );
+			reach.addReachable( row, reached );
+			return new BitIterator<String>( reached ) {
+				@Override
+				String get( int _i ) { return ids.get( _i ); }
+			};
+		}
+	}
+
+	/*
+	 * read-only String keyed view of ancestors or offsprings of the named classes
+	 */
+	private final class ReachMap extends AbstractMap<String,Set<String>> {
+		private final ReachabilityIndex reach;
+
+		ReachMap( ReachabilityIndex _reach ) { reach = _reach; }
+
+		@Override
+		public Set<String> get( Object _id ) {
+			int i = indexOfKey( _id );
+			return ( i >= 0 && names.has( i ) ) ? new ReachSet( reach, i ) : null;
+		}
+
+		@Override
+		public boolean containsKey( Object _id ) {
+			int i = indexOfKey( _id );
+			return i >= 0 && names.has( i );
+		}
+
+		@Override
+		public int size() { return names.present().cardinality(); }
+
+		@Override
+		public Set<Map.Entry<String,Set<String>>> entrySet() {
+			return new AbstractSet<Map.Entry<String,Set<String>>>() {
+				@Override
+				public int size() { return names.present().cardinality(); }
+
+				@Override
+				public Iterator<Map.Entry<String,Set<String>>> iterator() {
+					return new BitIterator<Map.Entry<String,Set<String>>>( names.present() ) {
+						@Override
+						Map.Entry<String,Set<String>> get( int _i ) {
+							return new SimpleImmutableEntry<>( ids.get( _i ), new ReachSet( reach, _i ) );
+						}
+					};
+				}
+			};
+		}
+	}
+
+	/*
+	 * read-only view of the class names or idcodes
+	 */
+	private final class TableMap extends AbstractMap<String,String> {
+		private final StringTable table;
+
+		TableMap( StringTable _table ) { table = _table; }
+
+		@Override
+		public String get( Object _id ) {
+			int i = indexOfKey( _id );
+			return i >= 0 ? table.get( i ) : null;
+		}
+
+		@Override
+		public boolean containsKey( Object _id ) {
+			int i = indexOfKey( _id );
+			return i >= 0 && table.has( i );
+		}
+
+		@Override
+		public Set<Map.Entry<String,String>> entrySet() {
+			return new AbstractSet<Map.Entry<String,String>>() {
+				@Override
+				public int size() { return table.present().cardinality(); }
+
+				@Override
+				public Iterator<Map.Entry<String,String>> iterator() {
+					return new BitIterator<Map.Entry<String,String>>( table.present() ) {
+						@Override
+						Map.Entry<String,String> get( int _i ) { return new SimpleImmutableEntry<>( ids.get( _i ), table.get( _i ) ); }
+					};
+				}
+			};
+		}
+	}
+
+	private static abstract class BitIterator<T> implements Iterator<T> {
+		private final BitSet bits;
+		private int next;
+
+		BitIterator( BitSet _bits ) {
+			bits = _bits;
+			next = _bits.nextSetBit( 0 );
+		}
+
+		abstract T get( int _i );
+
+		@Override
+		public boolean hasNext() { return next >= 0; }
+
+		@Override
+		public T next() {
+			if ( next < 0 ) throw new NoSuchElementException();
+			final int i = next;
+			next = bits.nextSetBit( i + 1 );
+			return get( i );
+		}
+	}
+}
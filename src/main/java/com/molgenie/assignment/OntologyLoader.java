@@ -20,13 +20,27 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
@@ -53,17 +67,100 @@ public class OntologyLoader {
 	    private final Map<String,Set<String>>  idAncestorsMap 		= new HashMap<String,Set<String>>();
 	    private final HashSet<String>  		   checkSet 			= new HashSet<String>();
 	    private String 				   		   rootId 				= null;
+	    private String 				   		   version 				= null;
+	    private byte[] 						   checksum 			= null;
+	    private final Map<String,SmartsPlan>   idSmartsPlanMap 		= new ConcurrentHashMap<>();
+	    private SmartsQueryTable 			   smartsQueries 		= null;
+	    private OntologyGraph 				   graph 				= null;
+	    private AssignmentCache 			   assignmentCache 		= null;
 	    
-	    public Map<String,String>       getIdNameMap()   		{ return idNameMap; }
-	    public Map<String,String>       getIdIdcodeMap()   		{ return idIdcodeMap; }
-	    public Map<String,Set<String>>  getIdChildMap()  		{ return idChildMap; }
+	    /*
+	     * hierarchy and names are views on the compact graph once it is built
+	     */
+	    public Map<String,String>       getIdNameMap()   		{ return graph != null ? graph.getNameMap() : idNameMap; }
+	    public Map<String,String>       getIdIdcodeMap()   		{ return graph != null ? graph.getIdcodeMap() : idIdcodeMap; }
+	    public Map<String,Set<String>>  getIdChildMap()  		{ return graph != null ? graph.getChildMap() : idChildMap; }
 	    public Map<String,List<String>> getIdSmartsMap() 		{ return idSmartsMap; }
 	    public Map<String,Set<String>>  getIdSmilesMap() 		{ return idSmilesMap; }
-	    public Map<String,Set<String>>  getIdParentMap() 		{ return idParentMap; }
-	    public Map<String,Set<String>>  getIdOffspringsMap()  	{ return idOffspringsMap; }
-	    public Map<String,Set<String>>  getIdAncestorsMap()  	{ return idAncestorsMap; }
+	    public Map<String,Set<String>>  getIdParentMap() 		{ return graph != null ? graph.getParentMap() : idParentMap; }
+	    public Map<String,Set<String>>  getIdOffspringsMap()  	{ return graph != null ? graph.getOffspringsMap() : idOffspringsMap; }
+	    public Map<String,Set<String>>  getIdAncestorsMap()  	{ return graph != null ? graph.getAncestorsMap() : idAncestorsMap; }
+	    public OntologyGraph 			getGraph() 				{ return graph; }
 	    public HashSet<String>          getCheckSet()   		{ return checkSet; }
 	    public String 					getRootId() 	 		{ return rootId; }
+	    public String 					getVersion() 	 		{ return version; }
+	    public byte[] 					getChecksum() 	 		{ return checksum; }
+	    public SmartsQueryTable 		getSmartsQueries() 		{ return smartsQueries; }
+	    public Map<String,SmartsPlan>   getIdSmartsPlanMap() 	{ return idSmartsPlanMap; }
+	    public AssignmentCache 			getAssignmentCache() 	{ return assignmentCache; }
+	    
+	    /*
+	     * compiled smarts queries, an empty table compiling on demand if the ontology smarts were not precompiled
+	     */
+	    public synchronized SmartsQueryTable getSmartsQueries( String _module ) {
+	    	if ( smartsQueries == null ) smartsQueries = new SmartsQueryTable( _module );
+	    	return smartsQueries;
+	    }
+	    
+	    /*
+	     * evaluation plan of the smarts of a class, null if the class has no smarts
+	     */
+	    public SmartsPlan getSmartsPlan( String _id, String _module ) {
+	    	final List<String> smartsList = idSmartsMap.get( _id );
+	    	if ( smartsList == null || smartsList.isEmpty() ) return null;
+	    	return idSmartsPlanMap.computeIfAbsent( _id, id -> SmartsPlan.compile( smartsList, getSmartsQueries( _module ) ) );
+	    }
+	    
+	    /*
+	     * compile the smarts of all classes into evaluation plans and parse their queries
+	     */
+	    public void compileSmartsPlans( String _module ) {
+	    	for ( String id : idSmartsMap.keySet() ) getSmartsPlan( id, _module );
+	    	getSmartsQueries( _module ).validateAll();
+	    }
+	    
+	    /*
+	     * Builds the compact graph and replaces the String keyed hierarchy maps by read-only views on it.
+	     * Parents, children and names must not be changed afterwards.
+	     */
+	    public void buildGraph() {
+	    	final OntologyGraph newGraph = OntologyGraph.build( this );
+	    	graph = newGraph;
+	    	idNameMap.clear();
+	    	idIdcodeMap.clear();
+	    	idChildMap.clear();
+	    	idParentMap.clear();
+	    	idOffspringsMap.clear();
+	    	idAncestorsMap.clear();
+	    }
+	    
+	    /*
+	     * replace the class ids, smarts and smiles by those of the pool, shared with the other loaded ontologies
+	     */
+	    public void internStrings( StringPool _pool ) {
+	    	final Map<String,List<String>> smarts = new HashMap<>( idSmartsMap );
+	    	idSmartsMap.clear();
+	    	smarts.forEach( ( id, smartsList ) -> idSmartsMap.put( _pool.intern( id ), _pool.intern( smartsList ) ) );
+	    	final Map<String,Set<String>> smiles = new HashMap<>( idSmilesMap );
+	    	idSmilesMap.clear();
+	    	smiles.forEach( ( id, smilesSet ) -> idSmilesMap.put( _pool.intern( id ), _pool.intern( smilesSet ) ) );
+	    	rootId 	= _pool.intern( rootId );
+	    	version = _pool.intern( version );
+	    }
+	    
+	    /*
+	     * add the queries of all compiled plans
+	     */
+	    public void collectSmartsQueries( Set<SmartsQuery> _queries ) {
+	    	for ( SmartsPlan plan : idSmartsPlanMap.values() ) plan.collectQueries( _queries );
+	    }
+	    
+	    /*
+	     * order the branches of all plans by their recorded cost and selectivity
+	     */
+	    public void orderSmartsPlans() {
+	    	for ( SmartsPlan plan : idSmartsPlanMap.values() ) plan.order();
+	    }
 	    
 	    public void setIdName(String _id,String _name)  					{idNameMap.put(_id,_name);}
 	    public void setIdIdcode(String _id,String _idcode)  				{idIdcodeMap.put(_id,_idcode);}
@@ -99,10 +196,38 @@ public class OntologyLoader {
 	    	}
 	    public void setCheckSet(HashSet<String> _idL) 						{ checkSet.addAll(_idL); }
 	    public void setRootId(String _id) 	 								{ rootId =_id; }
+	    public void setVersion(String _version) 							{ version = _version; }
+	    public void setChecksum(byte[] _checksum) 							{ checksum = _checksum; }
+	    void setGraph(OntologyGraph _graph) 								{ graph = _graph; }
+	    public void setSmartsQueries(SmartsQueryTable _queries) 			{ smartsQueries = _queries; }
+	    public void setAssignmentCache(AssignmentCache _cache) 			{ assignmentCache = _cache; }
 	}
 	
 	private final static Logger LOG = Logger.getLogger( OntologyLoader.class.getName() );
   
+	/*
+	 * SHA-256 of the ontology file as it is stored, compressed or not
+	 */
+	public static byte[] checksum( String _file ) throws IOException {
+		try ( InputStream in = Files.newInputStream( Path.of( _file ) ) ) {
+			final MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+			final byte[] buffer = new byte[1 << 16];
+			for ( int n = in.read( buffer ); n >= 0; n = in.read( buffer ) ) digest.update( buffer, 0, n );
+			return digest.digest();
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IOException( e );
+		}
+	}
+	
+	/* term stanzas parsed per task, and tasks queued ahead of the merge per parser thread */
+	private final static int STANZAS_PER_CHUNK 	= 256;
+	private final static int CHUNKS_AHEAD 		= 4;
+	
+	/**
+	 * Reads the gzipped obo file. The calling thread inflates the file and splits it into
+	 * chunks of [Term] stanzas, which are parsed in parallel and merged in file order,
+	 * so that a term given twice is taken from its last stanza as before.
+	 */
 	public static OntologyData readObo( String _inObo, String _module, boolean _aromatic ) throws IOException {
 		
 		final OntologyData ontData = new OntologyData();
@@ -110,163 +235,231 @@ public class OntologyLoader {
 		final boolean isModuleCdkOrAmbit = ChemLib.CHEMLIB_CDK.equals( _module.toLowerCase() ) 
 				|| ChemLib.CHEMLIB_AMBIT.equals( _module.toLowerCase() );
 		
-		FileInputStream inputStream = new FileInputStream(_inObo);
-		GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream);
-	    InputStreamReader inputStreamReader = new InputStreamReader(gzipInputStream);
-	    BufferedReader inFile = new BufferedReader(inputStreamReader);
+		final int threads = Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 );
+		final ExecutorService parsers = Executors.newFixedThreadPool( threads, r -> {
+			final Thread thread = new Thread( r, "obo-parser" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		final ArrayDeque<Future<List<Term>>> pending = new ArrayDeque<>();
 		
 		try ( BufferedReader inObo = new BufferedReader( 
 		                               new InputStreamReader( 
 		                                  new GZIPInputStream (
-		                                     new FileInputStream( new File( _inObo ) ) ), "UTF8" ) ); ) {
+		                                     new FileInputStream( new File( _inObo ) ), 1 << 16 ), StandardCharsets.UTF_8 ), 1 << 16 ) ) {
 		
+			List<String> chunk = new ArrayList<>();
+			int stanzas = 0;
+			boolean inTerm = false;
 	  		String inLine = null;
 	  		while ( ( inLine = inObo.readLine() ) != null ) {
 	  			
-	  			if ( inLine.startsWith( "[Term]" ) ) {
-	  				final List<String> smartsList	= new ArrayList<>();
-	  				final Set<String>  smilesSet	= new HashSet<>();
-	  				final Set<String>  childSet		= new HashSet<>();
-	  				final Set<String>  parentSet	= new HashSet<>();
-	  				final HashSet<String>  checkSet	= new HashSet<>();
-	  				String name 					= null;
-	  				String idcode					= null;
-	  				String id   					= null;
-	  				boolean obsolete 				= false;
-	  				boolean check					= true;
-	
-	  				String inConceptLine = null;
-	  				while ( ( inConceptLine = inObo.readLine() ) != null ) {
-	
-				        if ( inConceptLine.startsWith( "[" ) ) {
-				        	throw new IOException( "Start of new Stanza without previous empty line.");
-				        }
-			        
-				        if ( inConceptLine.trim().isEmpty() ) break;
-				        
-				        int tagSepOff = inConceptLine.indexOf( ':' );
-				        if ( tagSepOff < 2 ) continue;
-				        
-					    final String tag   = inConceptLine.substring( 0, tagSepOff );
-					    String value = inConceptLine.substring( tagSepOff + 1 ).trim();
-			        
-					    int commentSepOff = value.indexOf( " !" );
-					    if ( commentSepOff >= 0 ) {
-					    	value = value.substring( 0, commentSepOff ).trim();
-					    }
-					    
-					    if ( tag.startsWith( "is_obsolete" )) obsolete = true;
-			        
-				        if ( "id".equals( tag ) ) 			id = value;
-				        if ( checkSet.contains(id)) continue;
-				        
-				        else if ( "name".equals( tag ) ) 	name = value;
-				        else if ( "idcode".equals( tag ) ) 	{
-				        	idcode = value;
-				        	//String example = "f`yA@@@ILtsJmJrcZ\{sUUUSUT@@" MGN300044907;
-				        	
-				        	boolean prob = false;
-				        	if ( idcode.contains("\\\\\\\\") ) {
-				        		//System.out.println( "idcode o: "+ idcode);
-				        		idcode = idcode.replace("\\\\\\\\", "YYYY");
-				        		prob = true;
-				        	}
-				        	if ( idcode.contains("\\\\\\{") ) {
-				        		//System.out.println( "idcode o: "+ idcode);
-				        		idcode = idcode.replace("\\\\\\{", "WWWW");
-				        		prob = true;
-				        	}
-				        	while ( idcode.contains("\\{") ) {
-					        		//System.out.println( "idcode o: "+ idcode);
-					        		idcode = idcode.replace("\\{","{");
-					        		//System.out.println( "idcode n: "+ idcode);
-					        } 
-				        	if ( idcode.contains("\\\\\\}") ) {
-				        		//System.out.println( "idcode o: "+ idcode);
-				        		idcode = idcode.replace("\\\\\\}", "PPPP");
-				        		prob = true;
-				        	}
-				        	while ( idcode.contains("\\}") ) {
-				        		//System.out.println( "idcode o: "+ idcode);
-				        		idcode = idcode.replace("\\}","}");
-				        		//System.out.println( "idcode n: "+ idcode);
-				        	} 
-				        	
-				        	while ( idcode.contains("\\\\") ) {
-				        		//System.out.println( "\tidcode o: "+ idcode);
-				        		idcode = idcode.replace("\\\\","\\");
-				        		//System.out.println( "\tidcode n: "+ idcode);
-				        	} 
-				        	
-				        	if (prob) {
-				        		idcode = idcode.replace("WWWW","\\{");
-				        		idcode = idcode.replace("PPPP","\\}");
-				        		idcode = idcode.replace("YYYY","\\\\");
-				        		//System.out.println( "idcode n: "+ idcode);
-				        	}
-				        	if ( id.equals("MGN300046583")) idcode="f`iPQ@FZIPs`AF@aJZ[UY\\\\e[WjjjjYj`@@";
-				        }
-				        else if ( "smiles".equals( tag ) ) 	{
-				        	String smiles = value;
-				        	while ( smiles.contains("\\\\") ) {
-				        		//System.out.println( "\tsmiles o: "+ smiles);
-				        		smiles = smiles.replace("\\\\","\\");
-				        		//System.out.println( "\tsmiles n: "+ smiles);
-				        	} 
-				        	smilesSet.add( smiles ); 
-				        }
-				        else if ( "check".equals( tag ) ) 	{
-				        	if ( value.equals("false") ) checkSet.add(id);
-				        }
-					    else if ( "is_a".equals( tag ) ) 	parentSet.add( value ); 
-				        else if ( "has_a".equals( tag ) ) 	childSet.add( value );
-				        
-				        else if ( tag.endsWith( "smarts" ) ) {
-				        	String smarts = null;
-    						if ( isModuleCdkOrAmbit ) {
-    							if ( _aromatic ) {
-    								if ( inConceptLine.startsWith("ambit_aromsmarts: ") ) {
-    									smarts = inConceptLine.substring(18);
-    									//System.out.println( "smarts: "+ smarts);
-    								}
-    							} else {
-    								if ( inConceptLine.startsWith("ambit_smarts: ") ) {
-    									smarts = inConceptLine.substring(14);
-    									//System.out.println( "smarts: "+ smarts);
-    								}
-    							}
-    						}
-    						
-    						if ( smarts != null ) {
-	    						if ( smarts.contains(" ! ")) {
-	    							int startS = smarts.indexOf(" ! ");
-	    							smarts = smarts.substring(0,startS);
-	    						}
-	    						smarts = smarts.replace("\\!","!");
-	    						smarts = smarts.replace("\\\\","\\");
-	    						//System.out.println( smarts );
-	    						smartsList.add( smarts );
-    						}
-				        }
-	  				}
-			      
-	  				if ( id != null ) {
-			            if ( obsolete ) continue;
-			            if ( name != null ) ontData.setIdName( id, name );
-			  		    if ( idcode != null ) ontData.setIdIdcode( id, idcode );
-			  		    if ( childSet != null ) ontData.setIdChildrenMap( id, childSet );
-			  		    if ( smilesSet != null ) ontData.setIdSmilesMap( id, smilesSet );
-			  		    ontData.setIdParentsMap( id, parentSet );
-			  		    ontData.setIdSmartsMap( id, smartsList );
-			  		    ontData.setCheckSet( checkSet );
-			            obsolete = false;
+	  			if ( inTerm ) {
+	  				if ( inLine.startsWith( "[" ) ) {
+	  					throw new IOException( "Start of new Stanza without previous empty line.");
 	  				}
+	  				chunk.add( inLine );
+	  				if ( !inLine.trim().isEmpty() ) continue;
+	  				inTerm = false;
+	  				if ( ++stanzas < STANZAS_PER_CHUNK ) continue;
+	  				
+	  				final List<String> lines = chunk;
+	  				pending.add( parsers.submit( () -> parseTerms( lines, isModuleCdkOrAmbit, _aromatic ) ) );
+	  				chunk = new ArrayList<>();
+	  				stanzas = 0;
+	  				//keep the parsed chunks waiting for the merge bounded
+	  				while ( pending.size() > threads * CHUNKS_AHEAD ) mergeTerms( ontData, pending.poll() );
+	  				continue;
+	  			}
+	  			
+	  			if ( inLine.startsWith( "data-version:" ) ) {
+	  				ontData.setVersion( inLine.substring( 13 ).trim() );
 	  			}
+	  			if ( inLine.startsWith( "[Term]" ) ) inTerm = true;
 	  		}
+	  		if ( !chunk.isEmpty() ) pending.add( CompletableFuture.completedFuture( parseTerms( chunk, isModuleCdkOrAmbit, _aromatic ) ) );
+	  		while ( !pending.isEmpty() ) mergeTerms( ontData, pending.poll() );
+		} finally {
+			parsers.shutdownNow();
 		}
 		return ontData;
 	}
 	
+	/*
+	 * one [Term] stanza as parsed by a worker thread
+	 */
+	private final static class Term {
+		private final List<String> smartsList	= new ArrayList<>();
+		private final Set<String>  smilesSet	= new HashSet<>();
+		private final Set<String>  childSet		= new HashSet<>();
+		private final Set<String>  parentSet	= new HashSet<>();
+		private HashSet<String>    checkSet		= null;
+		private String name 					= null;
+		private String idcode					= null;
+		private String id   					= null;
+	}
+	
+	private static void mergeTerms( OntologyData _ontData, Future<List<Term>> _terms ) throws IOException {
+		final List<Term> terms;
+		try {
+			terms = _terms.get();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "reading of the ontology interrupted" );
+		} catch ( ExecutionException e ) {
+			if ( e.getCause() instanceof RuntimeException ) throw ( RuntimeException ) e.getCause();
+			throw new IOException( e.getCause() );
+		}
+		for ( Term term : terms ) {
+			if ( term.name != null ) _ontData.setIdName( term.id, term.name );
+			if ( term.idcode != null ) _ontData.setIdIdcode( term.id, term.idcode );
+			_ontData.setIdChildrenMap( term.id, term.childSet );
+			_ontData.setIdSmilesMap( term.id, term.smilesSet );
+			_ontData.setIdParentsMap( term.id, term.parentSet );
+			_ontData.setIdSmartsMap( term.id, term.smartsList );
+			if ( term.checkSet != null ) _ontData.setCheckSet( term.checkSet );
+		}
+	}
+	
+	/*
+	 * stanza lines without their [Term] line, each stanza ends with an empty line or the end of the chunk
+	 */
+	private static List<Term> parseTerms( List<String> _lines, boolean _isModuleCdkOrAmbit, boolean _aromatic ) {
+		final List<Term> terms = new ArrayList<>( STANZAS_PER_CHUNK );
+		Term term = new Term();
+		boolean obsolete = false;
+		for ( String inConceptLine : _lines ) {
+			
+	        if ( inConceptLine.trim().isEmpty() ) {
+	        	if ( term.id != null && !obsolete ) terms.add( term );
+	        	term = new Term();
+	        	obsolete = false;
+	        	continue;
+	        }
+	        
+	        final int tagSepOff = inConceptLine.indexOf( ':' );
+	        if ( tagSepOff < 2 ) continue;
+	        
+		    if ( tagSepOff >= 11 && inConceptLine.startsWith( "is_obsolete" ) ) obsolete = true;
+        
+	        if ( isTag( inConceptLine, tagSepOff, "id" ) ) 	term.id = value( inConceptLine, tagSepOff );
+	        if ( term.checkSet != null && term.checkSet.contains( term.id ) ) continue;
+	        
+	        else if ( isTag( inConceptLine, tagSepOff, "name" ) ) 		term.name = value( inConceptLine, tagSepOff );
+	        else if ( isTag( inConceptLine, tagSepOff, "idcode" ) ) {
+	        	term.idcode = unescapeIdcode( value( inConceptLine, tagSepOff ) );
+	        	if ( "MGN300046583".equals( term.id ) ) term.idcode = "f`iPQ@FZIPs`AF@aJZ[UY\\\\e[WjjjjYj`@@";
+	        }
+	        else if ( isTag( inConceptLine, tagSepOff, "smiles" ) ) 	term.smilesSet.add( unescapeSmiles( value( inConceptLine, tagSepOff ) ) );
+	        else if ( isTag( inConceptLine, tagSepOff, "check" ) ) {
+	        	if ( "false".equals( value( inConceptLine, tagSepOff ) ) ) {
+	        		if ( term.checkSet == null ) term.checkSet = new HashSet<>();
+	        		term.checkSet.add( term.id );
+	        	}
+	        }
+		    else if ( isTag( inConceptLine, tagSepOff, "is_a" ) ) 		term.parentSet.add( value( inConceptLine, tagSepOff ) ); 
+	        else if ( isTag( inConceptLine, tagSepOff, "has_a" ) ) 		term.childSet.add( value( inConceptLine, tagSepOff ) );
+	        
+	        else if ( tagSepOff >= 6 && inConceptLine.startsWith( "smarts", tagSepOff - 6 ) ) {
+	        	String smarts = null;
+				if ( _isModuleCdkOrAmbit ) {
+					if ( _aromatic ) {
+						if ( inConceptLine.startsWith("ambit_aromsmarts: ") ) smarts = inConceptLine.substring(18);
+					} else {
+						if ( inConceptLine.startsWith("ambit_smarts: ") ) smarts = inConceptLine.substring(14);
+					}
+				}
+				if ( smarts != null ) {
+					final int startS = smarts.indexOf(" ! ");
+					term.smartsList.add( unescapeSmarts( startS >= 0 ? smarts.substring(0,startS) : smarts ) );
+				}
+	        }
+		}
+		if ( term.id != null && !obsolete ) terms.add( term );
+		return terms;
+	}
+	
+	private static boolean isTag( String _line, int _tagSepOff, String _tag ) {
+		return _tagSepOff == _tag.length() && _line.startsWith( _tag );
+	}
+	
+	/*
+	 * trimmed value after the tag, without a trailing " !" comment
+	 */
+	private static String value( String _line, int _tagSepOff ) {
+		int start = _tagSepOff + 1;
+		int end   = _line.length();
+		while ( start < end && _line.charAt( start ) <= ' ' ) start++;
+		while ( end > start && _line.charAt( end - 1 ) <= ' ' ) end--;
+		final int commentSepOff = _line.indexOf( " !", start );
+		if ( commentSepOff >= 0 && commentSepOff < end ) {
+			end = commentSepOff;
+			while ( end > start && _line.charAt( end - 1 ) <= ' ' ) end--;
+		}
+		return _line.substring( start, end );
+	}
+	
+	/*
+	 * Single pass over the escaped idcode, for a run of k backslashes: every four are kept as
+	 * two, the rest is dropped before { or } unless it is three, and kept as one otherwise.
+	 */
+	static String unescapeIdcode( String _idcode ) {
+		if ( _idcode.indexOf( '\\' ) < 0 ) return _idcode;
+		final StringBuilder idcode = new StringBuilder( _idcode.length() );
+		int i = 0;
+		while ( i < _idcode.length() ) {
+			final char c = _idcode.charAt( i );
+			if ( c != '\\' ) {
+				idcode.append( c );
+				i++;
+				continue;
+			}
+			final int start = i;
+			while ( i < _idcode.length() && _idcode.charAt( i ) == '\\' ) i++;
+			final int run = i - start;
+			for ( int k = run / 4; k > 0; k-- ) idcode.append( "\\\\" );
+			final boolean brace = i < _idcode.length() && ( _idcode.charAt( i ) == '{' || _idcode.charAt( i ) == '}' );
+			if ( brace ? run % 4 == 3 : run % 4 > 0 ) idcode.append( '\\' );
+		}
+		return idcode.toString();
+	}
+	
+	/*
+	 * runs of backslashes are kept as one
+	 */
+	static String unescapeSmiles( String _smiles ) {
+		if ( _smiles.indexOf( '\\' ) < 0 ) return _smiles;
+		final StringBuilder smiles = new StringBuilder( _smiles.length() );
+		for ( int i = 0; i < _smiles.length(); i++ ) {
+			final char c = _smiles.charAt( i );
+			if ( c != '\\' || i == 0 || _smiles.charAt( i - 1 ) != '\\' ) smiles.append( c );
+		}
+		return smiles.toString();
+	}
+	
+	/*
+	 * \! is read as ! and \\ as \, in one pass
+	 */
+	static String unescapeSmarts( String _smarts ) {
+		if ( _smarts.indexOf( '\\' ) < 0 ) return _smarts;
+		final StringBuilder smarts = new StringBuilder( _smarts.length() );
+		int i = 0;
+		while ( i < _smarts.length() ) {
+			final char c = _smarts.charAt( i );
+			if ( c != '\\' ) {
+				smarts.append( c );
+				i++;
+				continue;
+			}
+			final int start = i;
+			while ( i < _smarts.length() && _smarts.charAt( i ) == '\\' ) i++;
+			int run = i - start;
+			if ( i < _smarts.length() && _smarts.charAt( i ) == '!' ) run--;
+			for ( int k = ( run + 1 ) / 2; k > 0; k-- ) smarts.append( '\\' );
+		}
+		return smarts.toString();
+	}
+	
 	public static void main( String[] _args ) throws Exception {
 		readObo( _args[0], _args[1], Boolean.valueOf( _args[2] )  );
 	}
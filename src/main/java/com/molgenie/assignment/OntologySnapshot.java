@@ -0,0 +1,251 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+
+/**
+ * Binary snapshot of a loaded ontology, written by the compile-ontology command
+ * and read at startup instead of parsing the obo file.
+ *
+ * The snapshot holds the string tables, the parent and child rows and the two
+ * reachability indices of the {@link OntologyGraph}, the idcode leaf classes and
+ * the smarts and smiles of all classes. The file is memory mapped read-only and
+ * the graph tables stay in the mapping: they are not copied to the heap, and
+ * processes mapping the same snapshot share its pages in the page cache.
+ * The parsed Ambit and CDK queries can not be stored, the smarts plans are
+ * compiled from the stored smarts at load time.
+ *
+ * The snapshot starts with the SHA-256 checksum of the obo file it was compiled
+ * from; a snapshot of another file or of another format version is not used.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class OntologySnapshot {
+
+	private final static Logger LOG = Logger.getLogger( OntologySnapshot.class.getName() );
+
+	private final static int MAGIC 	= 0x4D474F53; // MGOS
+	/* increase with every change of the layout */
+	private final static int FORMAT = 2;
+
+	private OntologySnapshot() {}
+
+	/**
+	 * Writes the snapshot of an ontology with its graph built, replacing an existing file atomically.
+	 */
+	public static void write( OntologyData _oData, String _filename ) throws IOException {
+		final OntologyGraph graph = _oData.getGraph();
+		if ( graph == null || _oData.getChecksum() == null ) throw new IOException( "ontology graph not built" );
+		final Path file = Path.of( _filename ).toAbsolutePath();
+		//a file of its own, processes loading the same release write their snapshots side by side
+		final Path tmp 	= Files.createTempFile( file.getParent(), file.getFileName().toString(), ".tmp" );
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ), 1 << 16 ) ) ) {
+			out.writeInt( MAGIC );
+			out.writeInt( FORMAT );
+			out.write( _oData.getChecksum() );
+			writeString( out, _oData.getVersion() );
+			writeString( out, _oData.getRootId() );
+			graph.write( out );
+			writeLists( out, _oData.getIdSmartsMap() );
+			writeLists( out, _oData.getIdSmilesMap() );
+			out.close();
+			Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	/**
+	 * Reads the snapshot of the obo file with the given checksum, null if there is none or it is out of date.
+	 * The smarts plans of the returned ontology are not compiled yet.
+	 */
+	public static OntologyData read( String _filename, byte[] _checksum ) throws IOException {
+		final Path file = Path.of( _filename );
+		if ( !Files.isRegularFile( file ) ) return null;
+		final ByteBuffer in;
+		try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+			in = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+		}
+		if ( in.remaining() < 8 + _checksum.length || in.getInt() != MAGIC || in.getInt() != FORMAT ) {
+			LOG.info( "snapshot of another format: " + _filename );
+			return null;
+		}
+		final byte[] checksum = new byte[_checksum.length];
+		in.get( checksum );
+		if ( !Arrays.equals( checksum, _checksum ) ) {
+			LOG.info( "snapshot out of date: " + _filename );
+			return null;
+		}
+
+		final OntologyData ontData = new OntologyData();
+		ontData.setChecksum( _checksum );
+		ontData.setVersion( readString( in ) );
+		ontData.setRootId( readString( in ) );
+		final OntologyGraph graph = OntologyGraph.read( in );
+		for ( Map.Entry<String,List<String>> entry : readLists( in ).entrySet() ) {
+			ontData.setIdSmartsMap( entry.getKey(), entry.getValue() );
+		}
+		for ( Map.Entry<String,List<String>> entry : readLists( in ).entrySet() ) {
+			ontData.setIdSmilesMap( entry.getKey(), new HashSet<>( entry.getValue() ) );
+		}
+		final HashSet<String> checkSet = new HashSet<>();
+		for ( int i = 0; i < graph.size(); i++ ) {
+			if ( graph.isChecked( i ) ) checkSet.add( graph.getId( i ) );
+		}
+		ontData.setCheckSet( checkSet );
+		ontData.setGraph( graph );
+		return ontData;
+	}
+
+	/*
+	 * id, then the strings of each entry
+	 */
+	private static void writeLists( DataOutputStream _out, Map<String,? extends Collection<String>> _map ) throws IOException {
+		_out.writeInt( _map.size() );
+		for ( Map.Entry<String,? extends Collection<String>> entry : _map.entrySet() ) {
+			writeString( _out, entry.getKey() );
+			_out.writeInt( entry.getValue().size() );
+			for ( String value : entry.getValue() ) writeString( _out, value );
+		}
+	}
+
+	private static Map<String,List<String>> readLists( ByteBuffer _in ) {
+		final int size = _in.getInt();
+		final Map<String,List<String>> map = new HashMap<>( size * 2 );
+		for ( int e = 0; e < size; e++ ) {
+			final String id = readString( _in );
+			final int count = _in.getInt();
+			final List<String> values = new ArrayList<>( count );
+			for ( int k = 0; k < count; k++ ) values.add( readString( _in ) );
+			map.put( id, values );
+		}
+		return map;
+	}
+
+	/*
+	 * utf-8 bytes after their length, -1 for null
+	 */
+	static void writeString( DataOutputStream _out, String _value ) throws IOException {
+		if ( _value == null ) {
+			_out.writeInt( -1 );
+			return;
+		}
+		final byte[] bytes = _value.getBytes( StandardCharsets.UTF_8 );
+		_out.writeInt( bytes.length );
+		_out.write( bytes );
+	}
+
+	static String readString( ByteBuffer _in ) {
+		final int length = _in.getInt();
+		if ( length < 0 ) return null;
+		final byte[] bytes = new byte[length];
+		_in.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	/*
+	 * arrays start at a multiple of 8 bytes from the start of the file, so that mapped views are aligned
+	 */
+	private static void align( DataOutputStream _out ) throws IOException {
+		while ( _out.size() % 8 != 0 ) _out.writeByte( 0 );
+	}
+
+	private static void align( ByteBuffer _in ) {
+		_in.position( ( _in.position() + 7 ) & ~7 );
+	}
+
+	static void writeInts( DataOutputStream _out, IntBuffer _values ) throws IOException {
+		_out.writeInt( _values.limit() );
+		align( _out );
+		for ( int i = 0; i < _values.limit(); i++ ) _out.writeInt( _values.get( i ) );
+	}
+
+	/*
+	 * view on the ints in the snapshot, not copied
+	 */
+	static IntBuffer readInts( ByteBuffer _in ) {
+		final int length = _in.getInt();
+		align( _in );
+		final IntBuffer values = _in.slice( _in.position(), 4 * length ).asIntBuffer();
+		_in.position( _in.position() + 4 * length );
+		return values;
+	}
+
+	static void writeLongs( DataOutputStream _out, LongBuffer _values ) throws IOException {
+		_out.writeInt( _values.limit() );
+		align( _out );
+		for ( int i = 0; i < _values.limit(); i++ ) _out.writeLong( _values.get( i ) );
+	}
+
+	static LongBuffer readLongs( ByteBuffer _in ) {
+		final int length = _in.getInt();
+		align( _in );
+		final LongBuffer values = _in.slice( _in.position(), 8 * length ).asLongBuffer();
+		_in.position( _in.position() + 8 * length );
+		return values;
+	}
+
+	static void writeBytes( DataOutputStream _out, ByteBuffer _values ) throws IOException {
+		final byte[] bytes = new byte[_values.limit()];
+		_values.get( 0, bytes );
+		_out.writeInt( bytes.length );
+		_out.write( bytes );
+	}
+
+	static ByteBuffer readBytes( ByteBuffer _in ) {
+		final int length = _in.getInt();
+		final ByteBuffer values = _in.slice( _in.position(), length );
+		_in.position( _in.position() + length );
+		return values;
+	}
+
+	static void writeBits( DataOutputStream _out, BitSet _bits ) throws IOException {
+		final long[] words = _bits.toLongArray();
+		_out.writeInt( words.length );
+		for ( long word : words ) _out.writeLong( word );
+	}
+
+	static BitSet readBits( ByteBuffer _in ) {
+		final long[] words = new long[_in.getInt()];
+		_in.asLongBuffer().get( words );
+		_in.position( _in.position() + 8 * words.length );
+		return BitSet.valueOf( words );
+	}
+}
@@ -0,0 +1,182 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import com.molgenie.smiles2concepts.models.common.Molecule2ringsystem;
+
+import ambit2.smarts.SmartsHelper;
+
+/**
+ * Input molecule of one assignment request, parsed and aromatized once and
+ * shared by all substructure searches of that request. A request classified
+ * against several ontology versions uses one prepared molecule for all of them:
+ * the containers, the ring system idcodes and the result of every query already
+ * searched are kept, and the query tables of the versions share their queries.
+ *
+ * The aromatized CDK container is used for the Ambit searches, the kekulized
+ * container for the CDK stereo searches and the container with explicit
+ * hydrogens for the Ambit group counting (EXACT, MORE). The latter two are
+ * only built when a query needs them.
+ *
+ * A prepared molecule is not thread-safe, the searches set properties on the
+ * target atoms.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public class PreparedMolecule {
+
+	private final static Logger LOG = Logger.getLogger( PreparedMolecule.class.getName() );
+
+	private final String  		smiles;
+	private final boolean 		aromatic;
+	private IAtomContainer 		molecule 			= null;
+	private IAtomContainer 		kekulizedMolecule 	= null;
+	private IAtomContainer 		explicitHMolecule 	= null;
+	private long[] 				features 			= null;
+	private int[] 				counts 				= null;
+	private boolean 			moleculePrepared 	= false;
+	private boolean 			kekulizedPrepared 	= false;
+	private boolean 			explicitHPrepared 	= false;
+	private Set<String> 		ringSystems 		= null;
+	private int 				searches 			= 0;
+	private final Map<SmartsQuery,Integer> results 	= new IdentityHashMap<>();
+
+	private PreparedMolecule( String _smiles, boolean _aromatic ) {
+		smiles 		= _smiles;
+		aromatic 	= _aromatic;
+	}
+
+	/*
+	 * the molecule of the smiles, parsed with aromaticity and ring perception on first use by a search
+	 */
+	public static PreparedMolecule prepare( String _smiles, boolean _aromatic ) {
+		return new PreparedMolecule( _smiles, _aromatic );
+	}
+
+	public String  getSmiles() 	{ return smiles; }
+	public boolean isAromatic() { return aromatic; }
+
+	/*
+	 * aromatized CDK container used by Ambit substructure search, null if the smiles could not be parsed
+	 */
+	public IAtomContainer getMolecule() {
+		if ( !moleculePrepared ) {
+			moleculePrepared = true;
+			final long start = System.nanoTime();
+			molecule = StructureSearchEngine.SmilesHandler( smiles, aromatic );
+			if ( molecule != null ) {
+				try {
+					Cycles.markRingAtomsAndBonds( molecule );
+				} catch ( Exception e ) {
+					LOG.info( "ERROR: ring perception error: " + smiles + " " + e );
+				}
+			}
+			AssignmentMetrics.CDK_PREPARATION.recordSince( start );
+		}
+		return molecule;
+	}
+
+	/*
+	 * OpenChemLib idcodes of the ring systems of the molecule
+	 */
+	public Set<String> getRingSystems() throws IOException {
+		if ( ringSystems == null ) {
+			final long start = System.nanoTime();
+			ringSystems = Molecule2ringsystem.smiles2ringsystem( smiles );
+			AssignmentMetrics.RING_SYSTEMS.recordSince( start );
+		}
+		return ringSystems;
+	}
+
+	/*
+	 * result of a query searched before in this molecule, by another class or another ontology version
+	 */
+	Integer getResult( SmartsQuery _query ) 			{ return results.get( _query ); }
+	void 	setResult( SmartsQuery _query, int _result ) 	{ results.put( _query, _result ); }
+
+	/*
+	 * number of graph matches run on this molecule
+	 */
+	void 	countSearch() 		{ searches++; }
+	int 	getSearchCount() 	{ return searches; }
+
+	/*
+	 * structural feature bits for the query pre-screen, null if the smiles could not be parsed
+	 */
+	public long[] getFeatures() {
+		if ( features == null && getMolecule() != null ) {
+			features = SmartsFeatures.ofMolecule( molecule );
+			//without aromatization the aromatic atoms are not known, let all aromatic queries pass
+			if ( !aromatic ) features[2] = ~0L;
+		}
+		return features;
+	}
+
+	/*
+	 * element counts, rings and aromatic atoms for the count pre-filter, null if the smiles could not be parsed
+	 */
+	public int[] getCounts() {
+		if ( counts == null && getMolecule() != null ) {
+			counts = SmartsCounts.ofMolecule( molecule );
+			if ( !aromatic ) counts[SmartsCounts.AROMATIC] = Integer.MAX_VALUE;
+		}
+		return counts;
+	}
+
+	/*
+	 * kekulized CDK container used by the CDK stereo search path
+	 */
+	public IAtomContainer getKekulizedMolecule() {
+		if ( !kekulizedPrepared ) {
+			kekulizedPrepared = true;
+			final long start = System.nanoTime();
+			try {
+				kekulizedMolecule = StructureSearchEngine.getCdkSmilesParser().parseSmiles( smiles );
+			} catch ( Exception e ) {
+				LOG.info( "ERROR: CDK smiles parser error: " + smiles );
+			}
+			AssignmentMetrics.CDK_PREPARATION.recordSince( start );
+		}
+		return kekulizedMolecule;
+	}
+
+	/*
+	 * CDK container with explicit hydrogens used by Ambit group matching
+	 */
+	public IAtomContainer getExplicitHMolecule() {
+		if ( !explicitHPrepared ) {
+			explicitHPrepared = true;
+			final long start = System.nanoTime();
+			try {
+				explicitHMolecule = SmartsHelper.getMoleculeFromSmiles( smiles, true );
+			} catch ( Exception e ) {
+				LOG.info( "ERROR: Ambit smiles parser error: " + smiles );
+			}
+			AssignmentMetrics.CDK_PREPARATION.recordSince( start );
+		}
+		return explicitHMolecule;
+	}
+}
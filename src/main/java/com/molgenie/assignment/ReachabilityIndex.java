@@ -0,0 +1,337 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * Reachability index of a directed acyclic graph by interval labelling.
+ *
+ * The nodes are numbered in post order of a depth first search spanning forest.
+ * All nodes reachable from a node are covered by a few intervals of post order
+ * numbers: the interval of its spanning subtree joined with the intervals of its
+ * successors, merged where they overlap or touch. For a hierarchy mostly shaped
+ * like a tree a node has one or very few intervals, so a reachability test is a
+ * binary search and no closure set is kept in memory. The intervals are merged
+ * once in topological order, reusing those of the successors; nodes of the same
+ * level do not depend on each other and large levels are merged in parallel.
+ *
+ * A node does not reach itself. The graph is given as successor lists, the parent
+ * lists give the ancestors, the child lists the offsprings.
+ *
+ * The tables are int buffers, on the heap when built or memory mapped when read
+ * from an {@link OntologySnapshot}. They are only read by absolute index.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class ReachabilityIndex {
+
+	public interface Successors {
+		int count( int _node );
+		int get( int _node, int _k );
+	}
+
+	/* levels with fewer nodes are merged on the calling thread */
+	private final static int PARALLEL_LEVEL = 2048;
+
+	private final IntBuffer post; 		//node -> post order number
+	private final IntBuffer node; 		//post order number -> node
+	private final IntBuffer offsets; 	//node -> first interval
+	private final IntBuffer bounds; 	//interval -> low, high post order number, inclusive
+
+	private ReachabilityIndex( IntBuffer _post, IntBuffer _node, IntBuffer _offsets, IntBuffer _bounds ) {
+		post 	= _post;
+		node 	= _node;
+		offsets = _offsets;
+		bounds 	= _bounds;
+	}
+
+	public static ReachabilityIndex build( int _size, Successors _successors ) {
+
+		final int[]  post  = new int[_size];
+		final int[]  node  = new int[_size];
+		final int[]  start = new int[_size]; 	//lowest post order number of the spanning subtree
+		final byte[] state = new byte[_size]; 	//0 new, 1 on stack, 2 done
+
+		//roots first, then nodes left over on cycles
+		final boolean[] reached = new boolean[_size];
+		for ( int u = 0; u < _size; u++ ) {
+			for ( int k = 0; k < _successors.count( u ); k++ ) reached[_successors.get( u, k )] = true;
+		}
+		final int[] stackNode = new int[_size];
+		final int[] stackNext = new int[_size];
+		int counter = 0;
+		for ( int pass = 0; pass < 2; pass++ ) {
+			for ( int root = 0; root < _size; root++ ) {
+				if ( state[root] != 0 || ( pass == 0 && reached[root] ) ) continue;
+				int top = 0;
+				state[root] = 1;
+				start[root] = counter;
+				stackNode[top] = root;
+				stackNext[top++] = 0;
+				while ( top > 0 ) {
+					final int u = stackNode[top - 1];
+					if ( stackNext[top - 1] < _successors.count( u ) ) {
+						final int v = _successors.get( u, stackNext[top - 1]++ );
+						if ( state[v] == 0 ) {
+							state[v] = 1;
+							start[v] = counter;
+							stackNode[top] = v;
+							stackNext[top++] = 0;
+						}
+					} else {
+						state[u] = 2;
+						post[u] = counter;
+						node[counter++] = u;
+						top--;
+					}
+				}
+			}
+		}
+
+		//level of a node: one above its highest successor numbered before it, back edges of cycles are skipped
+		final int[] level = new int[_size];
+		int levels = 0;
+		for ( int p = 0; p < _size; p++ ) {
+			final int u = node[p];
+			for ( int k = 0; k < _successors.count( u ); k++ ) {
+				final int v = _successors.get( u, k );
+				if ( post[v] < p && level[v] >= level[u] ) level[u] = level[v] + 1;
+			}
+			if ( level[u] >= levels ) levels = level[u] + 1;
+		}
+		final int[] levelStart = new int[levels + 1];
+		for ( int u = 0; u < _size; u++ ) levelStart[level[u] + 1]++;
+		for ( int l = 0; l < levels; l++ ) levelStart[l + 1] += levelStart[l];
+		final int[] byLevel = Arrays.copyOf( levelStart, levels );
+		final int[] levelNode = new int[_size];
+		for ( int p = 0; p < _size; p++ ) levelNode[byLevel[level[node[p]]]++] = node[p];
+
+		//intervals level by level, the nodes of a level only depend on lower levels
+		final int[][] intervals = new int[_size][];
+		for ( int l = 0; l < levels; l++ ) {
+			final IntStream nodes = IntStream.range( levelStart[l], levelStart[l + 1] ).map( i -> levelNode[i] );
+			( levelStart[l + 1] - levelStart[l] >= PARALLEL_LEVEL ? nodes.parallel() : nodes )
+				.forEach( u -> intervals[post[u]] = intervals( u, post, start, intervals, _successors ) );
+		}
+		int total = 0;
+		for ( int[] own : intervals ) total += own.length;
+
+		final int[] offsets = new int[_size + 1];
+		final int[] bounds 	= new int[total];
+		int pos = 0;
+		for ( int u = 0; u < _size; u++ ) {
+			final int[] own = intervals[post[u]];
+			offsets[u] = pos / 2;
+			System.arraycopy( own, 0, bounds, pos, own.length );
+			pos += own.length;
+		}
+		offsets[_size] = pos / 2;
+		return new ReachabilityIndex( IntBuffer.wrap( post ), IntBuffer.wrap( node ), IntBuffer.wrap( offsets ), IntBuffer.wrap( bounds ) );
+	}
+
+	/*
+	 * binary form for the ontology snapshot
+	 */
+	void write( DataOutputStream _out ) throws IOException {
+		OntologySnapshot.writeInts( _out, post );
+		OntologySnapshot.writeInts( _out, node );
+		OntologySnapshot.writeInts( _out, offsets );
+		OntologySnapshot.writeInts( _out, bounds );
+	}
+
+	static ReachabilityIndex read( ByteBuffer _in ) {
+		return new ReachabilityIndex( OntologySnapshot.readInts( _in ), OntologySnapshot.readInts( _in ), 
+				OntologySnapshot.readInts( _in ), OntologySnapshot.readInts( _in ) );
+	}
+
+	/*
+	 * own spanning subtree interval joined with the intervals of the successors numbered before the node
+	 */
+	private static int[] intervals( int _u, int[] _post, int[] _start, int[][] _intervals, Successors _successors ) {
+		int n = 2;
+		for ( int k = 0; k < _successors.count( _u ); k++ ) {
+			final int p = _post[_successors.get( _u, k )];
+			if ( p < _post[_u] ) n += _intervals[p].length;
+		}
+		final int[] pairs = new int[n];
+		n = 0;
+		pairs[n++] = _start[_u];
+		pairs[n++] = _post[_u];
+		for ( int k = 0; k < _successors.count( _u ); k++ ) {
+			final int p = _post[_successors.get( _u, k )];
+			if ( p >= _post[_u] ) continue; 	//back edge of a cycle
+			System.arraycopy( _intervals[p], 0, pairs, n, _intervals[p].length );
+			n += _intervals[p].length;
+		}
+		return merge( pairs, n );
+	}
+
+	/*
+	 * Consistency check against a breadth first search from every node: the first node whose
+	 * reachable set differs, -1 if there is none. Costs the sum of all reachable set sizes.
+	 */
+	public int verify( Successors _successors ) {
+		final int size = post.limit();
+		final int[] seen  = new int[size];
+		final int[] queue = new int[size + 1]; 	//the node itself again on a cycle
+		for ( int u = 0; u < size; u++ ) {
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = u;
+			while ( head < tail ) {
+				final int v = queue[head++];
+				for ( int k = 0; k < _successors.count( v ); k++ ) {
+					final int w = _successors.get( v, k );
+					if ( seen[w] == u + 1 ) continue;
+					seen[w] = u + 1;
+					queue[tail++] = w;
+					if ( w != u && !reaches( u, w ) ) return u;
+				}
+			}
+			if ( tail - ( seen[u] == u + 1 ? 2 : 1 ) != count( u ) ) return u;
+		}
+		return -1;
+	}
+
+	/*
+	 * sort intervals given as low, high pairs and merge overlapping or adjacent ones
+	 */
+	private static int[] merge( int[] _pairs, int _length ) {
+		final int count = _length / 2;
+		if ( count == 1 ) return new int[] { _pairs[0], _pairs[1] };
+		final long[] sorted = new long[count];
+		for ( int i = 0; i < count; i++ ) sorted[i] = ( (long) _pairs[2 * i] << 32 ) | _pairs[2 * i + 1];
+		Arrays.sort( sorted );
+		final int[] merged = new int[_length];
+		int n = 0;
+		for ( long pair : sorted ) {
+			final int low 	= (int) ( pair >>> 32 );
+			final int high 	= (int) pair;
+			if ( n > 0 && low <= merged[n - 1] + 1 ) {
+				if ( high > merged[n - 1] ) merged[n - 1] = high;
+			} else {
+				merged[n++] = low;
+				merged[n++] = high;
+			}
+		}
+		return Arrays.copyOf( merged, n );
+	}
+
+	/*
+	 * true if the target is reachable from the node
+	 */
+	public boolean reaches( int _node, int _target ) {
+		if ( _node == _target ) return false;
+		final int p = post.get( _target );
+		int lo = offsets.get( _node );
+		int hi = offsets.get( _node + 1 ) - 1;
+		while ( lo <= hi ) {
+			final int mid = ( lo + hi ) >>> 1;
+			if ( bounds.get( 2 * mid + 1 ) < p ) lo = mid + 1;
+			else if ( bounds.get( 2 * mid ) > p ) hi = mid - 1;
+			else return true;
+		}
+		return false;
+	}
+
+	/*
+	 * number of nodes reachable from the node
+	 */
+	public int count( int _node ) {
+		int count = -1; 	//the node itself
+		for ( int k = offsets.get( _node ), end = offsets.get( _node + 1 ); k < end; k++ ) {
+			count += bounds.get( 2 * k + 1 ) - bounds.get( 2 * k ) + 1;
+		}
+		return count;
+	}
+
+	public int intervalCount( int _node ) 	{ return offsets.get( _node + 1 ) - offsets.get( _node ); }
+	public int intervalCount() 				{ return offsets.get( offsets.limit() - 1 ); }
+	public int low( int _node, int _k ) 	{ return bounds.get( 2 * ( offsets.get( _node ) + _k ) ); }
+	public int high( int _node, int _k ) 	{ return bounds.get( 2 * ( offsets.get( _node ) + _k ) + 1 ); }
+	public int post( int _node ) 			{ return post.get( _node ); }
+	public int nodeAt( int _post ) 			{ return node.get( _post ); }
+
+	/*
+	 * add all nodes reachable from the node to the set
+	 */
+	public void addReachable( int _node, BitSet _set ) {
+		for ( int k = offsets.get( _node ), end = offsets.get( _node + 1 ); k < end; k++ ) {
+			for ( int p = bounds.get( 2 * k ), high = bounds.get( 2 * k + 1 ); p <= high; p++ ) {
+				final int u = node.get( p );
+				if ( u != _node ) _set.set( u );
+			}
+		}
+	}
+
+	/*
+	 * true if all nodes reachable from the node are in the set
+	 */
+	public boolean allReachableIn( int _node, BitSet _set ) {
+		for ( int k = offsets.get( _node ), end = offsets.get( _node + 1 ); k < end; k++ ) {
+			for ( int p = bounds.get( 2 * k ), high = bounds.get( 2 * k + 1 ); p <= high; p++ ) {
+				final int u = node.get( p );
+				if ( u != _node && !_set.get( u ) ) return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * true if all nodes reachable from the node are in the set given by post order numbers
+	 */
+	public boolean allReachableInPostSet( int _node, BitSet _postSet ) {
+		final int self = post.get( _node );
+		for ( int k = offsets.get( _node ), end = offsets.get( _node + 1 ); k < end; k++ ) {
+			final int high = bounds.get( 2 * k + 1 );
+			int p = _postSet.nextClearBit( bounds.get( 2 * k ) );
+			if ( p == self ) p = _postSet.nextClearBit( p + 1 );
+			if ( p <= high ) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * true if a node reachable from the node is in the set given by post order numbers
+	 */
+	public boolean anyReachableInPostSet( int _node, BitSet _postSet ) {
+		final int self = post.get( _node );
+		for ( int k = offsets.get( _node ), end = offsets.get( _node + 1 ); k < end; k++ ) {
+			final int high = bounds.get( 2 * k + 1 );
+			int p = _postSet.nextSetBit( bounds.get( 2 * k ) );
+			if ( p == self ) p = _postSet.nextSetBit( p + 1 );
+			if ( p >= 0 && p <= high ) return true;
+		}
+		return false;
+	}
+
+	/*
+	 * the set of nodes as post order numbers
+	 */
+	public BitSet toPostSet( BitSet _nodes ) {
+		final BitSet postSet = new BitSet( post.limit() );
+		for ( int u = _nodes.nextSetBit( 0 ); u >= 0; u = _nodes.nextSetBit( u + 1 ) ) postSet.set( post.get( u ) );
+		return postSet;
+	}
+}
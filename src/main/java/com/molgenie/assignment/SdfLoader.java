@@ -17,8 +17,10 @@
 package com.molgenie.assignment;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
@@ -60,61 +62,82 @@ public class SdfLoader {
 	*/
 	public static HashMap<String,String> readSDF( String _inputFile ) throws IOException {
 		
-		StereoMolecule mol = new StereoMolecule();	
 		HashMap<String,String> mols = new HashMap();
 		
-		BufferedReader inSDF = null;
+		InputStream inputStream = null;
 		if ( _inputFile.endsWith("sdf.gz") ) {
-			FileInputStream inputStream = new FileInputStream(_inputFile);
-			GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream);
-			InputStreamReader inputStreamReader = new InputStreamReader(gzipInputStream);
-			inSDF = new BufferedReader(inputStreamReader);
+			inputStream = new GZIPInputStream( new FileInputStream(_inputFile) );
 		} else if ( _inputFile.endsWith(".sdf") ) {
-			FileInputStream inputStream = new FileInputStream(_inputFile);
-			InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
-			inSDF = new BufferedReader(inputStreamReader);
+			inputStream = new FileInputStream(_inputFile);
 		} else {
 			System.out.println("Error: SDF file name needs to end with sdf.gz or .sdf ... stopping.");
 			System.exit(0);
 		}
-	    
-		String csvLine = "", dataLine="", molString = "", name = "";
-		boolean inMol = true, newMol = true;
-		StringBuilder sB = new StringBuilder();
-		while ( ( csvLine = inSDF.readLine() ) != null ) {
-			if ( newMol ) { 
-				name = csvLine.trim();
-				newMol = false;
+		
+		try ( SdfReader reader = new SdfReader( inputStream ) ) {
+			String[] mol;
+			while ( ( mol = reader.next() ) != null ) {
+				if ( mol[1] != null ) mols.put( mol[0], mol[1] );
 			}
-			
-			if ( inMol && csvLine.startsWith("M  END") ) {
-				sB = sB.append( "M  END" );
-				inMol = false;
-				try {
-					molString = sB.toString();
-					StereoMolecule molOCL = new StereoMolecule();
-					MolfileParser mP = new MolfileParser();
-					mP.parse(molOCL,molString);
-					String smiles = IsomericSmilesCreator.createSmiles(molOCL);
-					mols.put(name,smiles);
-				} catch ( Exception e5 ) {
-					System.out.println( "mol2smiles problem: " + molString);
+		}
+		return mols;
+	}
+	
+	/**
+	 * Reads one molecule after the other from an SDF stream, for files too large
+	 * to be held in a map.
+	 */
+	public static final class SdfReader implements Closeable {
+		
+		private final BufferedReader inSDF;
+		
+		public SdfReader( InputStream _in ) {
+			inSDF = new BufferedReader( new InputStreamReader( _in ), 1 << 16 );
+		}
+		
+		/**
+		 * Name and SMILES of the next molecule, null at the end of the file. 
+		 * The SMILES is null if the molfile can not be converted.
+		 */
+		public String[] next() throws IOException {
+			String csvLine, name = null, smiles = null;
+			boolean inMol = true;
+			StringBuilder sB = new StringBuilder();
+			while ( ( csvLine = inSDF.readLine() ) != null ) {
+				if ( name == null ) name = csvLine.trim();
+				
+				if ( csvLine.contains("$$$$") ) {
+					// here the molecule ends ...
+					return new String[] { name, smiles };
+				}
+				if ( inMol ) {
+					sB.append( csvLine ).append( '\n' );
+					if ( csvLine.startsWith("M  END") ) {
+						inMol = false;
+						smiles = toSmiles( sB.toString() );
+					}
 				}
 			}
-			
-			if ( csvLine.contains("$$$$") ) {
-				// here the molecule ends ...
-				inMol = true;
-				newMol = true;
-				mol = new StereoMolecule();
-				dataLine = "";
-				sB = new StringBuilder();
-				continue; // go to next line to get next molecule structure
-			} else {
-				sB = sB.append( csvLine + "\n" );
-			}
+			/* last molecule without $$$$ */
+			return name == null || name.isEmpty() && sB.toString().isBlank() ? null : new String[] { name, smiles };
+		}
+		
+		@Override
+		public void close() throws IOException {
+			inSDF.close();
+		}
+	}
+	
+	private static String toSmiles( String _molString ) {
+		try {
+			StereoMolecule molOCL = new StereoMolecule();
+			MolfileParser mP = new MolfileParser();
+			mP.parse( molOCL, _molString );
+			return IsomericSmilesCreator.createSmiles( molOCL );
+		} catch ( Exception e5 ) {
+			LOG.warning( "mol2smiles problem: " + _molString );
+			return null;
 		}
-		return mols;
 	}
 
 }
@@ -0,0 +1,131 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.util.Arrays;
+
+import org.openscience.cdk.graph.ConnectedComponents;
+import org.openscience.cdk.graph.GraphUtil;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Atom counts a molecule must have for a SMARTS query to match: the minimum
+ * number of atoms of each element, the minimum number of rings and of aromatic
+ * atoms. Complements the feature bits of {@link SmartsFeatures}.
+ *
+ * The number of rings is the number of ring closures of the query, a match in
+ * the molecule has at least as many independent rings. The molecule profile is
+ * an int array with the element counts by atomic number, the number of rings
+ * (bonds - atoms + fragments) at RINGS and the aromatic atoms at AROMATIC.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class SmartsCounts {
+
+	public final static int RINGS 	 = 128;
+	public final static int AROMATIC = 129;
+	public final static int SIZE 	 = 130;
+
+	private final static SmartsCounts NONE = new SmartsCounts( new int[0], new int[0], 0, 0 );
+
+	private final int[] elements;
+	private final int[] counts;
+	private final int 	minRings;
+	private final int 	minAromatic;
+
+	private SmartsCounts( int[] _elements, int[] _counts, int _minRings, int _minAromatic ) {
+		elements 	= _elements;
+		counts 		= _counts;
+		minRings 	= _minRings;
+		minAromatic = _minAromatic;
+	}
+
+	public int getMinRings() 	{ return minRings; }
+	public int getMinAromatic() { return minAromatic; }
+
+	public boolean isEmpty() {
+		return elements.length == 0 && minRings == 0 && minAromatic == 0;
+	}
+
+	/**
+	 * Reads the minimum counts of a smarts.
+	 *
+	 * @param _aromatic count aromatic atoms, only if the query runs on the aromatized molecule
+	 */
+	public static SmartsCounts ofQuery( String _smarts, boolean _aromatic ) {
+		final SmartsScanner graph = SmartsScanner.scan( _smarts );
+		if ( graph == null ) return NONE;
+
+		final int[] elementCounts = new int[RINGS];
+		boolean ring = graph.ringClosures > 0;
+		int aromatic = 0;
+		for ( SmartsScanner.Atom atom : graph.atoms ) {
+			//an atom with a top level OR as [C&R,N] is scanned without element, ring or aromaticity and counts nothing
+			//hydrogens are left out, their representation differs between the molecule containers
+			if ( atom.z > 1 && atom.z < RINGS ) elementCounts[atom.z]++;
+			if ( atom.aromatic ) aromatic++;
+			ring |= atom.ring || atom.aromatic;
+		}
+		for ( SmartsScanner.Bond bond : graph.bonds ) ring |= bond.ring;
+
+		int size = 0;
+		for ( int count : elementCounts ) if ( count > 0 ) size++;
+		final int[] elements = new int[size];
+		final int[] counts 	 = new int[size];
+		for ( int z = 0, i = 0; z < RINGS; z++ ) {
+			if ( elementCounts[z] > 0 ) {
+				elements[i] = z;
+				counts[i++] = elementCounts[z];
+			}
+		}
+		return new SmartsCounts( elements, counts, Math.max( graph.ringClosures, ring ? 1 : 0 ), _aromatic ? aromatic : 0 );
+	}
+
+	/*
+	 * element counts, rings and aromatic atoms of the aromatized container
+	 */
+	public static int[] ofMolecule( IAtomContainer _mol ) {
+		final int[] profile = new int[SIZE];
+		for ( IAtom atom : _mol.atoms() ) {
+			int z = SmartsFeatures.atomicNumber( atom );
+			if ( z > 1 && z < RINGS ) profile[z]++;
+			if ( atom.isAromatic() ) profile[AROMATIC]++;
+		}
+		int fragments = new ConnectedComponents( GraphUtil.toAdjList( _mol ) ).nComponents();
+		profile[RINGS] = _mol.getBondCount() - _mol.getAtomCount() + fragments;
+		return profile;
+	}
+
+	/*
+	 * true if the molecule has the minimum counts, always true without a molecule profile
+	 */
+	public boolean mayMatch( int[] _profile ) {
+		if ( _profile == null ) return true;
+		if ( _profile[RINGS] < minRings || _profile[AROMATIC] < minAromatic ) return false;
+		for ( int i = 0; i < elements.length; i++ ) {
+			if ( _profile[elements[i]] < counts[i] ) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "elements=" + Arrays.toString( elements ) + " counts=" + Arrays.toString( counts ) 
+				+ " rings=" + minRings + " aromatic=" + minAromatic;
+	}
+}
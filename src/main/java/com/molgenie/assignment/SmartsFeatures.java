@@ -0,0 +1,122 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * Structural feature bits used to reject a SMARTS query before the graph match.
+ *
+ * The bits of a query are the features every match must contain: the elements
+ * of its atoms, aromatic elements and elements connected by a double or triple
+ * bond, as read by {@link SmartsScanner}. A query that cannot be read gets no
+ * bits. A query can only match a molecule which has all its bits.
+ *
+ * word 0-1: element by atomic number, word 2: aromatic element, word 3: double
+ * and triple bonded element pairs (hashed, a collision only lets more queries pass)
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class SmartsFeatures {
+
+	public final static int WORDS = 4;
+
+	private final static long[] NONE = new long[WORDS];
+
+	private SmartsFeatures() {}
+
+	/*
+	 * features present in the molecule, from the aromatized container
+	 */
+	public static long[] ofMolecule( IAtomContainer _mol ) {
+		final long[] bits = new long[WORDS];
+		for ( IAtom atom : _mol.atoms() ) {
+			int z = atomicNumber( atom );
+			setElement( bits, z );
+			if ( atom.isAromatic() ) setAromatic( bits, z );
+		}
+		for ( IBond bond : _mol.bonds() ) {
+			int z1 = atomicNumber( bond.getBegin() );
+			int z2 = atomicNumber( bond.getEnd() );
+			//an aromatic bond may be double in a kekule structure
+			if ( bond.getOrder() == IBond.Order.DOUBLE || bond.isAromatic() ) setBond( bits, z1, z2, 2 );
+			if ( bond.getOrder() == IBond.Order.TRIPLE ) setBond( bits, z1, z2, 3 );
+		}
+		return bits;
+	}
+
+	/*
+	 * true if the molecule has all required features, always true if one of the arrays is missing
+	 */
+	public static boolean mayMatch( long[] _required, long[] _present ) {
+		if ( _required == null || _present == null ) return true;
+		for ( int i = 0; i < WORDS; i++ ) {
+			if ( ( _required[i] & ~_present[i] ) != 0 ) return false;
+		}
+		return true;
+	}
+
+	public static boolean isEmpty( long[] _bits ) {
+		for ( long word : _bits ) if ( word != 0 ) return false;
+		return true;
+	}
+
+	/**
+	 * Reads the features every match of the smarts must have.
+	 *
+	 * @param _aromatic take aromatic atoms as feature, only if the query runs on the aromatized molecule
+	 * @return the required bits, no bits if the smarts cannot be read
+	 */
+	public static long[] ofQuery( String _smarts, boolean _aromatic ) {
+		final SmartsScanner graph = SmartsScanner.scan( _smarts );
+		if ( graph == null ) return NONE;
+
+		final long[] bits = new long[WORDS];
+		for ( SmartsScanner.Atom atom : graph.atoms ) {
+			setElement( bits, atom.z );
+			if ( _aromatic && atom.aromatic ) setAromatic( bits, atom.z );
+		}
+		for ( SmartsScanner.Bond bond : graph.bonds ) {
+			if ( bond.order > 0 ) setBond( bits, graph.atoms.get( bond.from ).z, graph.atoms.get( bond.to ).z, bond.order );
+		}
+		return bits;
+	}
+
+	static int atomicNumber( IAtom _atom ) {
+		Integer z = _atom.getAtomicNumber();
+		return z != null ? z : 0;
+	}
+
+	/*
+	 * hydrogens are left out, their representation differs between the molecule containers
+	 */
+	private static void setElement( long[] _bits, int _z ) {
+		if ( _z > 1 && _z < 128 ) _bits[_z >>> 6] |= 1L << ( _z & 63 );
+	}
+
+	private static void setAromatic( long[] _bits, int _z ) {
+		if ( _z > 1 ) _bits[2] |= 1L << ( _z & 63 );
+	}
+
+	private static void setBond( long[] _bits, int _z1, int _z2, int _order ) {
+		if ( _z1 <= 1 || _z2 <= 1 ) return;
+		int key = ( Math.min( _z1, _z2 ) * 131 + Math.max( _z1, _z2 ) ) * 2 + ( _order == 3 ? 1 : 0 );
+		_bits[3] |= 1L << ( key & 63 );
+	}
+}
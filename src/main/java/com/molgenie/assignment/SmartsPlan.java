@@ -0,0 +1,502 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Evaluation plan of the smarts set of one class, compiled once at ontology
+ * load time from the MOCO smarts notation:
+ *
+ * <ul>
+ *   <li>OR structures: queries without NOT symbol, a class matches if one of them matches</li>
+ *   <li>NOT structures: !query, !query1XXXquery2, !query1.query2</li>
+ *   <li>AND structures: query1.query2, all dot separated queries must match</li>
+ *   <li>stereo AND structures: query1XXXquery2, query1 is matched stereospecific by CDK</li>
+ *   <li>multiplicity: nEXACTquery must occur exactly n times, nMOREquery at least n times</li>
+ * </ul>
+ *
+ * The evaluation has the same outcome as the former string based evaluation of
+ * the smarts set, kept as reference in SmartsPlanTest, but stops as soon as the
+ * result of the class is known and does no string work at evaluation time.
+ *
+ * Every branch records how often it was evaluated, how often it matched and
+ * the time spent. With these statistics, saved next to the ontology by
+ * {@link SmartsStatistics}, the branches are ordered at load time so that
+ * cheap and selective branches are evaluated first.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public class SmartsPlan {
+
+	private final static Logger LOG = Logger.getLogger( SmartsPlan.class.getName() );
+
+	/* match state of an AND connected structure */
+	public final static int MATCH_NONE  = 0;
+	public final static int MATCH_ALL   = 1;
+	public final static int MATCH_MIXED = 2;
+
+	/* number of recorded evaluations after which the statistics of a branch replace the prior */
+	public final static long MIN_EVALUATIONS = 50;
+
+	/* match probability assumed for a branch without statistics */
+	public final static double PRIOR_MATCH_PROBABILITY = 0.5;
+
+	private final static SmartsPlan INVALID = new SmartsPlan( new Branch[0], new Branch[0] );
+
+	private final Branch[] orBranches;
+	private final Branch[] notBranches;
+	private boolean 	   notFirst = true;
+
+	private SmartsPlan( Branch[] _orBranches, Branch[] _notBranches ) {
+		orBranches 	= _orBranches;
+		notBranches = _notBranches;
+	}
+
+	public Branch[] getOrBranches()  { return orBranches; }
+	public Branch[] getNotBranches() { return notBranches; }
+	public boolean  isNotFirst() 	 { return notFirst; }
+
+	/*
+	 * add the queries of all branches
+	 */
+	public void collectQueries( Set<SmartsQuery> _queries ) {
+		for ( Branch branch : orBranches ) branch.getNode().collectQueries( _queries );
+		for ( Branch branch : notBranches ) branch.getNode().collectQueries( _queries );
+	}
+
+	/**
+	 * A class is assigned, if at least one OR structure matches and no NOT structure matches.
+	 * As in the string based evaluation, a NOT structure whose AND connected parts match only
+	 * partially is left out, and at least one NOT structure must have been evaluated as not matching.
+	 */
+	public boolean evaluate( PreparedMolecule _mol, boolean _verbose ) {
+
+		if ( orBranches.length == 0 && notBranches.length == 0 ) return false;
+		if ( notFirst ) {
+			return notBranchesPass( _mol, _verbose ) && orBranchesMatch( _mol, _verbose );
+		} else {
+			return orBranchesMatch( _mol, _verbose ) && notBranchesPass( _mol, _verbose );
+		}
+	}
+
+	private boolean notBranchesPass( PreparedMolecule _mol, boolean _verbose ) {
+		if ( notBranches.length == 0 ) return true;
+		boolean notChecked = false;
+		for ( Branch not : notBranches ) {
+			if ( notChecked ) {
+				if ( not.matches( _mol, _verbose ) ) return false;
+			} else {
+				int state = not.matchState( _mol, _verbose );
+				if ( state == MATCH_ALL ) return false;
+				if ( state == MATCH_NONE ) notChecked = true;
+			}
+		}
+		return notChecked;
+	}
+
+	private boolean orBranchesMatch( PreparedMolecule _mol, boolean _verbose ) {
+		if ( orBranches.length == 0 ) return true;
+		for ( Branch or : orBranches ) {
+			if ( or.matches( _mol, _verbose ) ) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Orders the branches by expected cost per decision, cost divided by the match probability.
+	 * For OR branches a match assigns the class, for NOT branches a match rejects it. The group
+	 * rejecting the class at lower expected cost is evaluated first. A branch with less than
+	 * MIN_EVALUATIONS evaluations is estimated from a prior, the mean time of all evaluations
+	 * of the plan and PRIOR_MATCH_PROBABILITY, so that branches rarely reached behind others
+	 * do not keep the plan from being ordered. Branches keep their order as long as none of
+	 * them has been evaluated.
+	 */
+	public synchronized void order() {
+		final double prior = priorNanos();
+		if ( prior < 0 ) return;
+
+		final Comparator<Branch> byRank = Comparator.comparingDouble( branch -> branch.getRank( prior ) );
+		Arrays.sort( orBranches, byRank );
+		Arrays.sort( notBranches, byRank );
+
+		if ( orBranches.length > 0 && notBranches.length > 0 ) {
+			double orCost = 0, orReject = 1;
+			for ( Branch or : orBranches ) {
+				orCost += or.getExpectedNanos( prior );
+				orReject *= 1 - or.getExpectedMatchProbability();
+			}
+			double notCost = 0, notPass = 1;
+			for ( Branch not : notBranches ) {
+				notCost += not.getExpectedNanos( prior );
+				notPass *= 1 - not.getExpectedMatchProbability();
+			}
+			notFirst = notCost / Math.max( 1 - notPass, 1e-6 ) <= orCost / Math.max( orReject, 1e-6 );
+		}
+	}
+
+	/*
+	 * mean time of all evaluations of the plan, -1 if nothing has been evaluated
+	 */
+	private double priorNanos() {
+		long evaluations = 0, nanos = 0;
+		for ( Branch branch : orBranches ) {
+			evaluations += branch.getEvaluations();
+			nanos += branch.getNanos();
+		}
+		for ( Branch branch : notBranches ) {
+			evaluations += branch.getEvaluations();
+			nanos += branch.getNanos();
+		}
+		return evaluations > 0 ? (double) nanos / evaluations : -1;
+	}
+
+	/**
+	 * Compiles the smarts set of a class, registering all queries in the query table.
+	 */
+	public static SmartsPlan compile( List<String> _smartsList, SmartsQueryTable _queries ) {
+
+		final List<Branch> orBranches  = new ArrayList<>();
+		final List<Branch> notBranches = new ArrayList<>();
+		try {
+			for ( String qry : _smartsList ) {
+				if ( qry.startsWith( "!" ) ) {
+					notBranches.add( new Not( qry, compileNot( qry.substring( 1 ), _queries ) ) );
+				} else {
+					orBranches.add( new Branch( qry, compileOr( qry, _queries ) ) );
+				}
+			}
+		} catch ( Exception e ) {
+			// the string based evaluation fails for the whole class in this case
+			LOG.info( "ERROR: invalid smarts set " + _smartsList + " " + e );
+			return INVALID;
+		}
+		if ( orBranches.isEmpty() && notBranches.isEmpty() ) return INVALID;
+		return new SmartsPlan( orBranches.toArray( new Branch[0] ), notBranches.toArray( new Branch[0] ) );
+	}
+
+	private static Node compileOr( String _qry, SmartsQueryTable _queries ) {
+		if ( _qry.contains( "XXX" ) ) {
+			//stereospecific query preceeds before XXX, non-stereospecific query follows after XXX
+			List<String> parts = AssignmentUtils.Segmenter( _qry, "XXX" );
+			Node stereo = new Match( _queries.getStereoQuery( parts.get( 0 ) ) );
+			return new StereoAnd( stereo, new Node[] { compileMultiplicity( parts.get( 1 ), _queries ) } );
+		}
+		if ( _qry.contains( "." ) ) {
+			return compileDotAnd( _qry, _queries );
+		}
+		return compileMultiplicity( _qry, _queries );
+	}
+
+	private static Node compileNot( String _qry, SmartsQueryTable _queries ) {
+		if ( _qry.contains( "XXX" ) ) {
+			List<String> parts = AssignmentUtils.Segmenter( _qry, "XXX" );
+			Node stereo = new Match( _queries.getStereoQuery( parts.get( 0 ) ) );
+			Node[] others = new Node[ parts.size() - 1 ];
+			for ( int j = 1; j < parts.size(); j++ ) {
+				others[j-1] = new Match( _queries.getSubstructureQuery( parts.get( j ) ) );
+			}
+			return new StereoAnd( stereo, others );
+		}
+		if ( _qry.contains( "." ) ) {
+			return compileDotAnd( _qry, _queries );
+		}
+		return compileMultiplicity( _qry, _queries );
+	}
+
+	private static Node compileDotAnd( String _qry, SmartsQueryTable _queries ) {
+		List<String> parts = AssignmentUtils.Segmenter( _qry, "." );
+		if ( parts.isEmpty() ) throw new IllegalArgumentException( "empty AND structure: " + _qry );
+		Node[] children = new Node[ parts.size() ];
+		for ( int j = 0; j < parts.size(); j++ ) {
+			children[j] = new Match( _queries.getSubstructureQuery( parts.get( j ) ) );
+		}
+		return new And( children );
+	}
+
+	/*
+	 * multiplicity keywords are only used for Cdk or Ambit handling.
+	 */
+	private static Node compileMultiplicity( String _sma, SmartsQueryTable _queries ) {
+		try {
+			if ( _sma.contains( "EXACT" ) ) {
+				List<String> listSmarts = AssignmentUtils.Segmenter( _sma, "EXACT" );
+				String query = listSmarts.get(1);
+				int threshold = Integer.parseInt( listSmarts.get(0) );
+				return new CountEquals( _queries.getGroupQuery( query ), threshold );
+			} else if ( _sma.contains( "MORE" ) ) {
+				List<String> listSmarts = AssignmentUtils.Segmenter( _sma, "MORE" );
+				String query = listSmarts.get(1);
+				int threshold = Integer.parseInt( listSmarts.get(0) );
+				return new CountAtLeast( _queries.getGroupQuery( query ), threshold );
+			}
+		} catch ( Exception e ) {
+			// a multiplicity error is a failed search, as in the string based evaluation
+			LOG.info( "ERROR: error in processing smarts multiplicity: " + _sma + " " + e ) ;
+			return new Failed();
+		}
+		return new Match( _queries.getSubstructureQuery( _sma ) );
+	}
+
+	/**
+	 * Node of a plan.
+	 */
+	public static abstract class Node {
+
+		public abstract boolean matches( PreparedMolecule _mol, boolean _verbose );
+
+		/*
+		 * add the queries of this node and its children
+		 */
+		void collectQueries( Set<SmartsQuery> _queries ) {}
+
+		/*
+		 * match state used for NOT structures, a single query either matches or not
+		 */
+		public int matchState( PreparedMolecule _mol, boolean _verbose ) {
+			return matches( _mol, _verbose ) ? MATCH_ALL : MATCH_NONE;
+		}
+	}
+
+	/*
+	 * substructure query, matches if found
+	 */
+	public static final class Match extends Node {
+		private final SmartsQuery query;
+
+		Match( SmartsQuery _query ) { query = _query; }
+
+		@Override
+		void collectQueries( Set<SmartsQuery> _queries ) { _queries.add( query ); }
+
+		public SmartsQuery getQuery() { return query; }
+
+		@Override
+		public boolean matches( PreparedMolecule _mol, boolean _verbose ) {
+			return query.search( _mol, _verbose ) > 0;
+		}
+	}
+
+	/*
+	 * nEXACTquery, query found exactly n times
+	 */
+	public static final class CountEquals extends Node {
+		private final SmartsQuery query;
+		private final int count;
+
+		CountEquals( SmartsQuery _query, int _count ) { query = _query; count = _count; }
+
+		@Override
+		void collectQueries( Set<SmartsQuery> _queries ) { _queries.add( query ); }
+
+		public SmartsQuery getQuery() { return query; }
+		public int getCount() { return count; }
+
+		@Override
+		public boolean matches( PreparedMolecule _mol, boolean _verbose ) {
+			return query.search( _mol, _verbose ) == count;
+		}
+	}
+
+	/*
+	 * nMOREquery, query found at least n times
+	 */
+	public static final class CountAtLeast extends Node {
+		private final SmartsQuery query;
+		private final int count;
+
+		CountAtLeast( SmartsQuery _query, int _count ) { query = _query; count = _count; }
+
+		@Override
+		void collectQueries( Set<SmartsQuery> _queries ) { _queries.add( query ); }
+
+		public SmartsQuery getQuery() { return query; }
+		public int getCount() { return count; }
+
+		@Override
+		public boolean matches( PreparedMolecule _mol, boolean _verbose ) {
+			return query.search( _mol, _verbose ) >= count;
+		}
+	}
+
+	/*
+	 * query1.query2, all parts must match
+	 */
+	public static class And extends Node {
+		protected final Node[] children;
+
+		And( Node[] _children ) { children = _children; }
+
+		public Node[] getChildren() { return children; }
+
+		@Override
+		void collectQueries( Set<SmartsQuery> _queries ) {
+			for ( Node child : children ) child.collectQueries( _queries );
+		}
+
+		@Override
+		public boolean matches( PreparedMolecule _mol, boolean _verbose ) {
+			for ( Node child : children ) {
+				if ( !child.matches( _mol, _verbose ) ) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int matchState( PreparedMolecule _mol, boolean _verbose ) {
+			boolean found = false;
+			boolean notFound = false;
+			for ( Node child : children ) {
+				if ( child.matches( _mol, _verbose ) ) found = true;
+				else notFound = true;
+				if ( found && notFound ) return MATCH_MIXED;
+			}
+			return found ? MATCH_ALL : MATCH_NONE;
+		}
+	}
+
+	/*
+	 * query1XXXquery2, query1 matched stereospecific by CDK, query2 by the chemistry module.
+	 * The CDK part needs its own kekulized molecule and is therefore checked last.
+	 */
+	public static final class StereoAnd extends And {
+		private final Node stereo;
+
+		StereoAnd( Node _stereo, Node[] _others ) {
+			super( append( _others, _stereo ) );
+			stereo = _stereo;
+		}
+
+		public Node getStereo() { return stereo; }
+
+		private static Node[] append( Node[] _nodes, Node _last ) {
+			Node[] nodes = new Node[ _nodes.length + 1 ];
+			System.arraycopy( _nodes, 0, nodes, 0, _nodes.length );
+			nodes[ _nodes.length ] = _last;
+			return nodes;
+		}
+	}
+
+	/**
+	 * OR structure of a class with its evaluation statistics.
+	 */
+	public static class Branch {
+		private final String 	 source;
+		private final Node 		 node;
+		private final LongAdder evaluations = new LongAdder();
+		private final LongAdder matches 	= new LongAdder();
+		private final LongAdder nanos 		= new LongAdder();
+
+		Branch( String _source, Node _node ) {
+			source 	= _source;
+			node 	= _node;
+		}
+
+		public String getSource() { return source; }
+		public Node   getNode() 	 { return node; }
+
+		public boolean matches( PreparedMolecule _mol, boolean _verbose ) {
+			long start = System.nanoTime();
+			boolean match = node.matches( _mol, _verbose );
+			record( match, start );
+			return match;
+		}
+
+		public int matchState( PreparedMolecule _mol, boolean _verbose ) {
+			long start = System.nanoTime();
+			int state = node.matchState( _mol, _verbose );
+			record( state == MATCH_ALL, start );
+			return state;
+		}
+
+		private void record( boolean _match, long _start ) {
+			nanos.add( System.nanoTime() - _start );
+			evaluations.increment();
+			if ( _match ) matches.increment();
+		}
+
+		public long getEvaluations() 	{ return evaluations.sum(); }
+		public long getMatches() 		{ return matches.sum(); }
+		public long getNanos() 			{ return nanos.sum(); }
+
+		/*
+		 * add statistics saved by a previous run
+		 */
+		public void addStatistics( long _evaluations, long _matches, long _nanos ) {
+			evaluations.add( _evaluations );
+			matches.add( _matches );
+			nanos.add( _nanos );
+		}
+
+		public double getMeanNanos() {
+			long n = getEvaluations();
+			return n > 0 ? (double) getNanos() / n : 0;
+		}
+
+		/*
+		 * match probability with add-one smoothing
+		 */
+		public double getMatchProbability() {
+			return ( getMatches() + 1.0 ) / ( getEvaluations() + 2.0 );
+		}
+
+		/*
+		 * mean time, the prior counts for the evaluations missing to MIN_EVALUATIONS
+		 */
+		public double getExpectedNanos( double _priorNanos ) {
+			long n = getEvaluations();
+			if ( n >= MIN_EVALUATIONS ) return getMeanNanos();
+			return ( getNanos() + ( MIN_EVALUATIONS - n ) * _priorNanos ) / MIN_EVALUATIONS;
+		}
+
+		/*
+		 * match probability, the prior counts for the evaluations missing to MIN_EVALUATIONS
+		 */
+		public double getExpectedMatchProbability() {
+			long n = getEvaluations();
+			if ( n >= MIN_EVALUATIONS ) return getMatchProbability();
+			return ( getMatches() + ( MIN_EVALUATIONS - n ) * PRIOR_MATCH_PROBABILITY ) / MIN_EVALUATIONS;
+		}
+
+		public double getRank( double _priorNanos ) {
+			return getExpectedNanos( _priorNanos ) / getExpectedMatchProbability();
+		}
+	}
+
+	/*
+	 * !query, the class does not match if the child matches
+	 */
+	public static final class Not extends Branch {
+		Not( String _source, Node _child ) { super( _source, _child ); }
+	}
+
+	/*
+	 * query that failed to compile, never matches
+	 */
+	public static final class Failed extends Node {
+		@Override
+		public boolean matches( PreparedMolecule _mol, boolean _verbose ) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.isomorphism.Pattern;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import ambit2.smarts.IsomorphismTester;
+import ambit2.smarts.SmartsManager;
+import ambit2.smarts.SmartsParser;
+import ambit2.smarts.groups.GroupMatch;
+
+/**
+ * A single SMARTS query compiled once when the ontology is loaded.
+ *
+ * The query objects of Ambit and CDK keep matching state, so a match takes a
+ * parsed copy from the query and gives it back afterwards. A query keeps at
+ * most one idle copy per core, parsed when the threads matching the query at
+ * the same time first need it; a copy made beyond that is dropped after use.
+ * The memory of the parsed copies is thus bounded by the cores, not by the
+ * threads ever classifying, and is freed with the query. The query itself is
+ * immutable and can be shared between threads.
+ *
+ * Before the graph match the query is checked against the structural features
+ * and the atom counts of the molecule, see {@link SmartsFeatures} and
+ * {@link SmartsCounts}. A query requiring more than the molecule has is
+ * reported as not found without searching, for group queries as 0 matches.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public abstract class SmartsQuery {
+
+	private final static Logger LOG = Logger.getLogger( SmartsQuery.class.getName() );
+
+	protected final String smarts;
+	private final long[]   requiredFeatures;
+	private final SmartsCounts requiredCounts;
+
+	protected SmartsQuery( String _smarts, boolean _aromaticFeatures ) {
+		smarts 			 = _smarts;
+		requiredFeatures = SmartsFeatures.ofQuery( _smarts, _aromaticFeatures );
+		requiredCounts 	 = SmartsCounts.ofQuery( _smarts, _aromaticFeatures );
+	}
+
+	public String 		getSmarts() 			{ return smarts; }
+	public long[] 		getRequiredFeatures() 	{ return requiredFeatures; }
+	public SmartsCounts getRequiredCounts() 	{ return requiredCounts; }
+
+	/**
+	 * Runs the query on a prepared molecule.
+	 *
+	 * A query is searched once per molecule, its result is kept by the prepared molecule.
+	 *
+	 * @return 1 if found, 0 if not found, -1 on error; number of matches for group queries
+	 */
+	public final int search( PreparedMolecule _mol, boolean _verbose ) {
+		final Integer known = _mol.getResult( this );
+		if ( known != null ) return known;
+		int result = 0;
+		if ( requiredCounts.mayMatch( _mol.getCounts() ) && SmartsFeatures.mayMatch( requiredFeatures, _mol.getFeatures() ) ) {
+			final long start = System.nanoTime();
+			result = match( _mol, _verbose );
+			AssignmentMetrics.SMARTS_MATCH.recordSince( start );
+			_mol.countSearch();
+		}
+		_mol.setResult( this, result );
+		return result;
+	}
+
+	/*
+	 * graph match of the query
+	 */
+	protected abstract int match( PreparedMolecule _mol, boolean _verbose );
+
+	/**
+	 * Parses the query for the calling thread, used to report smarts errors at load time.
+	 */
+	public abstract void validate();
+
+	@Override
+	public String toString() { return smarts; }
+
+	/*
+	 * idle parsed copies of a query, null for a query that can not be parsed
+	 */
+	private static final class Copies<T> {
+		private final static int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+
+		private final Supplier<T> 			   parser;
+		private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger 		   size = new AtomicInteger();
+		private volatile boolean 			   invalid;
+
+		Copies( Supplier<T> _parser ) {
+			parser = _parser;
+		}
+
+		T take() {
+			final T copy = idle.poll();
+			if ( copy != null ) {
+				size.decrementAndGet();
+				return copy;
+			}
+			if ( invalid ) return null;
+			final T parsed = parser.get();
+			if ( parsed == null ) invalid = true;
+			return parsed;
+		}
+
+		void give( T _copy ) {
+			if ( _copy == null ) return;
+			if ( size.incrementAndGet() <= MAX_IDLE ) idle.offer( _copy );
+			else size.decrementAndGet();
+		}
+	}
+
+	/*
+	 * Ambit SSS substructure query on the aromatized container
+	 */
+	public static final class AmbitQuery extends SmartsQuery {
+
+		private final Copies<SmartsManager> managers = new Copies<>( this::createManager );
+
+		public AmbitQuery( String _smarts ) {
+			super( _smarts, true );
+		}
+
+		private SmartsManager createManager() {
+			SmartsManager man = new ambit2.smarts.SmartsManager( SilentChemObjectBuilder.getInstance() );
+			try {
+				man.setQuery( smarts );
+				String error = man.getErrors();
+				if ( error.length() > 1 ) {
+					LOG.warning( "Ambit smarts error: " + error + " smarts: " + smarts );
+				}
+			} catch ( Exception ee ) {
+				LOG.warning( "Ambit error: " + ee + " smarts: " + smarts );
+			}
+			return man;
+		}
+
+		@Override
+		public void validate() { managers.give( managers.take() ); }
+
+		@Override
+		protected int match( PreparedMolecule _mol, boolean _verbose ) {
+			final SmartsManager manager = managers.take();
+			try {
+				IAtomContainer mol = _mol.getMolecule();  //CDK container
+				if ( manager.searchIn( mol ) ) {
+					if ( _verbose ) System.out.println( "found: " + smarts );
+					return 1;
+				} else return 0;
+
+			} catch ( Exception e ) {
+				LOG.info( "ERROR: Ambit substructure search error: " + _mol.getSmiles() + " smarts: " + smarts );
+			} finally {
+				managers.give( manager );
+			}
+			return -1;
+		}
+	}
+
+	/*
+	 * CDK SSS substructure query on the kekulized container, used to determine stereochemistry match
+	 */
+	public static final class CdkQuery extends SmartsQuery {
+
+		private final Copies<Pattern> patterns = new Copies<>( this::createPattern );
+
+		public CdkQuery( String _smarts ) {
+			super( _smarts, false );
+		}
+
+		private Pattern createPattern() {
+			try {
+				return org.openscience.cdk.smarts.SmartsPattern.create( smarts );
+			} catch ( Exception e ) {
+				LOG.info( "ERROR: CDK smarts error: " + smarts );
+				return null;
+			}
+		}
+
+		@Override
+		public void validate() { patterns.give( patterns.take() ); }
+
+		@Override
+		protected int match( PreparedMolecule _mol, boolean _verbose ) {
+			final Pattern pattern = patterns.take();
+			try {
+				IAtomContainer mol = _mol.getKekulizedMolecule();
+				int nUniqueHits = pattern.matchAll( mol ).countUnique();
+				if ( nUniqueHits >0 ) return 1;
+				else return 0;
+
+			} catch ( Exception e ) {
+				LOG.info( "ERROR: CDK error SSS: " + _mol.getSmiles() + " smarts: " + smarts );
+				return -1;
+			} finally {
+				patterns.give( pattern );
+			}
+		}
+	}
+
+	/*
+	 * Ambit GroupMatch query counting all instances, Nick Kochev 2022-02-18
+	 */
+	public static final class AmbitGroupQuery extends SmartsQuery {
+
+		private final Copies<GroupMatch> groupMatches = new Copies<>( this::createGroupMatch );
+
+		public AmbitGroupQuery( String _smarts ) {
+			super( _smarts, false );
+		}
+
+		private GroupMatch createGroupMatch() {
+			try {
+				SmartsParser sp = new SmartsParser();
+				IsomorphismTester isoTester = new IsomorphismTester();
+				isoTester.setFlagCheckStereoElements(true);
+				return new GroupMatch( smarts, sp, isoTester );
+			} catch ( Exception e ) {
+				LOG.info( "ERROR: Ambit group smarts error: " + smarts );
+				return null;
+			}
+		}
+
+		@Override
+		public void validate() { groupMatches.give( groupMatches.take() ); }
+
+		@Override
+		protected int match( PreparedMolecule _mol, boolean _verbose ) {
+			final GroupMatch groupMatch = groupMatches.take();
+			try {
+				IAtomContainer mol = _mol.getExplicitHMolecule();
+				int posCount = groupMatch.matchCount( mol );
+
+				if ( _verbose ) System.out.println( "Group " + smarts + " found at " + posCount + " positions in " + _mol.getSmiles() );
+				return posCount;
+
+			} catch ( Exception e ) {
+				LOG.info( "ERROR: Ambit error all instances processing: " + _mol.getSmiles() + " smarts: " + smarts );
+			} finally {
+				groupMatches.give( groupMatch );
+			}
+			return -1;
+		}
+	}
+}
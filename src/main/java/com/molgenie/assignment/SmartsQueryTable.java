@@ -0,0 +1,104 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of all SMARTS queries of an ontology, compiled once when the ontology
+ * is loaded. Queries are keyed by their SMARTS string, one map per search type.
+ * The queries are registered by {@link SmartsPlan#compile}, queries not seen at
+ * load time are compiled on first request. A table shared by several ontologies
+ * is pruned to the queries of the loaded ones when one of them is replaced.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public class SmartsQueryTable {
+
+	private final String module;
+	private final Map<String,SmartsQuery> substructureQueries 	= new ConcurrentHashMap<>();
+	private final Map<String,SmartsQuery> stereoQueries 		= new ConcurrentHashMap<>();
+	private final Map<String,SmartsQuery> groupQueries 			= new ConcurrentHashMap<>();
+
+	public SmartsQueryTable( String _module ) {
+		module = _module.toLowerCase();
+	}
+
+	public String getModule() { return module; }
+
+	/*
+	 * plain substructure query of the chemistry module
+	 */
+	public SmartsQuery getSubstructureQuery( String _smarts ) {
+		if ( ChemLib.CHEMLIB_CDK.equals( module ) ) return getStereoQuery( _smarts );
+		return substructureQueries.computeIfAbsent( _smarts, SmartsQuery.AmbitQuery::new );
+	}
+
+	/*
+	 * stereochemistry is implemented in cdk and not in ambit
+	 */
+	public SmartsQuery getStereoQuery( String _smarts ) {
+		return stereoQueries.computeIfAbsent( _smarts, SmartsQuery.CdkQuery::new );
+	}
+
+	/*
+	 * Ambit group query counting all instances (EXACT, MORE)
+	 */
+	public SmartsQuery getGroupQuery( String _smarts ) {
+		return groupQueries.computeIfAbsent( _smarts, SmartsQuery.AmbitGroupQuery::new );
+	}
+
+	/*
+	 * drop the queries not in the given set, returns the number dropped
+	 */
+	public int retain( Set<SmartsQuery> _queries ) {
+		final int before = size();
+		for ( Map<String,SmartsQuery> queries : List.of( substructureQueries, stereoQueries, groupQueries ) ) {
+			queries.values().removeIf( query -> !_queries.contains( query ) );
+		}
+		return before - size();
+	}
+
+	public int size() {
+		return substructureQueries.size() + stereoQueries.size() + groupQueries.size();
+	}
+
+	/*
+	 * number of queries with structural features or atom counts for the pre-screen
+	 */
+	public int screenedSize() {
+		int count = 0;
+		for ( Map<String,SmartsQuery> queries : List.of( substructureQueries, stereoQueries, groupQueries ) ) {
+			for ( SmartsQuery query : queries.values() ) {
+				if ( !SmartsFeatures.isEmpty( query.getRequiredFeatures() ) || !query.getRequiredCounts().isEmpty() ) count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * parse all queries once on the calling thread, reporting smarts errors at load time
+	 */
+	public void validateAll() {
+		substructureQueries.values().forEach( SmartsQuery::validate );
+		stereoQueries.values().forEach( SmartsQuery::validate );
+		groupQueries.values().forEach( SmartsQuery::validate );
+	}
+}
@@ -0,0 +1,275 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.actelion.research.chem.Molecule;
+
+/**
+ * Reads the atoms and bonds every match of a SMARTS must contain, used by the
+ * query pre-screens {@link SmartsFeatures} and {@link SmartsCounts}.
+ *
+ * Only unambiguous primitives are taken: atom lists, negations and recursive
+ * smarts are left out. An expression is read as the low precedence AND ';' of
+ * its parts, a part holding a ',' is an OR and adds nothing, as '&' binds
+ * tighter than ','. An atom of unknown element has atomic number 0. A smarts
+ * that cannot be read gives null, so that the query is never rejected.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+final class SmartsScanner {
+
+	private final static Map<String,Integer> ELEMENTS = new HashMap<>();
+	static {
+		for ( int z = 1; z <= 118; z++ ) ELEMENTS.put( Molecule.cAtomLabel[z], z );
+	}
+	private final static String BOND_CHARS = "-=#:~@/\\!,;&";
+
+	/*
+	 * query atom: atomic number or 0, aromatic, in a ring
+	 */
+	final static class Atom {
+		final int 	  z;
+		final boolean aromatic;
+		final boolean ring;
+
+		Atom( int _z, boolean _aromatic, boolean _ring ) {
+			z 		 = _z;
+			aromatic = _aromatic;
+			ring 	 = _ring;
+		}
+	}
+
+	/*
+	 * query bond: atom indices, order 2 or 3 for a plain double or triple bond else 0, in a ring
+	 */
+	final static class Bond {
+		final int 	  from;
+		final int 	  to;
+		final int 	  order;
+		final boolean ring;
+
+		Bond( int _from, int _to, int _order, boolean _ring ) {
+			from  = _from;
+			to 	  = _to;
+			order = _order;
+			ring  = _ring;
+		}
+	}
+
+	final List<Atom> atoms = new ArrayList<>();
+	final List<Bond> bonds = new ArrayList<>();
+	int ringClosures = 0;
+
+	private SmartsScanner() {}
+
+	static SmartsScanner scan( String _smarts ) {
+		try {
+			final SmartsScanner graph = new SmartsScanner();
+			final Deque<Integer> branches = new ArrayDeque<>();
+			final Map<Integer,Object[]> rings = new HashMap<>(); //ring number -> atom, bond
+			int prev = -1;
+			String bond = "";
+
+			int i = 0;
+			final int n = _smarts.length();
+			while ( i < n ) {
+				char ch = _smarts.charAt( i );
+				if ( ch == '[' ) {
+					int end = closingBracket( _smarts, i );
+					if ( end < 0 ) return null;
+					graph.atoms.add( bracketAtom( _smarts.substring( i + 1, end ) ) );
+					prev = graph.connect( prev, graph.atoms.size() - 1, bond );
+					bond = "";
+					i = end + 1;
+				} else if ( ch == '(' ) {
+					branches.push( prev );
+					i++;
+				} else if ( ch == ')' ) {
+					if ( branches.isEmpty() ) return null;
+					prev = branches.pop();
+					i++;
+				} else if ( ch == '.' ) {
+					prev = -1;
+					bond = "";
+					i++;
+				} else if ( Character.isDigit( ch ) || ch == '%' ) {
+					int ring;
+					if ( ch == '%' ) {
+						if ( i + 2 >= n ) return null;
+						ring = Integer.parseInt( _smarts.substring( i + 1, i + 3 ) );
+						i += 3;
+					} else {
+						ring = ch - '0';
+						i++;
+					}
+					if ( prev < 0 ) return null;
+					Object[] open = rings.remove( ring );
+					if ( open == null ) {
+						rings.put( ring, new Object[] { prev, bond } );
+					} else {
+						graph.connect( (Integer) open[0], prev, bond.isEmpty() ? (String) open[1] : bond );
+						graph.ringClosures++;
+					}
+					bond = "";
+				} else if ( BOND_CHARS.indexOf( ch ) >= 0 ) {
+					bond += ch;
+					i++;
+				} else {
+					int length = ( _smarts.startsWith( "Cl", i ) || _smarts.startsWith( "Br", i ) ) ? 2 : 1;
+					Atom atom = organicAtom( _smarts.substring( i, i + length ) );
+					if ( atom == null ) return null;
+					graph.atoms.add( atom );
+					prev = graph.connect( prev, graph.atoms.size() - 1, bond );
+					bond = "";
+					i += length;
+				}
+			}
+			if ( !rings.isEmpty() || !branches.isEmpty() ) return null;
+			return graph;
+
+		} catch ( RuntimeException e ) {
+			return null;
+		}
+	}
+
+	private int connect( int _from, int _to, String _bond ) {
+		if ( _from < 0 ) return _to;
+		int order = 0;
+		boolean ring = false;
+		for ( String part : conjuncts( _bond ) ) {
+			if ( "=".equals( part ) ) order = 2;
+			else if ( "#".equals( part ) ) order = 3;
+			else if ( "@".equals( part ) ) ring = true;
+		}
+		bonds.add( new Bond( _from, _to, order, ring ) );
+		return _to;
+	}
+
+	/*
+	 * atom written without brackets
+	 */
+	private static Atom organicAtom( String _symbol ) {
+		switch ( _symbol ) {
+			case "B": case "C": case "N": case "O": case "P": case "S": case "F": case "I": case "Cl": case "Br":
+				return new Atom( ELEMENTS.get( _symbol ), false, false );
+			case "b": case "c": case "n": case "o": case "p": case "s":
+				return new Atom( ELEMENTS.get( _symbol.toUpperCase() ), true, false );
+			case "a":
+				return new Atom( 0, true, false );
+			case "*": case "A":
+				return new Atom( 0, false, false );
+			default:
+				return null;
+		}
+	}
+
+	/*
+	 * bracket atom, element of the first required part that is a single element primitive
+	 */
+	private static Atom bracketAtom( String _expr ) {
+		int z = 0;
+		boolean aromatic = false;
+		boolean ring = false;
+		for ( String part : conjuncts( _expr ) ) {
+			if ( part.isEmpty() || part.indexOf( '!' ) >= 0 || part.indexOf( '$' ) >= 0 ) continue;
+			int i = 0;
+			while ( i < part.length() && Character.isDigit( part.charAt( i ) ) ) i++; //isotope
+			if ( i >= part.length() ) continue;
+			char ch = part.charAt( i );
+			int partZ = 0;
+			if ( ch == '#' ) {
+				int j = i + 1;
+				while ( j < part.length() && Character.isDigit( part.charAt( j ) ) ) j++;
+				if ( j > i + 1 ) partZ = Integer.parseInt( part.substring( i + 1, j ) );
+			} else if ( Character.isUpperCase( ch ) ) {
+				if ( i + 1 < part.length() && Character.isLowerCase( part.charAt( i + 1 ) ) ) {
+					Integer el = ELEMENTS.get( part.substring( i, i + 2 ) );
+					if ( el != null ) partZ = el;
+				}
+				if ( partZ == 0 && "HDXRA".indexOf( ch ) < 0 ) {
+					Integer el = ELEMENTS.get( String.valueOf( ch ) );
+					if ( el != null ) partZ = el;
+				}
+			} else if ( part.startsWith( "se", i ) ) {
+				partZ = 34;
+				aromatic = true;
+			} else if ( part.startsWith( "as", i ) ) {
+				partZ = 33;
+				aromatic = true;
+			} else if ( "bcnops".indexOf( ch ) >= 0 ) {
+				partZ = ELEMENTS.get( String.valueOf( Character.toUpperCase( ch ) ) );
+				aromatic = true;
+			} else if ( part.equals( "a" ) ) {
+				aromatic = true;
+			}
+			//R, R1, R2 ... but not R0 or an element symbol like Rb
+			if ( part.matches( ".*R(?![a-z0]).*" ) ) ring = true;
+			if ( z == 0 ) z = partZ;
+		}
+		return new Atom( z, aromatic, ring );
+	}
+
+	/*
+	 * the parts every match fulfils: the expression split at ';', a part with an OR
+	 * is left out, as in [C&R,N] = [(C&R),N], the other parts are split at '&'
+	 */
+	private static List<String> conjuncts( String _expr ) {
+		final List<String> parts = new ArrayList<>();
+		for ( String part : splitTopLevel( _expr, ';' ) ) {
+			if ( splitTopLevel( part, ',' ).size() > 1 ) continue;
+			parts.addAll( splitTopLevel( part, '&' ) );
+		}
+		return parts;
+	}
+
+	/*
+	 * split an atom or bond expression at the operator outside of recursive smarts
+	 */
+	private static List<String> splitTopLevel( String _expr, char _operator ) {
+		final List<String> parts = new ArrayList<>();
+		int depth = 0;
+		int start = 0;
+		for ( int i = 0; i < _expr.length(); i++ ) {
+			char ch = _expr.charAt( i );
+			if ( ch == '(' || ch == '[' ) depth++;
+			else if ( ch == ')' || ch == ']' ) depth--;
+			else if ( depth == 0 && ch == _operator ) {
+				parts.add( _expr.substring( start, i ) );
+				start = i + 1;
+			}
+		}
+		parts.add( _expr.substring( start ) );
+		return parts;
+	}
+
+	private static int closingBracket( String _smarts, int _open ) {
+		int depth = 0;
+		for ( int i = _open; i < _smarts.length(); i++ ) {
+			char ch = _smarts.charAt( i );
+			if ( ch == '[' ) depth++;
+			else if ( ch == ']' && --depth == 0 ) return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.assignment.SmartsPlan.Branch;
+
+/**
+ * Evaluation statistics of the smarts branches, saved next to the ontology.
+ *
+ * One tab separated line per branch: class id, OR or NOT, smarts as written in
+ * the ontology, number of evaluations, number of matches and time in nanoseconds.
+ * Loaded statistics are added to the counters of the branches, saving again
+ * writes the accumulated totals. Lines of classes or smarts no longer in the
+ * ontology are dropped.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public class SmartsStatistics {
+
+	private final static Logger LOG = Logger.getLogger( SmartsStatistics.class.getName() );
+
+	private final static String OR  = "OR";
+	private final static String NOT = "NOT";
+
+	/*
+	 * add the saved statistics to the plans, returns the number of branches found
+	 */
+	public static int load( String _fileName, OntologyData _oData ) throws IOException {
+
+		final Path path = Paths.get( _fileName );
+		if ( !Files.exists( path ) ) return 0;
+
+		int count = 0;
+		try ( BufferedReader in = Files.newBufferedReader( path, StandardCharsets.UTF_8 ) ) {
+			String line;
+			while ( ( line = in.readLine() ) != null ) {
+				if ( line.isEmpty() || line.startsWith( "#" ) ) continue;
+				final String[] fields = line.split( "\t" );
+				if ( fields.length != 6 ) {
+					LOG.info( "ERROR: statistics line skipped: " + line );
+					continue;
+				}
+				final SmartsPlan plan = _oData.getIdSmartsPlanMap().get( fields[0] );
+				if ( plan == null ) continue;
+				final Branch[] branches = NOT.equals( fields[1] ) ? plan.getNotBranches() : plan.getOrBranches();
+				try {
+					long evaluations = Long.parseLong( fields[3] );
+					long matches 	 = Long.parseLong( fields[4] );
+					long nanos 		 = Long.parseLong( fields[5] );
+					for ( Branch branch : branches ) {
+						if ( branch.getSource().equals( fields[2] ) ) {
+							branch.addStatistics( evaluations, matches, nanos );
+							count++;
+							break;
+						}
+					}
+				} catch ( NumberFormatException e ) {
+					LOG.info( "ERROR: statistics line skipped: " + line );
+				}
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * write the statistics of all evaluated branches, replacing the file in one step
+	 */
+	public static void save( String _fileName, OntologyData _oData ) throws IOException {
+
+		final Path path = Paths.get( _fileName ).toAbsolutePath();
+		//unique name, saves of other processes never write into the same temporary file
+		final Path temp = Files.createTempFile( path.getParent(), path.getFileName().toString(), ".tmp" );
+
+		try {
+			try ( BufferedWriter out = Files.newBufferedWriter( temp, StandardCharsets.UTF_8 ) ) {
+				out.write( "#class\ttype\tsmarts\tevaluations\tmatches\tnanos\n" );
+				for ( Map.Entry<String,SmartsPlan> entry : _oData.getIdSmartsPlanMap().entrySet() ) {
+					write( out, entry.getKey(), OR, entry.getValue().getOrBranches() );
+					write( out, entry.getKey(), NOT, entry.getValue().getNotBranches() );
+				}
+			}
+			Files.move( temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			Files.deleteIfExists( temp );
+		}
+	}
+
+	private static void write( BufferedWriter _out, String _id, String _type, Branch[] _branches ) throws IOException {
+		final Set<String> written = new HashSet<>();
+		for ( Branch branch : _branches ) {
+			if ( branch.getEvaluations() == 0 || !written.add( branch.getSource() ) ) continue;
+			_out.write( _id + "\t" + _type + "\t" + branch.getSource() + "\t" + branch.getEvaluations() 
+					+ "\t" + branch.getMatches() + "\t" + branch.getNanos() + "\n" );
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+
+/**
+ * Pool shared by the ontologies loaded in one process. Class ids, smarts and
+ * smiles, and the smarts lists and smiles sets of concepts unchanged between
+ * two ontology versions are kept once on the heap.
+ *
+ * Pooled collections must not be changed. When an ontology is replaced, the
+ * pool is pruned to the values of the ontologies still loaded.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+public final class StringPool {
+
+	private final Map<String,String> 			  strings = new ConcurrentHashMap<>();
+	private final Map<List<String>,List<String>> lists 	  = new ConcurrentHashMap<>();
+	private final Map<Set<String>,Set<String>> 	  sets 	  = new ConcurrentHashMap<>();
+
+	public String intern( String _value ) {
+		if ( _value == null ) return null;
+		final String pooled = strings.putIfAbsent( _value, _value );
+		return pooled != null ? pooled : _value;
+	}
+
+	/*
+	 * the pooled list with the same strings, the given list with pooled strings if it is the first
+	 */
+	public List<String> intern( List<String> _values ) {
+		final List<String> pooled = lists.get( _values );
+		if ( pooled != null ) return pooled;
+		_values.replaceAll( this::intern );
+		return lists.computeIfAbsent( _values, values -> values );
+	}
+
+	public Set<String> intern( Set<String> _values ) {
+		final Set<String> pooled = sets.get( _values );
+		if ( pooled != null ) return pooled;
+		final Set<String> values = new HashSet<>( _values.size() * 2 );
+		for ( String value : _values ) values.add( intern( value ) );
+		return sets.computeIfAbsent( values, v -> v );
+	}
+
+	/*
+	 * drop the values none of the ontologies uses, returns the number of strings dropped
+	 */
+	public int retain( Collection<OntologyData> _ontologies ) {
+		final Set<String> 		liveStrings = new HashSet<>();
+		final Set<List<String>> liveLists 	= new HashSet<>();
+		final Set<Set<String>> 	liveSets 	= new HashSet<>();
+		for ( OntologyData oData : _ontologies ) {
+			liveStrings.add( oData.getRootId() );
+			liveStrings.add( oData.getVersion() );
+			oData.getIdSmartsMap().forEach( ( id, smartsList ) -> {
+				liveStrings.add( id );
+				liveStrings.addAll( smartsList );
+				liveLists.add( smartsList );
+			} );
+			oData.getIdSmilesMap().forEach( ( id, smilesSet ) -> {
+				liveStrings.add( id );
+				liveStrings.addAll( smilesSet );
+				liveSets.add( smilesSet );
+			} );
+		}
+		final int before = strings.size();
+		strings.keySet().retainAll( liveStrings );
+		lists.keySet().retainAll( liveLists );
+		sets.keySet().retainAll( liveSets );
+		return before - strings.size();
+	}
+
+	public int size() { return strings.size(); }
+}
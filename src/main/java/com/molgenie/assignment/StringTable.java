@@ -0,0 +1,119 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * Read-only table of strings by index, stored as utf-8 bytes in one buffer with
+ * an offset per string. Strings are decoded when asked for and not kept, so a
+ * table memory mapped from an {@link OntologySnapshot} holds no String objects
+ * on the heap. Missing strings (null) are marked in a bit set.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+final class StringTable {
+
+	private final BitSet 	 present;
+	private final IntBuffer  offsets; 	//string i is bytes[offsets[i]..offsets[i+1])
+	private final ByteBuffer bytes;
+
+	private StringTable( BitSet _present, IntBuffer _offsets, ByteBuffer _bytes ) {
+		present = _present;
+		offsets = _offsets;
+		bytes 	= _bytes;
+	}
+
+	static StringTable of( String[] _values ) {
+		final BitSet present = new BitSet( _values.length );
+		final byte[][] encoded = new byte[_values.length][];
+		final int[] offsets = new int[_values.length + 1];
+		int total = 0;
+		for ( int i = 0; i < _values.length; i++ ) {
+			offsets[i] = total;
+			if ( _values[i] == null ) continue;
+			present.set( i );
+			encoded[i] = _values[i].getBytes( StandardCharsets.UTF_8 );
+			total += encoded[i].length;
+		}
+		offsets[_values.length] = total;
+		final byte[] bytes = new byte[total];
+		for ( int i = 0; i < _values.length; i++ ) {
+			if ( encoded[i] != null ) System.arraycopy( encoded[i], 0, bytes, offsets[i], encoded[i].length );
+		}
+		return new StringTable( present, IntBuffer.wrap( offsets ), ByteBuffer.wrap( bytes ) );
+	}
+
+	int 	size() 			{ return offsets.limit() - 1; }
+	boolean has( int _i ) 	{ return present.get( _i ); }
+	BitSet 	present() 		{ return present; }
+
+	/*
+	 * the string at the index, null if missing
+	 */
+	String get( int _i ) {
+		if ( !present.get( _i ) ) return null;
+		final int start = offsets.get( _i );
+		final byte[] value = new byte[offsets.get( _i + 1 ) - start];
+		bytes.get( start, value );
+		return new String( value, StandardCharsets.UTF_8 );
+	}
+
+	/*
+	 * true if the string at the index has the given utf-8 bytes, without decoding it
+	 */
+	boolean equals( int _i, byte[] _value ) {
+		if ( !present.get( _i ) ) return false;
+		final int start = offsets.get( _i );
+		if ( offsets.get( _i + 1 ) - start != _value.length ) return false;
+		for ( int k = 0; k < _value.length; k++ ) {
+			if ( bytes.get( start + k ) != _value[k] ) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * index of the string in a table sorted in String order, -1 if not found
+	 */
+	int binarySearch( String _value ) {
+		int lo = 0;
+		int hi = size() - 1;
+		while ( lo <= hi ) {
+			final int mid = ( lo + hi ) >>> 1;
+			final int cmp = get( mid ).compareTo( _value );
+			if ( cmp < 0 ) lo = mid + 1;
+			else if ( cmp > 0 ) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	void write( DataOutputStream _out ) throws IOException {
+		OntologySnapshot.writeBits( _out, present );
+		OntologySnapshot.writeInts( _out, offsets );
+		OntologySnapshot.writeBytes( _out, bytes );
+	}
+
+	static StringTable read( ByteBuffer _in ) {
+		return new StringTable( OntologySnapshot.readBits( _in ), OntologySnapshot.readInts( _in ), OntologySnapshot.readBytes( _in ) );
+	}
+}
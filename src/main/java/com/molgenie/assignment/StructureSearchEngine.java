@@ -67,6 +67,13 @@ public class StructureSearchEngine {
 		return -1;
 	}
 	
+	/*
+	 * substructure search of a query compiled at ontology load time on a molecule prepared once per request
+	 */
+	public static int searchBySubstructure( PreparedMolecule _mol, SmartsQuery _query, boolean _verbose ) {
+		return _query.search( _mol, _verbose );
+	}
+	
 	/*
 	 * chemaxon substructure searcher
 	 
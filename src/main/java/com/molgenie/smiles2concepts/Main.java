@@ -24,11 +24,21 @@ import com.molgenie.smiles2concepts.config.*;
 import com.molgenie.smiles2concepts.models.*;
 import com.molgenie.smiles2concepts.models.common.ClassificationResult;
 import com.molgenie.smiles2concepts.models.common.ErrorResponse;
+import com.molgenie.smiles2concepts.services.AdmissionService;
+import com.molgenie.smiles2concepts.services.BatchService;
+import com.molgenie.smiles2concepts.services.ComputeService;
 import com.molgenie.smiles2concepts.services.IService;
+import com.molgenie.smiles2concepts.services.JobService;
+import com.molgenie.smiles2concepts.services.MetricsService;
+import com.molgenie.smiles2concepts.services.OntologyService;
 
 import io.javalin.Javalin;
+import io.javalin.http.Context;
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import org.int4.dirk.api.InstanceResolver;
 import org.slf4j.Logger;
@@ -67,6 +77,7 @@ public class Main {
 				System.out.println("  -h, --help     	Show this help message");
 				System.out.println("  -i <smiles> 	 	Process single smiles");
 				System.out.println("  -sdf <filename>  	Process SDF file");
+				System.out.println("  -c, --compile-ontology [<filename>]	Write the binary ontology snapshot loaded at startup");
 				System.out.println("  <NO OPTIONS>   	Run the API server and wait for requests");
 				System.exit(0);
 			}
@@ -93,6 +104,7 @@ public class Main {
 					AssignCompounds.AssignmentParameters parameters = new AssignmentParameters();
 					parameters.setOntologyFilename(settings.ontologyFilename() );
 					parameters.setModule( settings.module() );
+					parameters.setPersistentCache( settings.persistentCache() );
 					
 					OntologyData oData = new OntologyData();
 					oData = AssignCompounds.loadOntology( parameters );
@@ -137,6 +149,7 @@ public class Main {
 					AssignCompounds.AssignmentParameters parameters = new AssignmentParameters();
 					parameters.setOntologyFilename(settings.ontologyFilename() );
 					parameters.setModule( settings.module() );
+					parameters.setPersistentCache( settings.persistentCache() );
 					
 					OntologyData oData = new OntologyData();
 					oData = AssignCompounds.loadOntology( parameters );
@@ -163,12 +176,28 @@ public class Main {
 						sB.append("]}\n");
 						System.out.println(sB);
 					}
+					AssignCompounds.closeOntology( parameters, oData );
 				} catch (Exception e) {
 					System.err.println("Error processing smiles: " + e.getMessage());
 					System.exit(1);
 				}
 				System.exit(0);
 			}
+			case "-c", "--compile-ontology" -> {
+				AssignCompounds.AssignmentParameters parameters = new AssignmentParameters();
+				parameters.setOntologyFilename(settings.ontologyFilename() );
+				parameters.setModule( settings.module() );
+				if (args.length > 1) parameters.setSnapshotFilename(args[1]);
+				try {
+					OntologyData oData = AssignCompounds.compileOntology( parameters );
+					System.out.println("compiled " + oData.getGraph().size() + " classes, version " + oData.getVersion() 
+							+ " to " + parameters.getSnapshotFilename());
+				} catch (Exception e) {
+					System.err.println("Error compiling ontology: " + e.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
 			default -> {
 				System.err.println("Error: Unknown option: " + args[0]);
 				System.err.println("Use -h or --help for usage information");
@@ -179,38 +208,190 @@ public class Main {
 
 	private static void configureEndpoints( Javalin app, InstanceResolver resolver, AppProperties settings ) throws IOException {
 		
-		AssignmentParameters parameters = new AssignmentParameters();
-		parameters.setOntologyFilename(settings.ontologyFilename() );
-		parameters.setModule( settings.module() );
-		OntologyData ontData = AssignCompounds.loadOntology( parameters );
+		var ontology = resolver.getInstance( OntologyService.class );
+		ontology.load();
+		if ( settings.watchOntology() ) ontology.watch();
+		
+		// keep the smarts evaluation statistics of this run for the branch order at the next start, flush the assignment cache
+		Runtime.getRuntime().addShutdownHook( new Thread( ontology::close ) );
 		
 		var service = resolver.getInstance( IService.class );
+		var compute = resolver.getInstance( ComputeService.class );
+		var admission = resolver.getInstance( AdmissionService.class );
+		var batch = resolver.getInstance( BatchService.class );
+		var jobs = resolver.getInstance( JobService.class );
+		jobs.resume();
+		Runtime.getRuntime().addShutdownHook( new Thread( jobs::close ) );
+		
+		// API endpoint classification of a smiles string, against the default ontology or the version of the request or path
+		app.post( settings.baseApiPath() + "/classify", ctx -> classify( ctx, ontology, service, compute, admission, null ) );
+		app.post( settings.baseApiPath() + "/classify/batch", ctx -> classifyBatch( ctx, ontology, batch ) );
+		app.post( settings.baseApiPath() + "/classify/stream", ctx -> classifyStream( ctx, ontology, batch ) );
+		app.post( settings.baseApiPath() + "/classify/{version}", ctx -> classify( ctx, ontology, service, compute, admission, ctx.pathParam("version") ) );
+		
+		// API endpoint adaptive limit, queue depth and rejections of the classification admission
+		app.get( settings.baseApiPath() + "/admin/admission", ctx -> ctx.json( admission.status() ) );
 		
-		// API endpoint classification of a smiles string
-		app.post( settings.baseApiPath() + "/classify", ctx -> {
-			var payload = ctx.bodyAsClass( SmilesRequest.class );
-			if (( payload.getSmiles() == null ) || (payload.getSmiles().length()<1) ) {
+		// API endpoint stage latencies, cache, admission and JVM metrics in the Prometheus text format
+		var metrics = resolver.getInstance( MetricsService.class );
+		app.get( settings.baseApiPath() + "/metrics", ctx -> ctx.contentType("text/plain; version=0.0.4").result( metrics.scrape() ) );
+		
+		// API endpoint result cache hits, misses and evictions
+		app.get( settings.baseApiPath() + "/cache", ctx -> ctx.json( service.cacheStatistics() ) );
+		
+		// API endpoints loaded ontologies, and reload of an ontology file or of a new release next to it
+		app.get( settings.baseApiPath() + "/admin/ontology", ctx -> ctx.json( ontology.status() ) );
+		app.post( settings.baseApiPath() + "/admin/reload", ctx -> {
+			String version = ctx.queryParam("version");
+			try {
+				ctx.status( ontology.reload( ctx.queryParam("ontologyFilename"), version ) ? 202 : 409 );
+			} catch (IllegalArgumentException e) {
 				ctx.status(400);
-				ErrorResponse eR = new ErrorResponse("no or empty smiles found", 100);
-				ctx.json(eR);
+				ctx.json(new ErrorResponse(e.getMessage(), 400));
 				return;
 			}
+			ctx.json( ontology.status( version ) );
+		});
+		
+		// API endpoints classification jobs of a local file (?filename=) or of the uploaded body, their progress and results
+		app.post( settings.baseApiPath() + "/jobs", ctx -> {
+			String fileName = ctx.queryParam("filename");
+			String format = ctx.queryParam("format");
+			String version = ctx.queryParam("version");
 			try {
-				com.actelion.research.chem.StereoMolecule mol = new com.actelion.research.chem.StereoMolecule();
-				com.actelion.research.chem.SmilesParser sP = new com.actelion.research.chem.SmilesParser();
-				sP.parse(mol,payload.getSmiles().getBytes());
-			} catch (Exception e) {
-				payload.setSmiles(null);
-				ErrorResponse eR = new ErrorResponse("invalid smiles", 200);
-				ctx.json(eR);
-				return;
+				ctx.status(202);
+				ctx.json( fileName != null ? jobs.submit( fileName, format, version ) : jobs.submit( ctx.req.getInputStream(), format, version ) );
+			} catch (IllegalArgumentException e) {
+				ctx.status(400);
+				ctx.json(new ErrorResponse(e.getMessage(), 400));
 			}
-
-			payload.setClassifierName("MolGenie Ambit+OpenChemLib Classifier v1.0");
-			ClassificationResult result = service.performClassification( payload, ontData );
-			
-			ctx.json(result);
 		});
+		app.get( settings.baseApiPath() + "/jobs", ctx -> ctx.json( jobs.status() ) );
+		app.get( settings.baseApiPath() + "/jobs/{id}", ctx -> {
+			var status = jobs.status( ctx.pathParam("id") );
+			if ( status == null ) unknownJob( ctx );
+			else ctx.json( status );
+		});
+		app.get( settings.baseApiPath() + "/jobs/{id}/results", ctx -> {
+			var results = jobs.results( ctx.pathParam("id") );
+			if ( results == null ) unknownJob( ctx );
+			else ctx.contentType("application/x-ndjson").result( results );
+		});
+	}
+	
+	/* the classification runs on the compute pool once admitted, batch callers (header X-Priority: batch) after the interactive ones */
+	private static void classify( Context ctx, OntologyService ontology, IService service, ComputeService compute, AdmissionService admission, 
+			String pathVersion ) throws InterruptedException {
+		var payload = ctx.bodyAsClass( SmilesRequest.class );
+		if (( payload.getSmiles() == null ) || (payload.getSmiles().length()<1) ) {
+			ctx.status(400);
+			ErrorResponse eR = new ErrorResponse("no or empty smiles found", 100);
+			ctx.json(eR);
+			return;
+		}
+		try {
+			com.actelion.research.chem.StereoMolecule mol = new com.actelion.research.chem.StereoMolecule();
+			com.actelion.research.chem.SmilesParser sP = new com.actelion.research.chem.SmilesParser();
+			sP.parse(mol,payload.getSmiles().getBytes());
+		} catch (Exception e) {
+			payload.setSmiles(null);
+			ErrorResponse eR = new ErrorResponse("invalid smiles", 200);
+			ctx.json(eR);
+			return;
+		}
+
+		payload.setClassifierName("MolGenie Ambit+OpenChemLib Classifier v1.0");
+		
+		// several versions at once share the prepared molecule
+		if ( pathVersion == null && payload.getOntologyVersions() != null && !payload.getOntologyVersions().isEmpty() ) {
+			List<OntologyData> ontologies = new ArrayList<>();
+			for ( String version : payload.getOntologyVersions() ) {
+				OntologyData oData = ontology.current( version );
+				if ( oData == null ) {
+					unknownVersion( ctx, version );
+					return;
+				}
+				ontologies.add( oData );
+			}
+			try ( var permit = admission.acquire( isBatchCaller( ctx ) ) ) {
+				ctx.json( compute.join( () -> service.classify( payload, ontologies ) ) );
+			}
+			return;
+		}
+		
+		String version = pathVersion != null ? pathVersion : payload.getOntologyVersion();
+		OntologyData oData = ontology.current( version );
+		if ( oData == null ) {
+			unknownVersion( ctx, version );
+			return;
+		}
+		ClassificationResult result;
+		try ( var permit = admission.acquire( isBatchCaller( ctx ) ) ) {
+			result = compute.join( () -> service.classify( payload, List.of( oData ) ) ).get( 0 );
+		}
+		
+		ctx.json(result);
+	}
+	
+	private static boolean isBatchCaller( Context ctx ) {
+		return "batch".equalsIgnoreCase( ctx.header("X-Priority") );
+	}
+	
+	/* json array or ndjson of {id, smiles} records, answered in the same format and in record order */
+	private static void classifyBatch( Context ctx, OntologyService ontology, BatchService batch ) throws IOException {
+		String version = ctx.queryParam("version");
+		OntologyData oData = ontology.current( version );
+		if ( oData == null ) {
+			unknownVersion( ctx, version );
+			return;
+		}
+		// the body is not read when it is announced too large, and only up to one record over the limit
+		if ( ctx.req.getContentLengthLong() > batch.maxBytes() ) {
+			ctx.status(413);
+			ctx.json(new ErrorResponse("batch of " + ctx.req.getContentLengthLong() + " bytes, at most " + batch.maxBytes() + " allowed", 100));
+			return;
+		}
+		BufferedInputStream body = new BufferedInputStream( ctx.req.getInputStream(), 1 << 16 );
+		String contentType = ctx.contentType();
+		boolean ndjson = ( contentType != null && contentType.contains("ndjson") ) || !batch.isArray( body );
+		List<BatchRecord> records;
+		try {
+			records = batch.parse( body, ndjson );
+		} catch (IllegalArgumentException e) {
+			ctx.status(400);
+			ctx.json(new ErrorResponse(e.getMessage(), 100));
+			return;
+		}
+		if ( records.size() > batch.maxSize() ) {
+			ctx.status(413);
+			ctx.json(new ErrorResponse("batch of more than " + batch.maxSize() + " records, at most " + batch.maxSize() + " allowed", 100));
+			return;
+		}
+		ctx.contentType( ndjson ? "application/x-ndjson" : "application/json" );
+		batch.classify( records, oData, ctx.res.getOutputStream(), ndjson );
+	}
+	
+	/* ndjson records in, one result line per record out as soon as it is ready, in input order unless ordered=false */
+	private static void classifyStream( Context ctx, OntologyService ontology, BatchService batch ) throws IOException {
+		String version = ctx.queryParam("version");
+		OntologyData oData = ontology.current( version );
+		if ( oData == null ) {
+			unknownVersion( ctx, version );
+			return;
+		}
+		boolean ordered = !"false".equalsIgnoreCase( ctx.queryParam("ordered") );
+		ctx.contentType("application/x-ndjson");
+		batch.stream( ctx.req.getInputStream(), ctx.res.getOutputStream(), oData, ordered );
+	}
+	
+	private static void unknownJob( Context ctx ) {
+		ctx.status(404);
+		ctx.json(new ErrorResponse("unknown job " + ctx.pathParam("id"), 400));
+	}
+	
+	private static void unknownVersion( Context ctx, String version ) {
+		ctx.status(404);
+		ctx.json(new ErrorResponse("unknown ontology version " + version, 300));
 	}
 	
 }
@@ -23,6 +23,11 @@ import io.javalin.plugin.json.JavalinJackson;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import com.molgenie.smiles2concepts.services.OverloadedException;
+
+import java.util.concurrent.RejectedExecutionException;
 
 public final class Api {
 	
@@ -33,9 +38,14 @@ public final class Api {
 			var objectMapper = com.fasterxml.jackson.databind.json.JsonMapper.builder()
 					.serializationInclusion(com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL)
 					.build();
-			config.jsonMapper(new JavalinJackson(objectMapper));
+			config.jsonMapper(new TimedJsonMapper(new JavalinJackson(objectMapper)));
 		});
 
+		app.exception( RejectedExecutionException.class, (e, ctx) -> {
+			ctx.status(503);
+			ctx.header("Retry-After", String.valueOf( e instanceof OverloadedException o ? o.getRetryAfterSeconds() : 1 ) );
+			ctx.json(new ErrorResponse( "server busy, retry later", 503 ) );
+		});
 		app.exception( RuntimeException.class, (e, ctx) -> {
 			ctx.status(500);
 			ctx.json(new ErrorResponse( e.getMessage(), 500 ) );
@@ -44,9 +54,15 @@ public final class Api {
 	}
 	
 	private static Server createJettyServer(IJettySettings settings) {
-		// Configure Jetty ThreadPool
-		QueuedThreadPool threadPool = new QueuedThreadPool(settings.maxThreadCount());
-		threadPool.setName("server-thread-pool");
+		// Configure Jetty ThreadPool, virtual threads or a bounded pool of platform threads
+		ThreadPool threadPool;
+		if (settings.virtualThreads()) {
+			threadPool = new VirtualThreadPool("server-virtual");
+		} else {
+			QueuedThreadPool queuedPool = new QueuedThreadPool(settings.maxThreadCount());
+			queuedPool.setName("server-thread-pool");
+			threadPool = queuedPool;
+		}
 
 		// Create and configure Jetty server
 		Server server = new Server(threadPool);
@@ -17,19 +17,36 @@
 package com.molgenie.smiles2concepts.config;
 
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
 
 public record AppProperties(
 		int listeningPort,
 		int maxThreadCount,
+		boolean virtualThreads,
+		int computeThreads,
+		int computeQueue,
+		long admissionTargetMillis,
+		long admissionMaxWaitMillis,
+		int admissionQueue,
 		
 		String baseApiPath,
 		
 		String timeOut,
 		String module,
 		String ontologyFilename,
+		List<String> ontologyFilenames,
 		String smiles,
-		boolean writeLeafsOnly
+		boolean writeLeafsOnly,
+		int batchMaxSize,
+		String jobDirectory,
+		String jobInputDirectory,
+		int jobThreads,
+		long cacheSize,
+		long cacheTtl,
+		boolean persistentCache,
+		boolean watchOntology,
+		String warmupFilename
 		)
 		implements IJettySettings, IApiSettings, IClassifyerSettings  {
 	
@@ -24,6 +24,8 @@ import com.molgenie.smiles2concepts.Main;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
 
@@ -56,16 +58,37 @@ public final class AppPropertiesLoader {
 		// Convert properties to AppProperties object
 		int port = Integer.parseInt(appProps.getProperty("port"));
 		int maxThreads = Integer.parseInt(appProps.getProperty("maxThreads"));
+		boolean virtualThreads = Boolean.parseBoolean(appProps.getProperty("virtualThreads"));
+		int computeThreads = Integer.parseInt(appProps.getProperty("computeThreads"));
+		int computeQueue = Integer.parseInt(appProps.getProperty("computeQueue"));
+		long admissionTargetMillis = Long.parseLong(appProps.getProperty("admissionTargetMillis"));
+		long admissionMaxWaitMillis = Long.parseLong(appProps.getProperty("admissionMaxWaitMillis"));
+		int admissionQueue = Integer.parseInt(appProps.getProperty("admissionQueue"));
 		
 		String timeout = appProps.getProperty("timeout");
 		String baseApiPath = appProps.getProperty("baseApiPath");
 		String smiles =  appProps.getProperty("smiles");
 		String module =  appProps.getProperty("module");
 		String ontologyFilename = appProps.getProperty("ontologyFilename");
+		List<String> ontologyFilenames = Arrays.stream(appProps.getProperty("ontologyFilenames", "").split(","))
+				.map(String::trim).filter(name -> !name.isEmpty()).toList();
 		boolean writeLeafsOnly = Boolean.parseBoolean( (String) appProps.get("writeLeafsOnly"));
 		//System.out.println(appProps.get("writeLeafsOnly"));
-		return new AppProperties( port, maxThreads, 
+		int batchMaxSize = Integer.parseInt(appProps.getProperty("batchMaxSize"));
+		String jobDirectory = appProps.getProperty("jobDirectory");
+		String jobInputDirectory = appProps.getProperty("jobInputDirectory", "").trim();
+		int jobThreads = Integer.parseInt(appProps.getProperty("jobThreads"));
+		long cacheSize = Long.parseLong(appProps.getProperty("cacheSize"));
+		long cacheTtl = Long.parseLong(appProps.getProperty("cacheTtl"));
+		boolean persistentCache = Boolean.parseBoolean(appProps.getProperty("persistentCache"));
+		boolean watchOntology = Boolean.parseBoolean(appProps.getProperty("watchOntology"));
+		String warmupFilename = appProps.getProperty("warmupFilename", "").trim();
+		return new AppProperties( port, maxThreads, virtualThreads, computeThreads, computeQueue,
+				admissionTargetMillis, admissionMaxWaitMillis, admissionQueue,
 				baseApiPath, 
-				timeout, module, ontologyFilename, smiles, writeLeafsOnly );
+				timeout, module, ontologyFilename, ontologyFilenames, smiles, writeLeafsOnly,
+				batchMaxSize, jobDirectory, jobInputDirectory.isEmpty() ? null : jobInputDirectory, jobThreads,
+				cacheSize, cacheTtl, persistentCache,
+				watchOntology, warmupFilename.isEmpty() ? null : warmupFilename );
 	}
 }
@@ -19,13 +19,25 @@ package com.molgenie.smiles2concepts.config;
 import org.int4.dirk.api.InstanceResolver;
 import org.int4.dirk.di.Injectors;
 
+import com.molgenie.smiles2concepts.services.AdmissionService;
+import com.molgenie.smiles2concepts.services.BatchService;
 import com.molgenie.smiles2concepts.services.CommandService;
+import com.molgenie.smiles2concepts.services.ComputeService;
+import com.molgenie.smiles2concepts.services.JobService;
+import com.molgenie.smiles2concepts.services.MetricsService;
+import com.molgenie.smiles2concepts.services.OntologyService;
 
 public final class DiBuilder {
 	public static InstanceResolver build(AppProperties settings) {
 		var injector = Injectors.autoDiscovering();
 		injector.registerInstance(settings);
 		injector.register(CommandService.class);
+		injector.register(ComputeService.class);
+		injector.register(AdmissionService.class);
+		injector.register(OntologyService.class);
+		injector.register(BatchService.class);
+		injector.register(JobService.class);
+		injector.register(MetricsService.class);
 		return injector;
 	}
 }
\ No newline at end of file
@@ -17,6 +17,7 @@
 package com.molgenie.smiles2concepts.config;
 
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
@@ -24,7 +25,17 @@ public interface IClassifyerSettings {
 	public String timeOut();
 	public String module();
     public String ontologyFilename();
+    public List<String> ontologyFilenames();
     public String smiles();
     public boolean writeLeafsOnly();
+    public int batchMaxSize();
+    public String jobDirectory();
+    public String jobInputDirectory();
+    public int jobThreads();
+    public long cacheSize();
+    public long cacheTtl();
+    public boolean persistentCache();
+    public boolean watchOntology();
+    public String warmupFilename();
    
 }
@@ -19,4 +19,10 @@ package com.molgenie.smiles2concepts.config;
 public interface IJettySettings {
 	public int listeningPort();
 	public int maxThreadCount();
+	public boolean virtualThreads();
+	public int computeThreads();
+	public int computeQueue();
+	public long admissionTargetMillis();
+	public long admissionMaxWaitMillis();
+	public int admissionQueue();
 }
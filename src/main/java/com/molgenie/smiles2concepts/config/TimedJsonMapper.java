@@ -0,0 +1,57 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.config;
+
+import com.molgenie.smiles2concepts.models.common.ErrorResponse;
+import com.molgenie.smiles2concepts.services.MetricsService;
+
+import io.javalin.plugin.json.JsonMapper;
+
+import java.io.InputStream;
+
+/* json mapper of the api recording the serialization time and the error responses for the metrics */
+final class TimedJsonMapper implements JsonMapper {
+	private final JsonMapper mapper;
+	
+	TimedJsonMapper(JsonMapper mapper) {
+		this.mapper = mapper;
+	}
+	
+	@Override
+	public String toJsonString(Object obj) {
+		long start = System.nanoTime();
+		String json = mapper.toJsonString(obj);
+		MetricsService.JSON_SERIALIZATION.recordSince(start);
+		if (obj instanceof ErrorResponse error) MetricsService.countError(error.processState().errorCode());
+		return json;
+	}
+	
+	@Override
+	public InputStream toJsonStream(Object obj) {
+		return mapper.toJsonStream(obj);
+	}
+	
+	@Override
+	public <T> T fromJsonString(String json, Class<T> targetClass) {
+		return mapper.fromJsonString(json, targetClass);
+	}
+	
+	@Override
+	public <T> T fromJsonStream(InputStream json, Class<T> targetClass) {
+		return mapper.fromJsonStream(json, targetClass);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.config;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Jetty thread pool starting a virtual thread for every task
+ * 
+ * Connections, request parsing and response writing are cheap to park, so there is no
+ * limit on the number of tasks; a slow client holds a virtual thread and no platform thread.
+ * The classification itself is handed to the bounded compute pool.
+ */
+final class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+	private static final Logger log = LoggerFactory.getLogger(VirtualThreadPool.class);
+	
+	private final ThreadFactory factory;
+	private final AtomicInteger threads = new AtomicInteger();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	
+	VirtualThreadPool(String name) {
+		this.factory = Thread.ofVirtual().name(name + "-", 0).factory();
+	}
+	
+	@Override
+	public void execute(Runnable task) {
+		factory.newThread(() -> {
+			threads.incrementAndGet();
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.warn("server task failed", e);
+			} finally {
+				threads.decrementAndGet();
+			}
+		}).start();
+	}
+	
+	@Override
+	protected void doStop() throws Exception {
+		stopped.countDown();
+		super.doStop();
+	}
+	
+	@Override
+	public void join() throws InterruptedException {
+		stopped.await();
+	}
+	
+	@Override
+	public int getThreads() {
+		return threads.get();
+	}
+	
+	@Override
+	public int getIdleThreads() {
+		return 0;
+	}
+	
+	@Override
+	public boolean isLowOnThreads() {
+		return false;
+	}
+}
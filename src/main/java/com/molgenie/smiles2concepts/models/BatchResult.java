@@ -0,0 +1,25 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.models;
+
+import com.molgenie.smiles2concepts.models.common.ClassificationResult;
+import com.molgenie.smiles2concepts.models.common.ErrorResponse;
+
+/* result of one batch record, the classification or the error of this record */
+public record BatchResult( String id, ClassificationResult classification, ErrorResponse error ) {
+
+}
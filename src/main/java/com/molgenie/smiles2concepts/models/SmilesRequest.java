@@ -16,9 +16,13 @@
 */
 package com.molgenie.smiles2concepts.models;
 
+import java.util.List;
+
 public class SmilesRequest  {
 	private String classifierName;
 	private String smiles;
+	private String ontologyVersion;
+	private List<String> ontologyVersions;
 	
 	public String getClassifierName() {
 		return classifierName;
@@ -34,5 +38,21 @@ public class SmilesRequest  {
 		this.smiles = _smiles;
 	}
 
+	/* ontology version to classify against, the default ontology if not set */
+	public String getOntologyVersion() {
+		return ontologyVersion;
+	}
+	public void setOntologyVersion(String ontologyVersion) {
+		this.ontologyVersion = ontologyVersion;
+	}
+
+	/* several ontology versions to classify against at once, answered by a list of results */
+	public List<String> getOntologyVersions() {
+		return ontologyVersions;
+	}
+	public void setOntologyVersions(List<String> ontologyVersions) {
+		this.ontologyVersions = ontologyVersions;
+	}
+
 }
 
@@ -18,6 +18,6 @@ package com.molgenie.smiles2concepts.models.common;
 
 import com.molgenie.smiles2concepts.models.SmilesResponse;
 
-public record ClassificationResult( String smiles, String classifier, SmilesResponse smilesResponse ) {
+public record ClassificationResult( String smiles, String classifier, String ontologyVersion, SmilesResponse smilesResponse ) {
 
 }
\ No newline at end of file
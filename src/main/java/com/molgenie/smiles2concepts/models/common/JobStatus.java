@@ -0,0 +1,23 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.models.common;
+
+public record JobStatus( String id, String state, String input, String format, String ontologyVersion, 
+		long processed, long errors, long inputBytes, long readBytes, long resultBytes, double recordsPerSecond,
+		long submitted, long started, long finished, String error ) {
+
+}
@@ -0,0 +1,210 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import com.molgenie.smiles2concepts.config.IJettySettings;
+import com.molgenie.smiles2concepts.models.common.AdmissionStatus;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* adaptive concurrency limit in front of the interactive classification
+ * 
+ * The number of classifications in flight follows the measured latency (AIMD): each request
+ * finishing within the target latency raises the limit by 1/limit, about one per round of
+ * requests, a slower one cuts it by a tenth, at most once per target latency. Requests over
+ * the limit wait in a bounded queue for a short time and are rejected fast when it is full
+ * or the time is up, before any work is done for them.
+ * 
+ * Batch callers wait in a lane of their own, they are admitted only when no interactive
+ * request waits and may fill half of the queue. The records of batches and streams wait in
+ * the batch lane too, but without a time limit and not counted in the queue, so that a
+ * batch is slowed down by the interactive load instead of losing records.
+ */
+@Singleton
+public class AdmissionService {
+	private static final Logger log = LoggerFactory.getLogger(AdmissionService.class);
+	private static final double DECREASE = 0.9;
+	// weight of the last request in the latency average
+	private static final double LATENCY_WEIGHT = 0.05;
+	
+	/* admission of one request, released when its classification is done */
+	public final class Permit implements AutoCloseable {
+		private final long start = System.nanoTime();
+		
+		@Override
+		public void close() {
+			release(System.nanoTime() - start);
+		}
+	}
+	
+	private static final class Waiter {
+		private boolean admitted;
+	}
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition admission = lock.newCondition();
+	private final ArrayDeque<Waiter> interactive = new ArrayDeque<>();
+	private final ArrayDeque<Waiter> batch = new ArrayDeque<>();
+	private final double minLimit = 1;
+	private final double maxLimit;
+	private final long targetNanos;
+	private final long maxWaitNanos;
+	private final int queueSize;
+	private double limit;
+	private int inFlight;
+	private int recordWaiters;
+	private long admitted;
+	private long rejected;
+	private double latencyNanos;
+	private long lastDecrease;
+	
+	@Inject
+	public AdmissionService(IJettySettings settings, ComputeService compute) {
+		this.maxLimit = compute.threads() + Math.max(1, settings.computeQueue());
+		this.limit = compute.threads();
+		this.targetNanos = TimeUnit.MILLISECONDS.toNanos(settings.admissionTargetMillis());
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(settings.admissionMaxWaitMillis());
+		this.queueSize = settings.admissionQueue();
+		this.latencyNanos = targetNanos / 2.0;
+		log.info("admission of {} requests in flight, at most {}, target latency {} ms, {} waiting", 
+				limit, maxLimit, settings.admissionTargetMillis(), queueSize);
+	}
+	
+	/* admit a request or throw OverloadedException, batch requests on the batch lane */
+	public Permit acquire(boolean batchLane) throws InterruptedException {
+		lock.lock();
+		try {
+			if (isFree(batchLane)) return admit();
+			// the records of batches waiting in the lane do not take the places of requests
+			if (interactive.size() + batch.size() - recordWaiters >= (batchLane ? queueSize / 2 : queueSize)) throw reject();
+			return await(batchLane ? batch : interactive, maxWaitNanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/* admit one record of a batch on the batch lane, waiting as long as it takes
+	 * 
+	 * A batch is never rejected record by record, its intake is slowed down to the pace the
+	 * compute pool works off the admitted classifications.
+	 */
+	public Permit acquireRecord() throws InterruptedException {
+		lock.lock();
+		try {
+			if (isFree(true)) return admit();
+			recordWaiters++;
+			try {
+				return await(batch, Long.MAX_VALUE);
+			} finally {
+				recordWaiters--;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/* called with the lock held, first come first served within a lane, a batch request also waits behind the interactive ones */
+	private boolean isFree(boolean batchLane) {
+		return inFlight < limit && interactive.isEmpty() && (!batchLane || batch.isEmpty());
+	}
+	
+	/* called with the lock held */
+	private Permit admit() {
+		inFlight++;
+		admitted++;
+		return new Permit();
+	}
+	
+	/* called with the lock held, wait in the lane until a place is handed over or the time is up, Long.MAX_VALUE without limit */
+	private Permit await(ArrayDeque<Waiter> lane, long maxNanos) throws InterruptedException {
+		Waiter waiter = new Waiter();
+		lane.add(waiter);
+		long nanos = maxNanos;
+		try {
+			while (!waiter.admitted) {
+				if (maxNanos == Long.MAX_VALUE) {
+					admission.await();
+					continue;
+				}
+				if (nanos <= 0) {
+					lane.remove(waiter);
+					throw reject();
+				}
+				nanos = admission.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			if (waiter.admitted) release(0);
+			else lane.remove(waiter);
+			throw e;
+		}
+		admitted++;
+		return new Permit();
+	}
+	
+	public AdmissionStatus status() {
+		lock.lock();
+		try {
+			return new AdmissionStatus(limit, inFlight, interactive.size(), batch.size(), admitted, rejected, latencyNanos / 1e6);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void release(long nanos) {
+		lock.lock();
+		try {
+			inFlight--;
+			if (nanos > 0) {
+				latencyNanos += LATENCY_WEIGHT * (nanos - latencyNanos);
+				long now = System.nanoTime();
+				if (nanos <= targetNanos) {
+					limit = Math.min(maxLimit, limit + 1 / limit);
+				} else if (now - lastDecrease >= targetNanos) {
+					limit = Math.max(minLimit, limit * DECREASE);
+					lastDecrease = now;
+				}
+			}
+			/* hand the free places to the waiting requests, interactive first */
+			boolean signal = false;
+			while (inFlight < limit && !(interactive.isEmpty() && batch.isEmpty())) {
+				Waiter waiter = interactive.isEmpty() ? batch.poll() : interactive.poll();
+				waiter.admitted = true;
+				inFlight++;
+				signal = true;
+			}
+			if (signal) admission.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/* called with the lock held, the retry after the waiting requests had their turn */
+	private OverloadedException reject() {
+		rejected++;
+		double seconds = latencyNanos * (interactive.size() + batch.size() + 1) / limit / 1e9;
+		return new OverloadedException("server busy, retry later", (int) Math.max(1, Math.ceil(seconds)));
+	}
+}
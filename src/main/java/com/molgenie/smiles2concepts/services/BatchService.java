@@ -0,0 +1,334 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.smiles2concepts.config.IClassifyerSettings;
+import com.molgenie.smiles2concepts.models.BatchRecord;
+import com.molgenie.smiles2concepts.models.BatchResult;
+import com.molgenie.smiles2concepts.models.SmilesRequest;
+import com.molgenie.smiles2concepts.models.common.ErrorResponse;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* classification of many smiles in one request
+ * 
+ * The records of a batch run on the compute pool of the interactive classification, each
+ * admitted on the batch lane of the {@link AdmissionService}: interactive requests go first,
+ * and a batch waits for a place instead of overflowing the pool. Results are answered in
+ * request order, a window of records at a time. A record that can not be classified gets
+ * an error of its own, the other records of the batch are not affected. When the client is
+ * gone, the records in flight are cancelled and no more are classified.
+ */
+@Singleton
+public class BatchService {
+	private static final Logger log = LoggerFactory.getLogger(BatchService.class);
+	private static final ObjectMapper mapper = JsonMapper.builder()
+			.serializationInclusion(JsonInclude.Include.NON_NULL)
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+			.build();
+	
+	/* records in flight per compute thread and request */
+	private static final int WINDOW_PER_THREAD = 4;
+	/* request body bytes allowed per record */
+	private static final int MAX_RECORD_BYTES = 1024;
+	
+	private final IService service;
+	private final ComputeService compute;
+	private final AdmissionService admission;
+	private final int maxSize;
+	private final int window;
+	
+	@Inject
+	public BatchService(IClassifyerSettings settings, IService service, ComputeService compute, AdmissionService admission) {
+		this.service = service;
+		this.compute = compute;
+		this.admission = admission;
+		this.maxSize = settings.batchMaxSize();
+		this.window = compute.threads() * WINDOW_PER_THREAD;
+		log.info("batch classification on the compute pool, {} records in flight per batch, at most {} records", window, maxSize);
+	}
+	
+	public int maxSize() {
+		return maxSize;
+	}
+	
+	/* longest request body of a batch */
+	public long maxBytes() {
+		return (long) maxSize * MAX_RECORD_BYTES;
+	}
+	
+	/* true if the body starts with a json array, the stream is reset to its start */
+	public boolean isArray(BufferedInputStream in) throws IOException {
+		in.mark(MAX_RECORD_BYTES);
+		try {
+			for (int i = 0, b; i < MAX_RECORD_BYTES && (b = in.read()) >= 0; i++) {
+				if (!Character.isWhitespace(b)) return b == '[';
+			}
+			return false;
+		} finally {
+			in.reset();
+		}
+	}
+	
+	/* records of a json array, or of one json object per line; null for a line that is not a record
+	 * 
+	 * Reading stops after one record more than the maximum batch size, so that an oversized
+	 * batch is recognized without reading it. Throws IllegalArgumentException for a malformed array.
+	 */
+	public List<BatchRecord> parse(InputStream in, boolean ndjson) throws IOException {
+		List<BatchRecord> records = new ArrayList<>();
+		if (!ndjson) {
+			try (JsonParser parser = mapper.createParser(in)) {
+				if (parser.nextToken() != JsonToken.START_ARRAY) throw new IllegalArgumentException("invalid batch: no json array");
+				while (records.size() <= maxSize && parser.nextToken() == JsonToken.START_OBJECT) {
+					records.add(mapper.readValue(parser, BatchRecord.class));
+				}
+				if (records.size() <= maxSize && parser.currentToken() != JsonToken.END_ARRAY) {
+					throw new IllegalArgumentException("invalid batch: records must be json objects");
+				}
+			} catch (JsonProcessingException e) {
+				throw new IllegalArgumentException("invalid batch: " + e.getOriginalMessage());
+			}
+			return records;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+		String line;
+		while (records.size() <= maxSize && (line = reader.readLine()) != null) {
+			if (!line.isBlank()) records.add(parseRecord(line));
+		}
+		return records;
+	}
+	
+	/* classify all records against the ontology and write the results in record order
+	 * 
+	 * As json array or one json object per line. A window of records is in flight at a time,
+	 * when writing fails because the client is gone, the records in flight are cancelled.
+	 */
+	public void classify(List<BatchRecord> records, OntologyData oData, OutputStream out, boolean ndjson) throws IOException {
+		ArrayDeque<CompletableFuture<BatchResult>> pending = new ArrayDeque<>(window);
+		boolean first = true;
+		try {
+			if (!ndjson) out.write('[');
+			for (BatchRecord record : records) {
+				pending.add(submit(record, oData));
+				while (!pending.isEmpty() && (pending.size() >= window || pending.peek().isDone())) {
+					write(out, pending.poll().join(), ndjson, first);
+					first = false;
+				}
+			}
+			while (!pending.isEmpty()) {
+				write(out, pending.poll().join(), ndjson, first);
+				first = false;
+			}
+			if (!ndjson) out.write(']');
+			out.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("batch classification interrupted", e);
+		} finally {
+			pending.forEach(future -> future.cancel(false));
+		}
+	}
+	
+	/* classify ndjson records while they are read, writing one result line as soon as it is ready
+	 * 
+	 * At most a window of records is in flight: when it is full, intake waits for the next result
+	 * to be written, and writing blocks while the client does not read. Memory stays constant
+	 * however long the stream is. Ordered results follow the input order, unordered results
+	 * are written in completion order and are matched by their id. When the client is gone,
+	 * the records in flight are cancelled in both orders.
+	 */
+	public void stream(InputStream in, OutputStream out, OntologyData oData, boolean ordered) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+		ArrayDeque<CompletableFuture<BatchResult>> pending = new ArrayDeque<>(window);
+		Set<CompletableFuture<BatchResult>> unordered = ConcurrentHashMap.newKeySet();
+		BlockingQueue<BatchResult> done = new LinkedBlockingQueue<>();
+		int inFlight = 0;
+		long count = 0;
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank()) continue;
+				CompletableFuture<BatchResult> future = submit(parseRecord(line), oData);
+				if (ordered) {
+					pending.add(future);
+					/* write the finished head of the window, wait for it when the window is full */
+					while (!pending.isEmpty() && (pending.size() >= window || pending.peek().isDone())) {
+						write(out, pending.poll().join());
+					}
+				} else {
+					unordered.add(future);
+					future.thenAccept(result -> {
+						unordered.remove(future);
+						done.add(result);
+					});
+					inFlight++;
+					if (inFlight >= window) {
+						write(out, done.take());
+						inFlight--;
+					}
+					for (BatchResult result; (result = done.poll()) != null; inFlight--) write(out, result);
+				}
+				out.flush();
+				count++;
+			}
+			while (!pending.isEmpty()) write(out, pending.poll().join());
+			for (; inFlight > 0; inFlight--) write(out, done.take());
+			out.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("classification stream interrupted", e);
+		} finally {
+			pending.forEach(future -> future.cancel(false));
+			unordered.forEach(future -> future.cancel(false));
+		}
+		log.debug("streamed {} records", count);
+	}
+	
+	/* null for a line that is not a record */
+	private BatchRecord parseRecord(String line) {
+		try {
+			return mapper.readValue(line, BatchRecord.class);
+		} catch (JsonProcessingException e) {
+			return null;
+		}
+	}
+	
+	/* the result as one json line without the line end */
+	public byte[] toJson(BatchResult result) throws JsonProcessingException {
+		return mapper.writeValueAsBytes(result);
+	}
+	
+	private void write(OutputStream out, BatchResult result) throws IOException {
+		out.write(toJson(result));
+		out.write('\n');
+	}
+	
+	/* an ndjson line or an element of the json array */
+	private void write(OutputStream out, BatchResult result, boolean ndjson, boolean first) throws IOException {
+		if (ndjson) {
+			write(out, result);
+			return;
+		}
+		if (!first) out.write(',');
+		out.write(toJson(result));
+	}
+	
+	/* admitted on the batch lane, then classified on the compute pool, waiting while it is busy
+	 * 
+	 * The place is given back when the task has run or was skipped as cancelled. Never completes
+	 * exceptionally, a failing record gets its error result.
+	 */
+	private CompletableFuture<BatchResult> submit(BatchRecord record, OntologyData oData) throws InterruptedException {
+		AdmissionService.Permit permit = admission.acquireRecord();
+		CompletableFuture<BatchResult> result = new CompletableFuture<>();
+		Runnable task = task(record, oData, true, result);
+		try {
+			compute.execute(() -> {
+				try (permit) {
+					task.run();
+				}
+			});
+		} catch (InterruptedException e) {
+			permit.close();
+			throw e;
+		}
+		return result;
+	}
+	
+	/* classification of one record of a job on the given executor, never completes exceptionally
+	 * 
+	 * jobs bypass the result cache, their records would push out the results of interactive requests
+	 */
+	public CompletableFuture<BatchResult> submit(BatchRecord record, OntologyData oData, Executor executor) {
+		CompletableFuture<BatchResult> result = new CompletableFuture<>();
+		executor.execute(task(record, oData, false, result));
+		return result;
+	}
+	
+	/* a record whose future is cancelled before its turn is not classified */
+	private Runnable task(BatchRecord record, OntologyData oData, boolean useResultCache, CompletableFuture<BatchResult> result) {
+		return () -> {
+			if (result.isDone()) return;
+			try {
+				result.complete(classify(record, oData, useResultCache));
+			} catch (Throwable e) {
+				result.complete(error(record == null ? null : record.getId(), String.valueOf(e.getMessage()), 500));
+				throw e;
+			}
+		};
+	}
+	
+	private BatchResult classify(BatchRecord record, OntologyData oData, boolean useResultCache) {
+		if (record == null) return error(null, "invalid record", 100);
+		String smiles = record.getSmiles();
+		if (smiles == null || smiles.isEmpty()) {
+			return error(record.getId(), "no or empty smiles found", 100);
+		}
+		try {
+			new SmilesParser().parse(new StereoMolecule(), smiles.getBytes());
+		} catch (Exception e) {
+			return error(record.getId(), "invalid smiles", 200);
+		}
+		try {
+			SmilesRequest request = new SmilesRequest();
+			request.setSmiles(smiles);
+			request.setClassifierName("MolGenie Ambit+OpenChemLib Classifier v1.0");
+			return new BatchResult(record.getId(), service.performClassification(request, oData, useResultCache), null);
+		} catch (RuntimeException e) {
+			log.error("could not classify batch record " + record.getId(), e);
+			return error(record.getId(), String.valueOf(e.getMessage()), 500);
+		}
+	}
+	
+	/* error of one record, counted for the metrics */
+	private static BatchResult error(String id, String message, int code) {
+		MetricsService.countError(code);
+		return new BatchResult(id, null, new ErrorResponse(message, code));
+	}
+}
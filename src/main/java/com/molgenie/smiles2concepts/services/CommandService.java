@@ -21,10 +21,12 @@ import com.actelion.research.chem.StereoMolecule;
 import com.molgenie.assignment.AssignCompounds;
 import com.molgenie.assignment.AssignCompounds.AssignmentParameters;
 import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.assignment.PreparedMolecule;
 import com.molgenie.smiles2concepts.config.IClassifyerSettings;
 import com.molgenie.smiles2concepts.models.Assignment;
 import com.molgenie.smiles2concepts.models.SmilesRequest;
 import com.molgenie.smiles2concepts.models.SmilesResponse;
+import com.molgenie.smiles2concepts.models.common.CacheStatistics;
 import com.molgenie.smiles2concepts.models.common.ClassificationResult;
 
 import jakarta.inject.Inject;
@@ -32,6 +34,12 @@ import jakarta.inject.Singleton;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,10 +48,17 @@ import org.slf4j.LoggerFactory;
 public class CommandService implements IService {
 	private static final Logger log = LoggerFactory.getLogger(CommandService.class);
 	private final IClassifyerSettings settings;
+	private final ResultCache cache;
+	// assignments running now by cache key, requests for the same structure are completed by them
+	private final ConcurrentHashMap<String,CompletableFuture<SmilesResponse>> inFlight = new ConcurrentHashMap<>();
+	// longest wait for an identical running assignment
+	private final long timeOutSeconds;
 	
 	@Inject
 	public CommandService(IClassifyerSettings settings) {
 		this.settings = settings;
+		this.cache = new ResultCache(settings.cacheSize(), settings.cacheTtl());
+		this.timeOutSeconds = seconds(settings.timeOut());
 	}
 
 	/* perform smiles classification
@@ -52,34 +67,162 @@ public class CommandService implements IService {
 	 * oData contain data from loaded ontology
 	 */
 	public ClassificationResult performClassification( SmilesRequest request, OntologyData oData ) {
+		return performClassification( request, oData, true );
+	}
+	
+	/* perform smiles classification, without the result cache for bulk work such as jobs
+	 * 
+	 * their structures are rarely requested again and would only push out those of interactive requests
+	 */
+	public ClassificationResult performClassification( SmilesRequest request, OntologyData oData, boolean useResultCache ) {
+		return join(classify(request, List.of(oData), useResultCache)).get(0);
+	}
+	
+	/* perform smiles classification against several ontology versions
+	 * 
+	 * the OpenChemLib idcode and the prepared molecule are computed once and shared by all versions
+	 */
+	public List<ClassificationResult> performClassification( SmilesRequest request, List<OntologyData> ontologies ) {
+		return join(classify(request, ontologies, true));
+	}
+	
+	private static <T> T join( CompletableFuture<T> future ) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+			if (e.getCause() instanceof Error error) throw error;
+			throw e;
+		}
+	}
+	
+	/* classification against several ontology versions without waiting for identical requests
+	 * 
+	 * the assignments run on the calling thread, a version whose identical assignment already runs
+	 * is completed by that assignment, so no thread is held while waiting for it
+	 */
+	public CompletableFuture<List<ClassificationResult>> classify( SmilesRequest request, List<OntologyData> ontologies ) {
+		return classify(request, ontologies, true);
+	}
+	
+	private CompletableFuture<List<ClassificationResult>> classify( SmilesRequest request, List<OntologyData> ontologies, boolean useResultCache ) {
 		
 		String inputSmiles = request.getSmiles();
 		String classifier = request.getClassifierName();
 		String timeOut = settings.timeOut();
 
 		String idcode = "1";
+		boolean canonical = false;
 		try {
+			long start = System.nanoTime();
 			StereoMolecule mol = new StereoMolecule();
 			int mode = SmilesParser.SMARTS_MODE_IS_SMILES | SmilesParser.MODE_SKIP_COORDINATE_TEMPLATES;
 			new SmilesParser( mode, false ).parse( mol, inputSmiles.getBytes() );
+			start = MetricsService.OCL_PARSE.recordSince(start);
 			idcode = mol.getIDCode();
+			MetricsService.IDCODE.recordSince(start);
+			canonical = idcode != null && !idcode.isEmpty();
 		} catch (Exception e) {
 			log.error("could not convert smiles to OpenChemLib mol...");
 		}
 		
+		PreparedMolecule mol = PreparedMolecule.prepare(inputSmiles, true);
+		List<CompletableFuture<ClassificationResult>> results = new ArrayList<>(ontologies.size());
+		for (OntologyData oData : ontologies) {
+			results.add(classify(inputSmiles, classifier, timeOut, idcode, canonical, mol, oData, useResultCache));
+		}
+		return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new))
+				.thenApply(done -> results.stream().map(CompletableFuture::join).toList());
+	}
+	
+	private CompletableFuture<ClassificationResult> classify( String inputSmiles, String classifier, String timeOut, 
+			String idcode, boolean canonical, PreparedMolecule mol, OntologyData oData, boolean useResultCache ) {
+		
 		AssignmentParameters parameters = new AssignmentParameters();
 		parameters.setId(idcode);
 		parameters.setSmiles(inputSmiles);
 		parameters.setTimeOut(timeOut);
 		
+		// same structure written as another smiles, only with a valid canonical idcode
+		String cacheKey = canonical ? ResultCache.key(oData, parameters.getWriteLeafsOnly(), idcode) : null;
+		if (cacheKey != null && useResultCache) {
+			SmilesResponse cached = cache.get(cacheKey);
+			if (cached != null) return CompletableFuture.completedFuture(new ClassificationResult( inputSmiles, classifier, oData.getVersion(), cached ));
+		}
+		
+		if (cacheKey == null) {
+			return CompletableFuture.completedFuture(new ClassificationResult( inputSmiles, classifier, oData.getVersion(), assign(parameters, oData, mol, null, false) ));
+		}
+		
+		// single flight: the first request of a structure assigns it, identical requests meanwhile are completed by its result
+		CompletableFuture<SmilesResponse> own = new CompletableFuture<>();
+		CompletableFuture<SmilesResponse> running = inFlight.putIfAbsent(cacheKey, own);
+		if (running != null) {
+			CompletableFuture<SmilesResponse> waiting = running.copy();
+			if (timeOutSeconds < Long.MAX_VALUE) waiting.orTimeout(timeOutSeconds, TimeUnit.SECONDS);
+			return waiting.handle((response, e) -> {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				if (cause instanceof TimeoutException) {
+					throw new OverloadedException("identical classification still running after " + timeOutSeconds + " s", 1);
+				}
+				if (cause instanceof RuntimeException runtime) throw runtime;
+				if (cause instanceof Error error) throw error;
+				if (cause != null) throw new IllegalStateException(cause);
+				cache.countCoalesced();
+				return new ClassificationResult( inputSmiles, classifier, oData.getVersion(), response );
+			});
+		}
+		try {
+			SmilesResponse response = assign(parameters, oData, mol, cacheKey, useResultCache);
+			own.complete(response);
+			return CompletableFuture.completedFuture(new ClassificationResult( inputSmiles, classifier, oData.getVersion(), response ));
+		} catch (Throwable e) {
+			own.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(cacheKey, own);
+		}
+	}
+	
+	/* assignment of the molecule, with the assignment cache if there is a key, and put in the result cache unless it fails */
+	private SmilesResponse assign( AssignmentParameters parameters, OntologyData oData, PreparedMolecule mol, String cacheKey, boolean useResultCache ) {
 		HashMap<String,String> classOutput = new HashMap();
 		try {
-			classOutput = AssignCompounds.runAssignment( parameters, oData );
+			classOutput = cacheKey != null ? AssignCompounds.runCachedAssignment( parameters, oData, mol ) : AssignCompounds.runAssignment( parameters, oData, mol );
 		} catch (Exception e) {
 			log.error("could not assign smiles chemical classes...");
+			useResultCache = false;
 		}
 		
-		return new ClassificationResult( inputSmiles, classifier, buildSmilesResponse(classOutput) );
+		SmilesResponse response = buildSmilesResponse(classOutput);
+		if (useResultCache) cache.put(cacheKey, response);
+		return response;
+	}
+	
+	/* the timeout setting in seconds, read once; no timeout without a setting */
+	private static long seconds( String timeOut ) {
+		if (timeOut == null || timeOut.isBlank()) return Long.MAX_VALUE;
+		try {
+			long seconds = Long.parseLong(timeOut.trim());
+			if (seconds > 0) return seconds;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("timeout is not a positive number of seconds: " + timeOut);
+	}
+	
+	public CacheStatistics cacheStatistics() {
+		return cache.statistics();
+	}
+	
+	/* drop the cached results of a replaced ontology, they are never requested again */
+	public void evictResults( OntologyData replaced, OntologyData replacement ) {
+		cache.invalidate(replaced, replacement);
+	}
+	
+	/* number of assignments running now that identical requests wait for */
+	int inFlightCount() {
+		return inFlight.size();
 	}
 	
 	private SmilesResponse buildSmilesResponse( HashMap<String,String> assMap ) {
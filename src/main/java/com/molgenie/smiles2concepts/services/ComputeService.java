@@ -0,0 +1,112 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import com.molgenie.smiles2concepts.config.IJettySettings;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* platform threads the interactive classifications run on
+ * 
+ * The request threads only wait for the result. The pool has one thread per core by default,
+ * so the cores are busy without being oversubscribed, and a bounded queue: when it is full
+ * the task is rejected with a RejectedExecutionException instead of waiting unbounded.
+ * The records of batches run on the same pool, admitted on the batch lane of the
+ * {@link AdmissionService}.
+ */
+@Singleton
+public class ComputeService {
+	private static final Logger log = LoggerFactory.getLogger(ComputeService.class);
+	
+	private final ThreadPoolExecutor pool;
+	
+	@Inject
+	public ComputeService(IJettySettings settings) {
+		int threads = settings.computeThreads() > 0 ? settings.computeThreads() : Runtime.getRuntime().availableProcessors();
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(Math.max(1, settings.computeQueue())), r -> {
+					Thread thread = new Thread(r, "classify-compute");
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.pool.prestartAllCoreThreads();
+		log.info("classification on {} compute threads, at most {} waiting", threads, settings.computeQueue());
+	}
+	
+	/* run the task on the compute pool and wait for its result */
+	public <T> T call(Callable<T> task) throws InterruptedException {
+		Future<T> future = pool.submit(task);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+			if (e.getCause() instanceof Error error) throw error;
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/* run the task on the compute pool and wait on the calling thread for the future it returns,
+	 * a task completed by another one's result gives its compute thread back at once */
+	public <T> T join(Callable<CompletableFuture<T>> task) throws InterruptedException {
+		CompletableFuture<T> result = call(task);
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			result.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+			if (e.getCause() instanceof Error error) throw error;
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/* run the task on the compute pool without waiting for its result, waiting for a place when the queue is full
+	 * 
+	 * The tasks are put into the queue directly, the threads of the pool are all started for them.
+	 */
+	public void execute(Runnable task) throws InterruptedException {
+		pool.getQueue().put(task);
+	}
+	
+	public int threads() {
+		return pool.getMaximumPoolSize();
+	}
+	
+	public int active() {
+		return pool.getActiveCount();
+	}
+	
+	public int queued() {
+		return pool.getQueue().size();
+	}
+}
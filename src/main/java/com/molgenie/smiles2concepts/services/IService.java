@@ -18,8 +18,17 @@ package com.molgenie.smiles2concepts.services;
 
 import com.molgenie.assignment.OntologyLoader.OntologyData;
 import com.molgenie.smiles2concepts.models.SmilesRequest;
+import com.molgenie.smiles2concepts.models.common.CacheStatistics;
 import com.molgenie.smiles2concepts.models.common.ClassificationResult;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public interface IService {
 	ClassificationResult performClassification( SmilesRequest request, OntologyData oData );
+	ClassificationResult performClassification( SmilesRequest request, OntologyData oData, boolean useResultCache );
+	List<ClassificationResult> performClassification( SmilesRequest request, List<OntologyData> ontologies );
+	CompletableFuture<List<ClassificationResult>> classify( SmilesRequest request, List<OntologyData> ontologies );
+	CacheStatistics cacheStatistics();
+	void evictResults( OntologyData replaced, OntologyData replacement );
 }
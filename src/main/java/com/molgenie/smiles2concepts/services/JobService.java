@@ -0,0 +1,490 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.assignment.SdfLoader.SdfReader;
+import com.molgenie.smiles2concepts.config.IClassifyerSettings;
+import com.molgenie.smiles2concepts.models.BatchRecord;
+import com.molgenie.smiles2concepts.models.BatchResult;
+import com.molgenie.smiles2concepts.models.common.JobStatus;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* asynchronous classification of large SMILES or SDF files
+ * 
+ * Jobs run one after the other on their own runner thread, their records are classified
+ * on a compute pool of their own, so job work does not queue behind or in front of the
+ * interactive requests. Each job has a directory with its input, its ndjson results in
+ * input order and its state. The state is checkpointed with the number of records and
+ * result bytes written; after a restart the results are cut back to the checkpoint and
+ * the job continues with the next record.
+ */
+@Singleton
+public class JobService {
+	private static final Logger log = LoggerFactory.getLogger(JobService.class);
+	private static final ObjectMapper mapper = JsonMapper.builder()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+			.build();
+	// records and milliseconds between two checkpoints
+	private static final int CHECKPOINT_RECORDS = 10000;
+	private static final long CHECKPOINT_MILLIS = 10000;
+	// records in flight per compute thread
+	private static final int WINDOW_PER_THREAD = 4;
+	
+	public static final String QUEUED = "queued";
+	public static final String RUNNING = "running";
+	public static final String DONE = "done";
+	public static final String FAILED = "failed";
+	
+	public static final String SMILES = "smiles";
+	public static final String SDF = "sdf";
+	
+	/* mutable state of one job, written as its JobStatus */
+	private static final class Job {
+		private final String id;
+		private final String input;
+		private final String format;
+		private final String ontologyVersion;
+		private final long submitted;
+		private volatile String state = QUEUED;
+		private volatile long processed;
+		private volatile long errors;
+		private volatile long inputBytes;
+		private volatile long readBytes;
+		private volatile long resultBytes;
+		// result bytes flushed to the file, the results served while the job runs
+		private volatile long flushedBytes;
+		private volatile long started;
+		private volatile long finished;
+		private volatile String error;
+		// records and start of this run, for the throughput
+		private volatile long runProcessed;
+		private volatile long runStarted;
+		
+		private Job(String id, String input, String format, String ontologyVersion, long submitted) {
+			this.id = id;
+			this.input = input;
+			this.format = format;
+			this.ontologyVersion = ontologyVersion;
+			this.submitted = submitted;
+		}
+		
+		private static Job of(JobStatus status) {
+			Job job = new Job(status.id(), status.input(), status.format(), status.ontologyVersion(), status.submitted());
+			job.state = status.state();
+			job.processed = status.processed();
+			job.errors = status.errors();
+			job.inputBytes = status.inputBytes();
+			job.readBytes = status.readBytes();
+			job.resultBytes = status.resultBytes();
+			job.flushedBytes = status.resultBytes();
+			job.started = status.started();
+			job.finished = status.finished();
+			job.error = status.error();
+			return job;
+		}
+		
+		private JobStatus status() {
+			long end = finished > 0 ? finished : System.currentTimeMillis();
+			double rate = runStarted > 0 && end > runStarted ? runProcessed * 1000.0 / (end - runStarted) : 0;
+			return new JobStatus(id, state, input, format, ontologyVersion, processed, errors, inputBytes, readBytes,
+					resultBytes, rate, submitted, started, finished, error);
+		}
+	}
+	
+	private final BatchService batch;
+	private final OntologyService ontology;
+	private final Path directory;
+	// the only directory of server files to classify, null if jobs take uploads only
+	private final Path inputDirectory;
+	private final int window;
+	private final Map<String,Job> jobs = new ConcurrentHashMap<>();
+	private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> daemon(r, "job-runner"));
+	private final ExecutorService pool;
+	private volatile boolean closed;
+	
+	@Inject
+	public JobService(IClassifyerSettings settings, BatchService batch, OntologyService ontology) {
+		this.batch = batch;
+		this.ontology = ontology;
+		this.directory = Path.of(settings.jobDirectory());
+		this.inputDirectory = settings.jobInputDirectory() == null ? null : Path.of(settings.jobInputDirectory()).toAbsolutePath().normalize();
+		int threads = settings.jobThreads() > 0 ? settings.jobThreads() : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		this.window = threads * WINDOW_PER_THREAD;
+		this.pool = Executors.newFixedThreadPool(threads, r -> daemon(r, "job-classify"));
+		log.info("classification jobs in {} with {} threads", directory.toAbsolutePath(), threads);
+	}
+	
+	/* read the jobs of earlier runs, queue again those that did not finish */
+	public void resume() throws IOException {
+		Files.createDirectories(directory);
+		List<Job> unfinished = new ArrayList<>();
+		try (var dirs = Files.list(directory)) {
+			for (Path dir : dirs.toList()) {
+				Path state = dir.resolve("job.json");
+				if (!Files.isRegularFile(state)) continue;
+				try {
+					Job job = Job.of(mapper.readValue(state.toFile(), JobStatus.class));
+					jobs.put(job.id, job);
+					if (QUEUED.equals(job.state) || RUNNING.equals(job.state)) unfinished.add(job);
+				} catch (IOException e) {
+					log.error("could not read job state " + state, e);
+				}
+			}
+		}
+		unfinished.sort(Comparator.comparingLong(job -> job.submitted));
+		for (Job job : unfinished) {
+			log.info("resuming job {} after {} records", job.id, job.processed);
+			runner.submit(() -> run(job));
+		}
+	}
+	
+	/* job classifying a file of the job input directory */
+	public JobStatus submit(String fileName, String format, String ontologyVersion) throws IOException {
+		Path input = resolve(fileName);
+		String inputFormat = format(format, fileName);
+		checkVersion(ontologyVersion);
+		String id = UUID.randomUUID().toString();
+		Path dir = directory.resolve(id);
+		try {
+			Files.createDirectories(dir);
+			return queue(new Job(id, input.toString(), inputFormat, ontologyVersion, System.currentTimeMillis()));
+		} catch (IOException | RuntimeException e) {
+			delete(dir);
+			throw e;
+		}
+	}
+	
+	/* job classifying an uploaded file, stored in the job directory
+	 * 
+	 * the request is checked before the upload is read, a failed upload leaves no job directory behind
+	 */
+	public JobStatus submit(InputStream upload, String format, String ontologyVersion) throws IOException {
+		String inputFormat = format(format, "");
+		checkVersion(ontologyVersion);
+		String id = UUID.randomUUID().toString();
+		Path dir = directory.resolve(id);
+		try {
+			Files.createDirectories(dir);
+			Path input = dir.resolve(SDF.equals(inputFormat) ? "input.sdf" : "input.smi");
+			Files.copy(upload, input, StandardCopyOption.REPLACE_EXISTING);
+			return queue(new Job(id, input.toAbsolutePath().toString(), inputFormat, ontologyVersion, System.currentTimeMillis()));
+		} catch (IOException | RuntimeException e) {
+			delete(dir);
+			throw e;
+		}
+	}
+	
+	/* null for an unknown job */
+	public JobStatus status(String id) {
+		Job job = jobs.get(id);
+		return job == null ? null : job.status();
+	}
+	
+	public List<JobStatus> status() {
+		return jobs.values().stream().sorted(Comparator.comparingLong(job -> job.submitted)).map(Job::status).toList();
+	}
+	
+	/* the result lines written up to the last checkpoint, null for an unknown job */
+	public InputStream results(String id) throws IOException {
+		Job job = jobs.get(id);
+		if (job == null) return null;
+		Path results = directory.resolve(id).resolve("results.ndjson");
+		if (!Files.isRegularFile(results)) return InputStream.nullInputStream();
+		return new LimitedInputStream(Files.newInputStream(results), job.flushedBytes);
+	}
+	
+	/* stop at the next record, running jobs are resumed from their checkpoint after the restart */
+	public void close() {
+		closed = true;
+		runner.shutdown();
+		try {
+			runner.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		pool.shutdownNow();
+	}
+	
+	/* the file in the input directory, nothing outside of it even through a link */
+	private Path resolve(String fileName) throws IOException {
+		if (inputDirectory == null) throw new IllegalArgumentException("no job input directory, upload the file");
+		Path file = inputDirectory.resolve(fileName).normalize();
+		if (!file.startsWith(inputDirectory) || !Files.isRegularFile(file)
+				|| !file.toRealPath().startsWith(inputDirectory.toRealPath())) {
+			throw new IllegalArgumentException("no file " + fileName + " in the job input directory");
+		}
+		return file;
+	}
+	
+	private void checkVersion(String ontologyVersion) {
+		if (ontology.current(ontologyVersion) == null) {
+			throw new IllegalArgumentException("unknown ontology version " + ontologyVersion);
+		}
+	}
+	
+	/* the directory of a job that was not queued, with what was written into it */
+	private static void delete(Path dir) {
+		if (!Files.exists(dir)) return;
+		try (var files = Files.walk(dir)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(file);
+		} catch (IOException e) {
+			log.warn("could not delete the directory of a failed job submission " + dir, e);
+		}
+	}
+	
+	private JobStatus queue(Job job) throws IOException {
+		checkpoint(job);
+		jobs.put(job.id, job);
+		runner.submit(() -> run(job));
+		log.info("queued job {} for {}", job.id, job.input);
+		return job.status();
+	}
+	
+	private void run(Job job) {
+		if (closed) return;
+		Path dir = directory.resolve(job.id);
+		Path results = dir.resolve("results.ndjson");
+		try {
+			OntologyData oData = ontology.current(job.ontologyVersion);
+			if (oData == null) throw new IOException("unknown ontology version " + job.ontologyVersion);
+			job.state = RUNNING;
+			if (job.started == 0) job.started = System.currentTimeMillis();
+			job.runStarted = System.currentTimeMillis();
+			job.runProcessed = 0;
+			job.inputBytes = Files.size(Path.of(job.input));
+			/* results after the checkpoint are written again */
+			try (FileChannel channel = FileChannel.open(results, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				channel.truncate(job.resultBytes);
+			}
+			checkpoint(job);
+			
+			ArrayDeque<CompletableFuture<BatchResult>> pending = new ArrayDeque<>(window);
+			try (CountingInputStream counter = new CountingInputStream(Files.newInputStream(Path.of(job.input)));
+					Records records = records(job, counter);
+					OutputStream out = new BufferedOutputStream(Files.newOutputStream(results, StandardOpenOption.APPEND), 1 << 16)) {
+				for (long skip = job.processed; skip > 0 && records.next() != null; skip--) ;
+				long lastCheckpoint = System.currentTimeMillis();
+				long checkpointed = job.processed;
+				BatchRecord record;
+				while (!closed && (record = records.next()) != null) {
+					pending.add(batch.submit(record, oData, pool));
+					while (!pending.isEmpty() && (pending.size() >= window || pending.peek().isDone())) {
+						write(job, out, pending.poll().join());
+					}
+					job.readBytes = counter.count;
+					if (job.processed - checkpointed >= CHECKPOINT_RECORDS || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_MILLIS) {
+						out.flush();
+						job.flushedBytes = job.resultBytes;
+						checkpoint(job);
+						checkpointed = job.processed;
+						lastCheckpoint = System.currentTimeMillis();
+					}
+				}
+				while (!pending.isEmpty()) write(job, out, pending.poll().join());
+				out.flush();
+				job.flushedBytes = job.resultBytes;
+			}
+			if (!closed) {
+				job.state = DONE;
+				job.finished = System.currentTimeMillis();
+				log.info("job {} done, {} records, {} errors", job.id, job.processed, job.errors);
+			}
+		} catch (Exception e) {
+			log.error("job " + job.id + " failed", e);
+			job.state = FAILED;
+			job.error = String.valueOf(e.getMessage());
+			job.finished = System.currentTimeMillis();
+		}
+		try {
+			checkpoint(job);
+		} catch (IOException e) {
+			log.error("could not write job state " + job.id, e);
+		}
+	}
+	
+	private void write(Job job, OutputStream out, BatchResult result) throws IOException {
+		byte[] line = batch.toJson(result);
+		out.write(line);
+		out.write('\n');
+		job.resultBytes += line.length + 1;
+		job.processed++;
+		job.runProcessed++;
+		if (result.error() != null) job.errors++;
+	}
+	
+	/* the state is replaced atomically, a crash leaves the previous checkpoint */
+	private void checkpoint(Job job) throws IOException {
+		Path state = directory.resolve(job.id).resolve("job.json");
+		Path tmp = directory.resolve(job.id).resolve("job.json.tmp");
+		mapper.writeValue(tmp.toFile(), job.status());
+		Files.move(tmp, state, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private static String format(String format, String fileName) {
+		if (format != null && !format.isEmpty()) {
+			if (!SMILES.equals(format) && !SDF.equals(format)) throw new IllegalArgumentException("unknown format " + format);
+			return format;
+		}
+		return fileName.endsWith(".sdf") || fileName.endsWith(".sdf.gz") ? SDF : SMILES;
+	}
+	
+	/* records of the input, numbered from 1 where the input has no id */
+	private interface Records extends Closeable {
+		BatchRecord next() throws IOException;
+	}
+	
+	private static Records records(Job job, InputStream counted) throws IOException {
+		/* gzip by its magic bytes, an upload is stored without the .gz */
+		BufferedInputStream buffered = new BufferedInputStream(counted, 1 << 16);
+		buffered.mark(2);
+		boolean gzip = buffered.read() == 0x1f && buffered.read() == 0x8b;
+		buffered.reset();
+		InputStream in = gzip ? new GZIPInputStream(buffered, 1 << 16) : buffered;
+		if (SDF.equals(job.format)) {
+			SdfReader reader = new SdfReader(in);
+			return new Records() {
+				private long count;
+				public BatchRecord next() throws IOException {
+					String[] mol = reader.next();
+					if (mol == null) return null;
+					count++;
+					return record(mol[0].isEmpty() ? String.valueOf(count) : mol[0], mol[1]);
+				}
+				public void close() throws IOException {
+					reader.close();
+				}
+			};
+		}
+		/* smiles, optionally followed by whitespace and an id */
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+		return new Records() {
+			private long count;
+			public BatchRecord next() throws IOException {
+				String line;
+				do {
+					line = reader.readLine();
+					if (line == null) return null;
+				} while (line.isBlank());
+				count++;
+				String[] fields = line.trim().split("\\s+", 2);
+				return record(fields.length > 1 ? fields[1].trim() : String.valueOf(count), fields[0]);
+			}
+			public void close() throws IOException {
+				reader.close();
+			}
+		};
+	}
+	
+	private static BatchRecord record(String id, String smiles) {
+		BatchRecord record = new BatchRecord();
+		record.setId(id);
+		record.setSmiles(smiles);
+		return record;
+	}
+	
+	private static Thread daemon(Runnable r, String name) {
+		Thread thread = new Thread(r, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	/* bytes of the input file read so far, for the progress */
+	private static final class CountingInputStream extends FilterInputStream {
+		private volatile long count;
+		
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) count++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+	}
+	
+	/* the first bytes of a file that is still written */
+	private static final class LimitedInputStream extends FilterInputStream {
+		private long remaining;
+		
+		private LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.remaining = limit;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = super.read();
+			if (b >= 0) remaining--;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) remaining -= n;
+			return n;
+		}
+	}
+}
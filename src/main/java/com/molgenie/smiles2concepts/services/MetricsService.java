@@ -0,0 +1,148 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import com.molgenie.assignment.AssignmentMetrics;
+import com.molgenie.assignment.Histogram;
+import com.molgenie.smiles2concepts.models.common.AdmissionStatus;
+import com.molgenie.smiles2concepts.models.common.CacheStatistics;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* metrics of the service in the Prometheus text format
+ * 
+ * The stage latencies and per molecule counts are recorded by the requests into lock-free
+ * histograms without allocation, the cache, admission and JVM figures are read when the
+ * metrics are scraped.
+ */
+@Singleton
+public class MetricsService {
+	/* OpenChemLib smiles parsing and canonical idcode of the request */
+	public static final Histogram OCL_PARSE = Histogram.nanos("stage=\"ocl_parse\"");
+	public static final Histogram IDCODE = Histogram.nanos("stage=\"idcode\"");
+	/* json responses written by the api */
+	public static final Histogram JSON_SERIALIZATION = Histogram.nanos("stage=\"json_serialization\"");
+	
+	// error codes of the ErrorResponse, anything else is counted as other
+	private static final int[] ERROR_CODES = { 100, 200, 300, 400, 500, 503 };
+	private static final AtomicLongArray errors = new AtomicLongArray(ERROR_CODES.length + 1);
+	
+	private final IService service;
+	private final AdmissionService admission;
+	private final ComputeService compute;
+	
+	@Inject
+	public MetricsService(IService service, AdmissionService admission, ComputeService compute) {
+		this.service = service;
+		this.admission = admission;
+		this.compute = compute;
+	}
+	
+	public static void countError(int code) {
+		int index = ERROR_CODES.length;
+		for (int i = 0; i < ERROR_CODES.length; i++) {
+			if (ERROR_CODES[i] == code) index = i;
+		}
+		errors.incrementAndGet(index);
+	}
+	
+	public String scrape() {
+		StringBuilder sB = new StringBuilder(16384);
+		Histogram.write(sB, "smiles2concepts_stage_seconds", "Time spent per classification stage.", 
+				OCL_PARSE, IDCODE, AssignmentMetrics.RING_SYSTEMS, AssignmentMetrics.CDK_PREPARATION, 
+				AssignmentMetrics.TRAVERSAL, AssignmentMetrics.SMARTS_MATCH, AssignmentMetrics.POST_PROCESSING, JSON_SERIALIZATION);
+		Histogram.write(sB, "smiles2concepts_classes_visited", "Ontology classes evaluated per molecule and ontology.", 
+				AssignmentMetrics.CLASSES_VISITED);
+		Histogram.write(sB, "smiles2concepts_smarts_evaluated", "SMARTS graph matches per molecule and ontology.", 
+				AssignmentMetrics.SMARTS_EVALUATED);
+		
+		CacheStatistics cache = service.cacheStatistics();
+		counter(sB, "smiles2concepts_result_cache_hits_total", "Result cache hits.", cache.hits());
+		counter(sB, "smiles2concepts_result_cache_misses_total", "Result cache misses.", cache.misses());
+		counter(sB, "smiles2concepts_result_cache_evictions_total", "Result cache evictions.", cache.evictions());
+		gauge(sB, "smiles2concepts_result_cache_size", "Result cache entries.", cache.size());
+		counter(sB, "smiles2concepts_coalesced_total", "Requests answered by an identical running assignment.", cache.coalesced());
+		counter(sB, "smiles2concepts_assignment_cache_hits_total", "Persistent assignment cache hits.", AssignmentMetrics.CACHE_HITS.sum());
+		counter(sB, "smiles2concepts_assignment_cache_misses_total", "Persistent assignment cache misses.", AssignmentMetrics.CACHE_MISSES.sum());
+		
+		header(sB, "smiles2concepts_errors_total", "Error responses by error code.", "counter");
+		for (int i = 0; i <= ERROR_CODES.length; i++) {
+			String code = i < ERROR_CODES.length ? String.valueOf(ERROR_CODES[i]) : "other";
+			sB.append("smiles2concepts_errors_total{code=\"").append(code).append("\"} ").append(errors.get(i)).append('\n');
+		}
+		
+		AdmissionStatus status = admission.status();
+		gauge(sB, "smiles2concepts_admission_limit", "Adaptive limit of classifications in flight.", status.limit());
+		gauge(sB, "smiles2concepts_admission_in_flight", "Classifications in flight.", status.inFlight());
+		header(sB, "smiles2concepts_admission_waiting", "Requests waiting for admission by lane.", "gauge");
+		sB.append("smiles2concepts_admission_waiting{lane=\"interactive\"} ").append(status.interactiveWaiting()).append('\n');
+		sB.append("smiles2concepts_admission_waiting{lane=\"batch\"} ").append(status.batchWaiting()).append('\n');
+		counter(sB, "smiles2concepts_admission_admitted_total", "Requests admitted.", status.admitted());
+		counter(sB, "smiles2concepts_admission_rejected_total", "Requests rejected over capacity.", status.rejected());
+		gauge(sB, "smiles2concepts_compute_threads", "Compute pool threads.", compute.threads());
+		gauge(sB, "smiles2concepts_compute_active", "Compute pool threads classifying.", compute.active());
+		gauge(sB, "smiles2concepts_compute_queued", "Classifications waiting for a compute thread.", compute.queued());
+		
+		jvm(sB);
+		return sB.toString();
+	}
+	
+	private static void jvm(StringBuilder sB) {
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+		header(sB, "jvm_memory_used_bytes", "Used memory by area.", "gauge");
+		sB.append("jvm_memory_used_bytes{area=\"heap\"} ").append(heap.getUsed()).append('\n');
+		sB.append("jvm_memory_used_bytes{area=\"nonheap\"} ").append(nonHeap.getUsed()).append('\n');
+		header(sB, "jvm_memory_committed_bytes", "Committed memory by area.", "gauge");
+		sB.append("jvm_memory_committed_bytes{area=\"heap\"} ").append(heap.getCommitted()).append('\n');
+		sB.append("jvm_memory_committed_bytes{area=\"nonheap\"} ").append(nonHeap.getCommitted()).append('\n');
+		gauge(sB, "jvm_memory_max_bytes", "Maximum heap memory.", heap.getMax());
+		
+		header(sB, "jvm_gc_collections_total", "Garbage collections by collector.", "counter");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sB.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionCount()).append('\n');
+		}
+		header(sB, "jvm_gc_collection_seconds_total", "Time spent in garbage collection by collector.", "counter");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sB.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionTime() / 1000.0).append('\n');
+		}
+		gauge(sB, "jvm_threads_live", "Live platform threads.", ManagementFactory.getThreadMXBean().getThreadCount());
+		gauge(sB, "jvm_uptime_seconds", "Time since the start of the JVM.", ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+		gauge(sB, "jvm_available_processors", "Processors available to the JVM.", Runtime.getRuntime().availableProcessors());
+	}
+	
+	private static void header(StringBuilder sB, String name, String help, String type) {
+		sB.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sB.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	
+	private static void counter(StringBuilder sB, String name, String help, long value) {
+		header(sB, name, help, "counter");
+		sB.append(name).append(' ').append(value).append('\n');
+	}
+	
+	private static void gauge(StringBuilder sB, String name, String help, double value) {
+		header(sB, name, help, "gauge");
+		sB.append(name).append(' ').append(value).append('\n');
+	}
+}
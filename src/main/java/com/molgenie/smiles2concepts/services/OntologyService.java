@@ -0,0 +1,332 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import com.molgenie.assignment.AssignCompounds;
+import com.molgenie.assignment.AssignCompounds.AssignmentParameters;
+import com.molgenie.assignment.AssignmentCache;
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.assignment.SmartsQuery;
+import com.molgenie.assignment.SmartsQueryTable;
+import com.molgenie.assignment.StringPool;
+import com.molgenie.smiles2concepts.config.IClassifyerSettings;
+import com.molgenie.smiles2concepts.models.SmilesRequest;
+import com.molgenie.smiles2concepts.models.common.OntologyStatus;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* holds the ontologies the requests are classified against
+ * 
+ * The default ontology file and the further configured versions are loaded side by side,
+ * sharing one smarts query table and one string pool. Requests choose a version by the
+ * version of its obo header, the default ontology answers requests without one.
+ * 
+ * A new release of one of the files is loaded in the background, warmed with a sample
+ * corpus and then swapped in atomically. Requests read the ontology once, so requests
+ * in flight finish on the ontology they started with.
+ */
+@Singleton
+public class OntologyService {
+	private static final Logger log = LoggerFactory.getLogger(OntologyService.class);
+	// the file must not change for this long before it is reloaded, while it is copied
+	private static final long QUIET_MILLIS = 2000;
+	
+	/* one configured ontology file, replaced as a whole by a reload */
+	private static final class Slot {
+		private final AtomicReference<OntologyData> current = new AtomicReference<>();
+		private final AtomicBoolean reloading = new AtomicBoolean();
+		private volatile AssignmentParameters parameters;
+		private volatile String lastError;
+	}
+	
+	private final IClassifyerSettings settings;
+	private final IService service;
+	private final List<Slot> slots = new ArrayList<>();
+	private final SmartsQueryTable queries;
+	private final StringPool pool = new StringPool();
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> daemon(r, "ontology-reload"));
+	
+	@Inject
+	public OntologyService(IClassifyerSettings settings, IService service) {
+		this.settings = settings;
+		this.service = service;
+		this.queries = new SmartsQueryTable(settings.module());
+	}
+	
+	/* the default ontology, read once per request */
+	public OntologyData current() {
+		return slots.get(0).current.get();
+	}
+	
+	/* the ontology of the version, the default one for null, null if no such version is loaded */
+	public OntologyData current(String version) {
+		if (version == null || version.isEmpty()) return current();
+		for (Slot slot : slots) {
+			OntologyData oData = slot.current.get();
+			if (version.equals(oData.getVersion())) return oData;
+		}
+		return null;
+	}
+	
+	public List<String> versions() {
+		return slots.stream().map(slot -> slot.current.get().getVersion()).toList();
+	}
+	
+	/* first load of all configured ontologies at startup, on the calling thread */
+	public void load() throws IOException {
+		Set<String> fileNames = new LinkedHashSet<>();
+		fileNames.add(settings.ontologyFilename());
+		fileNames.addAll(settings.ontologyFilenames());
+		for (String fileName : fileNames) {
+			Slot slot = new Slot();
+			slot.parameters = parameters(fileName);
+			slot.current.set(AssignCompounds.loadOntology(slot.parameters));
+			String version = slot.current.get().getVersion();
+			if (versions().contains(version)) log.warn("ontology version {} of {} loaded twice, only the first is used", version, fileName);
+			slots.add(slot);
+		}
+		log.info("ontology versions: {} pooled strings: {} smarts queries: {}", versions(), pool.size(), queries.size());
+	}
+	
+	/* load the given file next to the ontology of the version, or the file of that ontology again, in the background
+	 * 
+	 * false if a reload of that ontology is already running
+	 */
+	public boolean reload(String fileName, String version) {
+		Slot slot = slot(version);
+		Path file = fileName == null ? Path.of(slot.parameters.getOntologyFilename()) : resolve(slot, fileName);
+		if (!slot.reloading.compareAndSet(false, true)) return false;
+		loader.execute(() -> {
+			try {
+				swap(slot, file);
+				slot.lastError = null;
+			} catch (Exception e) {
+				log.error("ontology not reloaded: " + file, e);
+				slot.lastError = file.getFileName() + ": " + e.getMessage();
+			} finally {
+				slot.reloading.set(false);
+			}
+		});
+		return true;
+	}
+	
+	/* reload an ontology when its file is replaced or modified */
+	public void watch() throws IOException {
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		Set<Path> directories = new LinkedHashSet<>();
+		for (Slot slot : slots) directories.add(directory(slot));
+		for (Path directory : directories) {
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		daemon(() -> {
+			try {
+				while (true) {
+					Set<Slot> changed = new LinkedHashSet<>();
+					WatchKey key = watcher.take();
+					changed(key, changed);
+					// wait until the files are written completely
+					while (!changed.isEmpty() && (key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) changed(key, changed);
+					for (Slot slot : changed) {
+						String version = slot.current.get().getVersion();
+						if (!reload(null, version)) log.warn("ontology file of {} changed during a reload, not reloaded again", version);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "ontology-watch").start();
+		log.info("watching ontology files in {}", directories);
+	}
+	
+	public List<OntologyStatus> status() {
+		List<OntologyStatus> status = new ArrayList<>(slots.size());
+		for (Slot slot : slots) status.add(status(slot));
+		return status;
+	}
+	
+	public OntologyStatus status(String version) {
+		return status(slot(version));
+	}
+	
+	/* save the statistics and close the assignment caches of the current ontologies */
+	public void close() {
+		for (Slot slot : slots) AssignCompounds.closeOntology(slot.parameters, slot.current.get());
+	}
+	
+	private OntologyStatus status(Slot slot) {
+		OntologyData oData = slot.current.get();
+		return new OntologyStatus( oData.getVersion(), slot.parameters.getOntologyFilename(), 
+				oData.getGraph().size(), slot.reloading.get(), slot.lastError );
+	}
+	
+	private Slot slot(String version) {
+		if (version == null || version.isEmpty()) return slots.get(0);
+		for (Slot slot : slots) {
+			if (version.equals(slot.current.get().getVersion())) return slot;
+		}
+		throw new IllegalArgumentException("no ontology version " + version);
+	}
+	
+	private void swap(Slot slot, Path file) throws IOException {
+		AssignmentParameters oldParameters = slot.parameters;
+		OntologyData old = slot.current.get();
+		AssignmentParameters params = parameters(file.toString());
+		
+		// the cache file of the same ontology file can only be open once, the old ontology runs on without it
+		boolean sameCache = params.getPersistentCache() 
+				&& Path.of(params.getCacheFilename()).equals(Path.of(oldParameters.getCacheFilename()));
+		AssignCompounds.saveStatistics(oldParameters, old);
+		if (sameCache) closeCache(old);
+		
+		OntologyData next;
+		try {
+			next = AssignCompounds.loadOntology(params);
+		} catch (IOException | RuntimeException e) {
+			if (sameCache) reopenCache(oldParameters, old);
+			throw e;
+		}
+		warmup(next);
+		
+		slot.current.set(next);
+		slot.parameters = params;
+		log.info("ontology {} replaced by {} from {}", old.getVersion(), next.getVersion(), file);
+		if (!sameCache) closeCache(old);
+		service.evictResults(old, next);
+		prune();
+	}
+	
+	/* drop the pooled strings and the queries no loaded version uses any more, on the reload thread
+	 * 
+	 * requests still running on the replaced version keep its queries through its plans until they end
+	 */
+	private void prune() {
+		List<OntologyData> loaded = slots.stream().map(slot -> slot.current.get()).toList();
+		Set<SmartsQuery> used = new HashSet<>();
+		for (OntologyData oData : loaded) oData.collectSmartsQueries(used);
+		int droppedQueries = queries.retain(used);
+		int droppedStrings = pool.retain(loaded);
+		log.info("dropped {} smarts queries and {} pooled strings of replaced ontologies, {} queries and {} strings left", 
+				droppedQueries, droppedStrings, queries.size(), pool.size());
+	}
+	
+	/* classify the smiles of the warmup file once, compiling lazy queries and filling the result cache */
+	private void warmup(OntologyData oData) {
+		if (settings.warmupFilename() == null) return;
+		long start = System.nanoTime();
+		int count = 0;
+		try (BufferedReader in = Files.newBufferedReader(Path.of(settings.warmupFilename()), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+", 2);
+				if (fields[0].isEmpty() || fields[0].startsWith("#")) continue;
+				SmilesRequest request = new SmilesRequest();
+				request.setSmiles(fields[0]);
+				service.performClassification(request, oData);
+				count++;
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warn("ontology warmup stopped: " + settings.warmupFilename(), e);
+		}
+		log.info("ontology warmed with {} smiles in {} ms", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+	
+	/* only files next to the ontology they replace can be loaded */
+	private Path resolve(Slot slot, String fileName) {
+		Path directory = directory(slot);
+		Path file = directory.resolve(fileName).normalize();
+		if (!directory.equals(file.getParent()) || !Files.isRegularFile(file)) {
+			throw new IllegalArgumentException("no ontology file " + fileName + " in the ontology directory");
+		}
+		return file;
+	}
+	
+	private static Path directory(Slot slot) {
+		return Path.of(slot.parameters.getOntologyFilename()).toAbsolutePath().normalize().getParent();
+	}
+	
+	private void changed(WatchKey key, Set<Slot> changed) {
+		Path directory = ((Path) key.watchable()).normalize();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			for (Slot slot : slots) {
+				Path file = Path.of(slot.parameters.getOntologyFilename()).toAbsolutePath().normalize();
+				if (directory.equals(file.getParent()) && file.getFileName().equals(event.context())) changed.add(slot);
+			}
+		}
+		key.reset();
+	}
+	
+	private AssignmentParameters parameters(String ontologyFilename) {
+		AssignmentParameters params = new AssignmentParameters();
+		params.setOntologyFilename(ontologyFilename);
+		params.setModule(settings.module());
+		params.setPersistentCache(settings.persistentCache());
+		params.setWriteSnapshot(true);
+		params.setQueryTable(queries);
+		params.setStringPool(pool);
+		return params;
+	}
+	
+	private static void closeCache(OntologyData oData) {
+		AssignmentCache cache = oData.getAssignmentCache();
+		if (cache == null) return;
+		oData.setAssignmentCache(null);
+		try {
+			cache.close();
+		} catch (IOException e) {
+			log.warn("assignment cache not closed: " + cache.getPath(), e);
+		}
+	}
+	
+	private static void reopenCache(AssignmentParameters params, OntologyData oData) {
+		try {
+			oData.setAssignmentCache(AssignmentCache.open(params.getCacheFilename(), oData.getChecksum(), params.getModule()));
+		} catch (IOException e) {
+			log.warn("assignment cache not reopened: " + params.getCacheFilename(), e);
+		}
+	}
+	
+	private static Thread daemon(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,35 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/* a request not admitted because the server is over capacity, with the seconds to wait before a retry */
+public class OverloadedException extends RejectedExecutionException {
+	private static final long serialVersionUID = 1L;
+	
+	private final int retryAfterSeconds;
+	
+	public OverloadedException(String message, int retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+	
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.smiles2concepts.models.SmilesResponse;
+import com.molgenie.smiles2concepts.models.common.CacheStatistics;
+
+/* bounded, concurrent cache of classification results
+ * 
+ * key is the canonical OpenChemLib idcode with the ontology version, the start of the ontology file
+ * checksum and the writeLeafsOnly flag, so that results of a changed ontology are never returned,
+ * even of an edited file that kept its data-version; those entries are dropped when it is replaced
+ */
+public class ResultCache {
+	private final Cache<String,SmilesResponse> cache;
+	private final boolean enabled;
+	// requests completed by an identical running assignment
+	private final LongAdder coalesced = new LongAdder();
+
+	public ResultCache(long maximumSize, long ttlSeconds) {
+		this.enabled = maximumSize > 0;
+		CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder()
+				.maximumSize(Math.max(maximumSize, 0))
+				.recordStats();
+		if (ttlSeconds > 0) builder.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS);
+		this.cache = builder.build();
+	}
+
+	public static String key(OntologyData oData, boolean writeLeafsOnly, String idcode) {
+		return prefix(oData) + (writeLeafsOnly ? 'L' : 'A') + '\t' + idcode;
+	}
+	
+	/* start of the keys of all results of the ontology */
+	private static String prefix(OntologyData oData) {
+		byte[] checksum = oData.getChecksum();
+		String release = checksum == null ? "" : HexFormat.of().formatHex(checksum, 0, Math.min(8, checksum.length));
+		return oData.getVersion() + '\t' + release + '\t';
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public SmilesResponse get(String key) {
+		return enabled ? cache.getIfPresent(key) : null;
+	}
+
+	public void put(String key, SmilesResponse response) {
+		if (enabled) cache.put(key, response);
+	}
+
+	public void countCoalesced() {
+		coalesced.increment();
+	}
+
+	/* drop the results of a replaced ontology, unless the replacement is the same release */
+	public void invalidate(OntologyData replaced, OntologyData replacement) {
+		String prefix = prefix(replaced);
+		if (prefix.equals(prefix(replacement))) return;
+		cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+	}
+
+	public CacheStatistics statistics() {
+		CacheStats stats = cache.stats();
+		return new CacheStatistics(stats.hitCount(), stats.missCount(), stats.evictionCount(), cache.size(), coalesced.sum());
+	}
+}
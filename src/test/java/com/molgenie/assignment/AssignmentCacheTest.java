@@ -0,0 +1,174 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Cached assignments survive reopening, growing the index and losing the index or the end of the log,
+ * and are only shared by one process of the same ontology and module.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class AssignmentCacheTest {
+
+	private static final byte[] CHECKSUM = new byte[32];
+	private static final byte[] OTHER 	 = new byte[32];
+	static {
+		for ( int i = 0; i < 32; i++ ) {
+			CHECKSUM[i] = (byte) i;
+			OTHER[i] 	= (byte) ( 31 - i );
+		}
+	}
+
+	@TempDir
+	Path dir;
+
+	private String file() {
+		return dir.resolve( "ontology.cache" ).toString();
+	}
+
+	private static int[] classes( int _i ) {
+		return new int[] { _i, _i + 1, 2 * _i };
+	}
+
+	@Test
+	void putAndGet() throws IOException {
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			cache.put( "gGQHDDqIUjdB@", false, new int[] { 3, 1, 4 } );
+			cache.put( "gGQHDDqIUjdB@", true, new int[] { 4 } );
+			cache.put( "gGQHDDqIUjdB@", false, new int[] { 9 } );
+			cache.put( "fikAP@@TRYoeoP@", false, new int[0] );
+			assertEquals( 3, cache.size() );
+			assertArrayEquals( new int[] { 3, 1, 4 }, cache.get( "gGQHDDqIUjdB@", false ) );
+			assertArrayEquals( new int[] { 4 }, cache.get( "gGQHDDqIUjdB@", true ) );
+			assertArrayEquals( new int[0], cache.get( "fikAP@@TRYoeoP@", false ) );
+			assertNull( cache.get( "fikAP@@TRYoeoP@", true ) );
+			assertNull( cache.get( "unknown", false ) );
+		}
+	}
+
+	@Test
+	void reopenKeepsResultsOfTheSameOntology() throws IOException {
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			cache.put( "gGQHDDqIUjdB@", false, new int[] { 3, 1, 4 } );
+		}
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			assertEquals( 1, cache.size() );
+			assertArrayEquals( new int[] { 3, 1, 4 }, cache.get( "gGQHDDqIUjdB@", false ) );
+		}
+		try ( AssignmentCache cache = AssignmentCache.open( file(), OTHER, ChemLib.CHEMLIB_CDK ) ) {
+			assertEquals( 0, cache.size() );
+			assertNull( cache.get( "gGQHDDqIUjdB@", false ) );
+		}
+	}
+
+	@Test
+	void otherModuleDiscardsTheResults() throws IOException {
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			cache.put( "gGQHDDqIUjdB@", false, new int[] { 3, 1, 4 } );
+		}
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_AMBIT ) ) {
+			assertEquals( 0, cache.size() );
+			assertNull( cache.get( "gGQHDDqIUjdB@", false ) );
+		}
+	}
+
+	@Test
+	void cacheInUseIsNotOpenedTwice() throws IOException {
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			cache.put( "gGQHDDqIUjdB@", false, new int[] { 3, 1, 4 } );
+			assertNull( AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) );
+			assertArrayEquals( new int[] { 3, 1, 4 }, cache.get( "gGQHDDqIUjdB@", false ) );
+		}
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			assertEquals( 1, cache.size() );
+		}
+	}
+
+	@Test
+	void closedCacheMissesAndIgnoresAppends() throws IOException {
+		final AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK );
+		cache.put( "gGQHDDqIUjdB@", false, new int[] { 1 } );
+		cache.close();
+		assertNull( cache.get( "gGQHDDqIUjdB@", false ) );
+		cache.put( "fikAP@@TRYoeoP@", false, new int[] { 2 } );
+		cache.close();
+	}
+
+	@Test
+	void growingIndexKeepsAllResults() throws IOException {
+		/* more than half of the initial 65536 slots */
+		final int n = 40000;
+		final long initialIndex;
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			initialIndex = Files.size( Path.of( file() + ".idx" ) );
+			for ( int i = 0; i < n; i++ ) cache.put( "idcode" + i, false, classes( i ) );
+			assertEquals( n, cache.size() );
+			for ( int i = 0; i < n; i++ ) assertArrayEquals( classes( i ), cache.get( "idcode" + i, false ) );
+		}
+		/* twice the slots after the 72 byte header */
+		assertEquals( 2 * initialIndex - 72, Files.size( Path.of( file() + ".idx" ) ) );
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			assertEquals( n, cache.size() );
+			for ( int i = 0; i < n; i += 97 ) assertArrayEquals( classes( i ), cache.get( "idcode" + i, false ) );
+		}
+	}
+
+	@Test
+	void lostIndexIsRebuiltFromTheLog() throws IOException {
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			for ( int i = 0; i < 100; i++ ) cache.put( "idcode" + i, i % 2 == 0, classes( i ) );
+		}
+		Files.delete( Path.of( file() + ".idx" ) );
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			assertEquals( 100, cache.size() );
+			for ( int i = 0; i < 100; i++ ) assertArrayEquals( classes( i ), cache.get( "idcode" + i, i % 2 == 0 ) );
+		}
+	}
+
+	@Test
+	void incompleteLastRecordIsDropped() throws IOException {
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			cache.put( "gGQHDDqIUjdB@", false, new int[] { 3, 1, 4 } );
+		}
+		final long length = Files.size( Path.of( file() ) );
+		/* a record of 100 bytes cut off after its length, as left by a crash during an append */
+		Files.write( Path.of( file() ), new byte[] { 0, 0, 0, 100, 0 }, StandardOpenOption.APPEND );
+		Files.delete( Path.of( file() + ".idx" ) );
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			assertEquals( 1, cache.size() );
+			assertEquals( length, Files.size( Path.of( file() ) ) );
+			cache.put( "fikAP@@TRYoeoP@", true, new int[] { 7 } );
+		}
+		try ( AssignmentCache cache = AssignmentCache.open( file(), CHECKSUM, ChemLib.CHEMLIB_CDK ) ) {
+			assertEquals( 2, cache.size() );
+			assertArrayEquals( new int[] { 3, 1, 4 }, cache.get( "gGQHDDqIUjdB@", false ) );
+			assertArrayEquals( new int[] { 7 }, cache.get( "fikAP@@TRYoeoP@", true ) );
+		}
+	}
+}
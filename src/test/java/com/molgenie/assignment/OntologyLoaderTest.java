@@ -0,0 +1,322 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+
+/**
+ * The obo file is read as the former sequential parser with its replace based unescaping
+ * did, kept below as reference.
+ *
+ * The reference turned a literal W, P or Y next to an escaped backslash or brace into
+ * escapes, so the generated idcodes do not contain these letters.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class OntologyLoaderTest {
+
+	/* obo file as written, in the text block every backslash of the file is doubled */
+	private static final String FIXTURE = """
+			format-version: 1.2
+			data-version: releases/2024-01-01
+
+			[Typedef]
+			id: has_a
+
+			[Term]
+			id: C:1
+			name: alcohol (old)
+
+			[Term]
+			id: C:1
+			name: alcohol ! replaced by the stanza above
+			synonym: "hydroxy compound: any" EXACT []
+			def: "an OH group on a carbon" []
+			idcode: gGQHDDqIUjdB@
+			smiles: OCC
+			smiles: C/C=C\\\\C/O
+			ambit_smarts: [CX4][OX2H] ! aliphatic
+			ambit_smarts: [c][OX2H]
+			ambit_smarts: !C=O
+			ambit_aromsmarts: [#6][OX2H]
+			is_a: C:0 ! compound
+			has_a: C:3
+			has_a: C:4
+
+			[Term]
+			id: C:2
+			name: escapes
+			idcode: f`yA@@@ILtsJmJrcZ\\{sUUUSUT@@\\}
+
+			[Term]
+			id: C:3
+			name: escaped escapes
+			idcode: fa\\\\\\\\b\\\\\\{c\\\\\\}d\\\\e
+			ambit_smarts: [C;\\!R]\\\\[N] ! not in a ring
+			is_a: C:1
+
+			[Term]
+			id: C:4
+			check: false
+			name: skipped after check
+			is_a: C:1
+
+			[Term]
+			id: C:5
+			name: obsolete
+			is_obsolete: true
+			is_a: C:1
+
+			[Term]
+			id: C:6
+			name: last stanza without empty line
+			is_a: C:0""";
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void fixtureIsReadAsWritten() throws IOException {
+		final OntologyData oData = OntologyLoader.readObo( gzip( "fixture.obo.gz", FIXTURE ), ChemLib.CHEMLIB_CDK, false );
+
+		assertEquals( "releases/2024-01-01", oData.getVersion() );
+		assertEquals( Set.of( "C:1", "C:2", "C:3", "C:4", "C:6" ), oData.getIdParentMap().keySet() );
+		assertEquals( "alcohol", oData.getIdNameMap().get( "C:1" ) );
+		assertEquals( Set.of( "OCC", "C/C=C\\C/O" ), oData.getIdSmilesMap().get( "C:1" ) );
+		assertEquals( List.of( "[CX4][OX2H]", "[c][OX2H]", "!C=O" ), oData.getIdSmartsMap().get( "C:1" ) );
+		assertEquals( Set.of( "C:0" ), oData.getIdParentMap().get( "C:1" ) );
+		assertEquals( Set.of( "C:3", "C:4" ), oData.getIdChildMap().get( "C:1" ) );
+
+		assertEquals( "f`yA@@@ILtsJmJrcZ{sUUUSUT@@}", oData.getIdIdcodeMap().get( "C:2" ) );
+		assertEquals( "fa\\\\b\\{c\\}d\\e", oData.getIdIdcodeMap().get( "C:3" ) );
+		assertEquals( List.of( "[C;!R]\\[N]" ), oData.getIdSmartsMap().get( "C:3" ) );
+
+		assertTrue( oData.getCheckSet().contains( "C:4" ) );
+		assertFalse( oData.getIdNameMap().containsKey( "C:4" ) );
+		assertTrue( oData.getIdParentMap().get( "C:4" ).isEmpty() );
+		assertFalse( oData.getIdNameMap().containsKey( "C:5" ) );
+		assertEquals( "last stanza without empty line", oData.getIdNameMap().get( "C:6" ) );
+
+		final OntologyData aromatic = OntologyLoader.readObo( gzip( "aromatic.obo.gz", FIXTURE ), ChemLib.CHEMLIB_AMBIT, true );
+		assertEquals( List.of( "[#6][OX2H]" ), aromatic.getIdSmartsMap().get( "C:1" ) );
+		final OntologyData chemaxon = OntologyLoader.readObo( gzip( "ca.obo.gz", FIXTURE ), ChemLib.CHEMLIB_CA, false );
+		assertTrue( chemaxon.getIdSmartsMap().get( "C:1" ).isEmpty() );
+	}
+
+	@Test
+	void generatedFilesAreReadAsByTheReference() throws IOException {
+		final Random random = new Random( 11 );
+		for ( int n = 0; n < 3; n++ ) {
+			//more terms than a chunk, so that several parser threads are merged
+			final String obo = generate( random, 2000 );
+			final String file = gzip( "generated" + n + ".obo.gz", obo );
+			assertReadAlike( readReference( obo, ChemLib.CHEMLIB_CDK, false ), OntologyLoader.readObo( file, ChemLib.CHEMLIB_CDK, false ) );
+			assertReadAlike( readReference( obo, ChemLib.CHEMLIB_AMBIT, true ), OntologyLoader.readObo( file, ChemLib.CHEMLIB_AMBIT, true ) );
+			assertReadAlike( readReference( obo, ChemLib.CHEMLIB_CA, false ), OntologyLoader.readObo( file, ChemLib.CHEMLIB_CA, false ) );
+		}
+	}
+
+	private static void assertReadAlike( OntologyData _expected, OntologyData _actual ) {
+		assertEquals( _expected.getVersion(), _actual.getVersion() );
+		assertEquals( _expected.getIdNameMap(), _actual.getIdNameMap() );
+		assertEquals( _expected.getIdIdcodeMap(), _actual.getIdIdcodeMap() );
+		assertEquals( _expected.getIdSmilesMap(), _actual.getIdSmilesMap() );
+		assertEquals( _expected.getIdSmartsMap(), _actual.getIdSmartsMap() );
+		assertEquals( _expected.getIdParentMap(), _actual.getIdParentMap() );
+		assertEquals( _expected.getIdChildMap(), _actual.getIdChildMap() );
+		assertEquals( _expected.getCheckSet(), _actual.getCheckSet() );
+	}
+
+	private String gzip( String _name, String _obo ) throws IOException {
+		final Path file = dir.resolve( _name );
+		try ( Writer out = new OutputStreamWriter( new GZIPOutputStream( Files.newOutputStream( file ) ), StandardCharsets.UTF_8 ) ) {
+			out.write( _obo );
+		}
+		return file.toString();
+	}
+
+	/*
+	 * terms with repeated tags, escapes, comments, synonyms, obsolete and unchecked terms and ids given twice
+	 */
+	private static String generate( Random _random, int _terms ) {
+		final StringBuilder obo = new StringBuilder( "format-version: 1.2\ndata-version: v" + _random.nextInt( 100 ) + "\n\n" );
+		for ( int t = 0; t < _terms; t++ ) {
+			obo.append( "[Term]\nid: C:" ).append( _random.nextInt( _terms * 3 / 4 ) ).append( '\n' );
+			for ( int l = _random.nextInt( 12 ); l > 0; l-- ) {
+				switch ( _random.nextInt( 12 ) ) {
+					case 0 -> obo.append( "name: " ).append( text( _random, "abc def-()'é" ) );
+					case 1 -> obo.append( "idcode: " ).append( text( _random, "@`ABCDFGHIJKLMNOQRSTUVXZ[]^_abcdefg{}\\" ) );
+					case 2 -> obo.append( "smiles: " ).append( text( _random, "CNO=#()/[]@+-123\\" ) );
+					case 3 -> obo.append( "ambit_smarts: " ).append( text( _random, "CNO=#()[];,&R!\\" ) );
+					case 4 -> obo.append( "ambit_aromsmarts: " ).append( text( _random, "cnoCN[]#;!\\" ) );
+					case 5 -> obo.append( "is_a: C:" ).append( _random.nextInt( _terms ) );
+					case 6 -> obo.append( "has_a: C:" ).append( _random.nextInt( _terms ) );
+					case 7 -> obo.append( "synonym: \"" ).append( text( _random, "ab: c" ) ).append( "\" RELATED []" );
+					case 8 -> obo.append( "def: \"" ).append( text( _random, "ab c" ) ).append( "\" []" );
+					case 9 -> obo.append( _random.nextInt( 8 ) == 0 ? "is_obsolete: true" : "comment: none" );
+					case 10 -> obo.append( _random.nextInt( 4 ) == 0 ? "check: false" : "check: true" );
+					default -> obo.append( "xref: MGN:" ).append( _random.nextInt( 100 ) );
+				}
+				if ( _random.nextInt( 6 ) == 0 ) obo.append( " ! " ).append( text( _random, "xyz" ) );
+				if ( _random.nextInt( 10 ) == 0 ) obo.append( "  " );
+				obo.append( '\n' );
+			}
+			obo.append( '\n' );
+		}
+		return obo.toString();
+	}
+
+	private static String text( Random _random, String _alphabet ) {
+		final StringBuilder text = new StringBuilder();
+		for ( int i = 1 + _random.nextInt( 20 ); i > 0; i-- ) {
+			final char c = _alphabet.charAt( _random.nextInt( _alphabet.length() ) );
+			text.append( c );
+			//runs of backslashes of every length
+			if ( c == '\\' ) for ( int k = _random.nextInt( 5 ); k > 0; k-- ) text.append( c );
+		}
+		return text.toString();
+	}
+
+	/*
+	 * reference: OntologyLoader.readObo as it parsed the [Term] stanzas sequentially
+	 */
+	private static OntologyData readReference( String _obo, String _module, boolean _aromatic ) throws IOException {
+
+		final OntologyData ontData = new OntologyData();
+		final boolean isModuleCdkOrAmbit = ChemLib.CHEMLIB_CDK.equals( _module.toLowerCase() )
+				|| ChemLib.CHEMLIB_AMBIT.equals( _module.toLowerCase() );
+
+		final BufferedReader inObo = new BufferedReader( new StringReader( _obo ) );
+		String inLine = null;
+		while ( ( inLine = inObo.readLine() ) != null ) {
+			if ( inLine.startsWith( "data-version:" ) ) ontData.setVersion( inLine.substring( 13 ).trim() );
+			if ( !inLine.startsWith( "[Term]" ) ) continue;
+
+			final List<String> smartsList	= new ArrayList<>();
+			final Set<String>  smilesSet	= new HashSet<>();
+			final Set<String>  childSet		= new HashSet<>();
+			final Set<String>  parentSet	= new HashSet<>();
+			final HashSet<String> checkSet	= new HashSet<>();
+			String name 	 = null;
+			String idcode	 = null;
+			String id 		 = null;
+			boolean obsolete = false;
+
+			String inConceptLine = null;
+			while ( ( inConceptLine = inObo.readLine() ) != null ) {
+				if ( inConceptLine.trim().isEmpty() ) break;
+				final int tagSepOff = inConceptLine.indexOf( ':' );
+				if ( tagSepOff < 2 ) continue;
+
+				final String tag = inConceptLine.substring( 0, tagSepOff );
+				String value = inConceptLine.substring( tagSepOff + 1 ).trim();
+				final int commentSepOff = value.indexOf( " !" );
+				if ( commentSepOff >= 0 ) value = value.substring( 0, commentSepOff ).trim();
+
+				if ( tag.startsWith( "is_obsolete" ) ) obsolete = true;
+
+				if ( "id".equals( tag ) ) id = value;
+				if ( checkSet.contains( id ) ) continue;
+
+				else if ( "name".equals( tag ) ) name = value;
+				else if ( "idcode".equals( tag ) ) {
+					idcode = value;
+					boolean prob = false;
+					if ( idcode.contains( "\\\\\\\\" ) ) {
+						idcode = idcode.replace( "\\\\\\\\", "YYYY" );
+						prob = true;
+					}
+					if ( idcode.contains( "\\\\\\{" ) ) {
+						idcode = idcode.replace( "\\\\\\{", "WWWW" );
+						prob = true;
+					}
+					while ( idcode.contains( "\\{" ) ) idcode = idcode.replace( "\\{", "{" );
+					if ( idcode.contains( "\\\\\\}" ) ) {
+						idcode = idcode.replace( "\\\\\\}", "PPPP" );
+						prob = true;
+					}
+					while ( idcode.contains( "\\}" ) ) idcode = idcode.replace( "\\}", "}" );
+					while ( idcode.contains( "\\\\" ) ) idcode = idcode.replace( "\\\\", "\\" );
+					if ( prob ) {
+						idcode = idcode.replace( "WWWW", "\\{" );
+						idcode = idcode.replace( "PPPP", "\\}" );
+						idcode = idcode.replace( "YYYY", "\\\\" );
+					}
+				}
+				else if ( "smiles".equals( tag ) ) {
+					String smiles = value;
+					while ( smiles.contains( "\\\\" ) ) smiles = smiles.replace( "\\\\", "\\" );
+					smilesSet.add( smiles );
+				}
+				else if ( "check".equals( tag ) ) {
+					if ( value.equals( "false" ) ) checkSet.add( id );
+				}
+				else if ( "is_a".equals( tag ) ) 	parentSet.add( value );
+				else if ( "has_a".equals( tag ) ) 	childSet.add( value );
+				else if ( tag.endsWith( "smarts" ) ) {
+					String smarts = null;
+					if ( isModuleCdkOrAmbit ) {
+						if ( _aromatic ) {
+							if ( inConceptLine.startsWith( "ambit_aromsmarts: " ) ) smarts = inConceptLine.substring( 18 );
+						} else {
+							if ( inConceptLine.startsWith( "ambit_smarts: " ) ) smarts = inConceptLine.substring( 14 );
+						}
+					}
+					if ( smarts != null ) {
+						if ( smarts.contains( " ! " ) ) smarts = smarts.substring( 0, smarts.indexOf( " ! " ) );
+						smarts = smarts.replace( "\\!", "!" );
+						smarts = smarts.replace( "\\\\", "\\" );
+						smartsList.add( smarts );
+					}
+				}
+			}
+
+			if ( id != null && !obsolete ) {
+				if ( name != null ) ontData.setIdName( id, name );
+				if ( idcode != null ) ontData.setIdIdcode( id, idcode );
+				ontData.setIdChildrenMap( id, childSet );
+				ontData.setIdSmilesMap( id, smilesSet );
+				ontData.setIdParentsMap( id, parentSet );
+				ontData.setIdSmartsMap( id, smartsList );
+				ontData.setCheckSet( checkSet );
+			}
+		}
+		return ontData;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+
+/**
+ * An ontology read back from its snapshot answers like the graph built from the obo maps.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class OntologySnapshotTest {
+
+	private static final byte[] CHECKSUM = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+	@TempDir
+	Path dir;
+
+	/* diamond under the root, a class only referenced as parent, shared idcodes and names out of ASCII */
+	private static OntologyData ontology() {
+		final OntologyData oData = new OntologyData();
+		oData.setVersion( "releases/2024-01-01" );
+		oData.setRootId( "C:0" );
+		oData.setChecksum( CHECKSUM );
+		oData.setIdName( "C:0", "compound" );
+		oData.setIdName( "C:1", "alcohol" );
+		oData.setIdName( "C:2", "aromatic" );
+		oData.setIdName( "C:3", "phénol" );
+		oData.setIdName( "C:4", "hydroquinone ✓" );
+		for ( String[] edge : new String[][] { { "C:1", "C:0" }, { "C:2", "C:0" }, { "C:3", "C:1" }, { "C:3", "C:2" },
+				{ "C:4", "C:3" }, { "C:5", "C:3" }, { "C:0", "X:9" } } ) {
+			oData.getIdParentMap().computeIfAbsent( edge[0], id -> new HashSet<>() ).add( edge[1] );
+			oData.getIdChildMap().computeIfAbsent( edge[1], id -> new HashSet<>() ).add( edge[0] );
+		}
+		oData.setIdIdcode( "C:4", "fikAP@@TRYoeoP@" );
+		oData.setIdIdcode( "C:5", "fikAP@@TRYoeoP@" );
+		oData.setIdIdcode( "C:3", "gGQHDDqIUjdB@" );
+		oData.setIdSmartsMap( "C:1", List.of( "[CX4][OX2H]", "[c][OX2H]" ) );
+		oData.setIdSmartsMap( "C:2", List.of( "a" ) );
+		oData.setIdSmartsMap( "C:0", List.of() );
+		oData.setIdSmilesMap( "C:4", new HashSet<>( Set.of( "Oc1ccc(O)cc1" ) ) );
+		oData.setCheckSet( new HashSet<>( Set.of( "C:2", "C:3" ) ) );
+		oData.buildGraph();
+		return oData;
+	}
+
+	@Test
+	void readEqualsBuilt() throws IOException {
+		final OntologyData built = ontology();
+		final String file = dir.resolve( "ontology.snapshot" ).toString();
+		OntologySnapshot.write( built, file );
+		final OntologyData read = OntologySnapshot.read( file, CHECKSUM );
+		assertNotNull( read );
+
+		assertEquals( built.getVersion(), read.getVersion() );
+		assertEquals( built.getRootId(), read.getRootId() );
+		assertArrayEquals( built.getChecksum(), read.getChecksum() );
+		assertEquals( built.getIdSmartsMap(), read.getIdSmartsMap() );
+		assertEquals( built.getIdSmilesMap(), read.getIdSmilesMap() );
+		assertEquals( built.getCheckSet(), read.getCheckSet() );
+		assertEquals( built.getIdNameMap(), read.getIdNameMap() );
+		assertEquals( built.getIdIdcodeMap(), read.getIdIdcodeMap() );
+		assertEquals( built.getIdParentMap(), read.getIdParentMap() );
+		assertEquals( built.getIdChildMap(), read.getIdChildMap() );
+		assertEquals( built.getIdAncestorsMap(), read.getIdAncestorsMap() );
+		assertEquals( built.getIdOffspringsMap(), read.getIdOffspringsMap() );
+
+		final OntologyGraph a = built.getGraph();
+		final OntologyGraph b = read.getGraph();
+		assertEquals( 7, a.size() );
+		assertEquals( a.size(), b.size() );
+		assertEquals( null, a.verify() );
+		assertEquals( null, b.verify() );
+		for ( int i = 0; i < a.size(); i++ ) {
+			assertEquals( a.getId( i ), b.getId( i ) );
+			assertEquals( i, b.indexOf( a.getId( i ) ) );
+			assertEquals( a.isNamed( i ), b.isNamed( i ) );
+			assertEquals( a.getName( i ), b.getName( i ) );
+			assertEquals( a.getIdcode( i ), b.getIdcode( i ) );
+			assertEquals( a.hasSmarts( i ), b.hasSmarts( i ) );
+			assertEquals( a.isChecked( i ), b.isChecked( i ) );
+			assertEquals( a.isIdcodeLeaf( i ), b.isIdcodeLeaf( i ) );
+			assertEquals( a.ancestorCount( i ), b.ancestorCount( i ) );
+			assertEquals( a.offspringCount( i ), b.offspringCount( i ) );
+			for ( int j = 0; j < a.size(); j++ ) {
+				assertEquals( a.isAncestor( i, j ), b.isAncestor( i, j ) );
+				assertEquals( a.isOffspring( i, j ), b.isOffspring( i, j ) );
+			}
+		}
+		assertEquals( a.getSmartsEntries(), b.getSmartsEntries() );
+		assertEquals( a.idcodeCount(), b.idcodeCount() );
+		assertEquals( a.idcodeLeafCount(), b.idcodeLeafCount() );
+		for ( String idcode : new String[] { "fikAP@@TRYoeoP@", "gGQHDDqIUjdB@", "unknown" } ) {
+			final BitSet builtClasses = new BitSet();
+			final BitSet readClasses = new BitSet();
+			a.addIdcodeClasses( idcode, builtClasses );
+			b.addIdcodeClasses( idcode, readClasses );
+			assertEquals( builtClasses, readClasses );
+		}
+		final BitSet shared = new BitSet();
+		b.addIdcodeClasses( "fikAP@@TRYoeoP@", shared );
+		assertEquals( 2, shared.cardinality() );
+	}
+
+	@Test
+	void concurrentWritersLeaveOneCompleteSnapshot() throws Exception {
+		final OntologyData built = ontology();
+		final String file = dir.resolve( "ontology.snapshot" ).toString();
+		final List<Thread> writers = new ArrayList<>();
+		final List<Throwable> errors = new CopyOnWriteArrayList<>();
+		for ( int w = 0; w < 8; w++ ) {
+			final Thread writer = new Thread( () -> {
+				try {
+					for ( int n = 0; n < 20; n++ ) OntologySnapshot.write( built, file );
+				} catch ( Throwable e ) {
+					errors.add( e );
+				}
+			} );
+			writer.start();
+			writers.add( writer );
+		}
+		for ( Thread writer : writers ) writer.join();
+		assertEquals( List.of(), errors );
+		assertEquals( built.getIdParentMap(), OntologySnapshot.read( file, CHECKSUM ).getIdParentMap() );
+		try ( Stream<Path> files = Files.list( dir ) ) {
+			assertEquals( List.of( Path.of( file ) ), files.toList() );
+		}
+	}
+
+	@Test
+	void otherChecksumIsNotRead() throws IOException {
+		final String file = dir.resolve( "ontology.snapshot" ).toString();
+		OntologySnapshot.write( ontology(), file );
+		final byte[] other = CHECKSUM.clone();
+		other[15]++;
+		assertNull( OntologySnapshot.read( file, other ) );
+		assertNull( OntologySnapshot.read( dir.resolve( "missing" ).toString(), CHECKSUM ) );
+	}
+}
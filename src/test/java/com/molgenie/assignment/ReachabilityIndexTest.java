@@ -0,0 +1,100 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Interval reachability agrees with a breadth first search on shared descendants and large levels,
+ * and the check against the search reports a cycle.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class ReachabilityIndexTest {
+
+	/* successor lists of a graph given as rows */
+	private static ReachabilityIndex.Successors graph( int[][] _rows ) {
+		return new ReachabilityIndex.Successors() {
+			public int count( int _node ) 			{ return _rows[_node].length; }
+			public int get( int _node, int _k ) 	{ return _rows[_node][_k]; }
+		};
+	}
+
+	@Test
+	void diamond() {
+		/* 0 -> 1, 2 -> 3 -> 4 */
+		final ReachabilityIndex.Successors successors = graph( new int[][] { { 1, 2 }, { 3 }, { 3 }, { 4 }, {} } );
+		final ReachabilityIndex index = ReachabilityIndex.build( 5, successors );
+		assertEquals( -1, index.verify( successors ) );
+		assertEquals( 4, index.count( 0 ) );
+		assertEquals( 2, index.count( 1 ) );
+		assertEquals( 2, index.count( 2 ) );
+		assertEquals( 0, index.count( 4 ) );
+		assertTrue( index.reaches( 0, 4 ) );
+		assertTrue( index.reaches( 2, 3 ) );
+		assertFalse( index.reaches( 1, 2 ) );
+		assertFalse( index.reaches( 3, 0 ) );
+		assertFalse( index.reaches( 0, 0 ) );
+
+		final BitSet reachable = new BitSet();
+		index.addReachable( 1, reachable );
+		assertEquals( BitSet.valueOf( new long[] { 0b11000 } ), reachable );
+		assertTrue( index.allReachableIn( 1, reachable ) );
+		assertFalse( index.allReachableIn( 2, new BitSet() ) );
+		assertTrue( index.allReachableInPostSet( 1, index.toPostSet( reachable ) ) );
+		assertTrue( index.anyReachableInPostSet( 0, index.toPostSet( reachable ) ) );
+		assertFalse( index.anyReachableInPostSet( 3, index.toPostSet( BitSet.valueOf( new long[] { 0b01111 } ) ) ) );
+	}
+
+	@Test
+	void cycleIsReported() {
+		/* 0 -> 1 -> 2 -> 0, 2 -> 3, 4 -> 1: the index is built, the check against the search finds the cycle */
+		final ReachabilityIndex.Successors successors = graph( new int[][] { { 1 }, { 2 }, { 0, 3 }, {}, { 1 } } );
+		final ReachabilityIndex index = ReachabilityIndex.build( 5, successors );
+		assertTrue( index.verify( successors ) >= 0 );
+		assertEquals( 0, index.count( 3 ) );
+	}
+
+	@Test
+	void cycleWithoutRootIsReported() {
+		final ReachabilityIndex.Successors successors = graph( new int[][] { { 1 }, { 0 } } );
+		final ReachabilityIndex index = ReachabilityIndex.build( 2, successors );
+		assertTrue( index.verify( successors ) >= 0 );
+	}
+
+	@Test
+	void wideRandomDag() {
+		/* levels wide enough to be merged in parallel, every node points to up to three lower numbered ones */
+		final int size = 20000;
+		final Random random = new Random( 42 );
+		final int[][] rows = new int[size][];
+		for ( int u = 0; u < size; u++ ) {
+			rows[u] = u < 4 ? new int[0] : random.ints( 1 + random.nextInt( 3 ), 0, u ).distinct().toArray();
+		}
+		final ReachabilityIndex.Successors successors = graph( rows );
+		final ReachabilityIndex index = ReachabilityIndex.build( size, successors );
+		assertEquals( -1, index.verify( successors ) );
+		for ( int u = 0; u < size; u++ ) assertEquals( u, index.nodeAt( index.post( u ) ) );
+	}
+}
@@ -0,0 +1,66 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+
+/**
+ * The count pre-filter must never reject a molecule the smarts matcher accepts.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class SmartsCountsTest {
+
+	@Test
+	void orAtomsCountNothing() {
+		assertTrue( SmartsCounts.ofQuery( "[C&R,N]", true ).isEmpty() );
+		assertEquals( 0, SmartsCounts.ofQuery( "[c,n;R]", true ).getMinAromatic() );
+		assertEquals( 0, SmartsCounts.ofQuery( "[C;R,N]", true ).getMinRings() );
+		assertEquals( 1, SmartsCounts.ofQuery( "[C;R]", true ).getMinRings() );
+		assertEquals( 0, SmartsCounts.ofQuery( "[c,n&R][c,n&R]", true ).getMinAromatic() );
+		assertEquals( 2, SmartsCounts.ofQuery( "[c;R][n;R]", true ).getMinAromatic() );
+	}
+
+	@Test
+	void countsNeverStricterThanMatcher() throws Exception {
+		for ( String smiles : SmartsScannerTest.SMILES ) {
+			final IAtomContainer mol = SmartsScannerTest.aromatized( smiles );
+			final int[] profile = SmartsCounts.ofMolecule( mol );
+			for ( String smarts : SmartsScannerTest.SMARTS ) {
+				if ( !SmartsScannerTest.matches( smarts, mol ) ) continue;
+				assertTrue( SmartsCounts.ofQuery( smarts, true ).mayMatch( profile ), smarts + " rejects " + smiles );
+			}
+		}
+	}
+
+	@Test
+	void kekulizedQueriesCountNoAromaticAtoms() throws Exception {
+		final IAtomContainer mol = new SmilesParser( SilentChemObjectBuilder.getInstance() ).parseSmiles( "C1=CC=NC=C1" );
+		AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms( mol );
+		final int[] profile = SmartsCounts.ofMolecule( mol );
+		assertTrue( SmartsCounts.ofQuery( "[c,n;R]", false ).mayMatch( profile ) );
+		assertTrue( SmartsCounts.ofQuery( "C1=CC=NC=C1", false ).mayMatch( profile ) );
+		assertEquals( 0, SmartsCounts.ofQuery( "c1ccncc1", false ).getMinAromatic() );
+	}
+}
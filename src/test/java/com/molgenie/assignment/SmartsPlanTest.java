@@ -0,0 +1,239 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compiled plans decide a class as the string based evaluation of the smarts set did.
+ *
+ * The search results are given per query string, so that both evaluations see the same
+ * molecule without a chemistry library: a substructure or stereo query is found (1), not
+ * found (0) or fails (-1), a group query has a number of matches. A multiplicity searched
+ * as a plain smarts, as after !queryXXX, is not a valid smarts and fails.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class SmartsPlanTest {
+
+	private static final String[] ATOMS = { "C", "N", "O", "[OH]", "C=O" };
+	private static final String[] PARTS = {
+		"C", "N", "O", "[OH]", "C=O", "C.N", "O.C=O.N", "CXXXN", "NXXX2MOREO", "CXXXOXXXN", "CXXX",
+		"2EXACTC", "1MOREN", "0EXACTO", "3MORE[OH]", "xMOREO", "3EXACT"
+	};
+
+	/* search results of one molecule */
+	private record Results( Map<String,Integer> found, Map<String,Integer> counts ) {
+
+		static Results random( Random _random ) {
+			final Map<String,Integer> found  = new HashMap<>();
+			final Map<String,Integer> counts = new HashMap<>();
+			for ( String atom : ATOMS ) {
+				found.put( atom, _random.nextInt( 10 ) == 0 ? -1 : _random.nextInt( 2 ) );
+				counts.put( atom, _random.nextInt( 4 ) );
+			}
+			return new Results( found, counts );
+		}
+
+		/* the molecule with the results of all queries of the plan known */
+		PreparedMolecule prepare( SmartsPlan _plan ) {
+			final PreparedMolecule mol = PreparedMolecule.prepare( "C", true );
+			final Set<SmartsQuery> queries = new HashSet<>();
+			_plan.collectQueries( queries );
+			for ( SmartsQuery query : queries ) {
+				mol.setResult( query, query instanceof SmartsQuery.AmbitGroupQuery ? counts.get( query.getSmarts() ) : found.getOrDefault( query.getSmarts(), -1 ) );
+			}
+			return mol;
+		}
+	}
+
+	@Test
+	void plansDecideAsTheStringEvaluation() {
+		final Random random = new Random( 7 );
+		final SmartsQueryTable queries = new SmartsQueryTable( ChemLib.CHEMLIB_CDK );
+		for ( int n = 0; n < 3000; n++ ) {
+			final List<String> smartsList = new ArrayList<>();
+			for ( int k = random.nextInt( 5 ); k > 0; k-- ) {
+				smartsList.add( ( random.nextInt( 3 ) == 0 ? "!" : "" ) + PARTS[random.nextInt( PARTS.length )] );
+			}
+			final SmartsPlan plan = SmartsPlan.compile( smartsList, queries );
+			final SmartsPlan reordered = SmartsPlan.compile( smartsList, queries );
+			for ( SmartsPlan.Branch or : reordered.getOrBranches() ) addRandomStatistics( or, random );
+			for ( SmartsPlan.Branch not : reordered.getNotBranches() ) addRandomStatistics( not, random );
+			reordered.order();
+			for ( int m = 0; m < 8; m++ ) {
+				final Results results = Results.random( random );
+				final boolean expected = assign( smartsList, results );
+				assertEquals( expected, plan.evaluate( results.prepare( plan ), false ), smartsList + " " + results );
+				assertEquals( expected, reordered.evaluate( results.prepare( reordered ), false ), smartsList + " reordered " + results );
+			}
+		}
+	}
+
+	/* evaluated often, rarely or never */
+	private static void addRandomStatistics( SmartsPlan.Branch _branch, Random _random ) {
+		final int evaluations = _random.nextInt( 3 ) == 0 ? 0 : 1 + _random.nextInt( 2 * (int) SmartsPlan.MIN_EVALUATIONS );
+		_branch.addStatistics( evaluations, _random.nextInt( evaluations + 1 ), 1000L * _random.nextInt( 100 ) * evaluations );
+	}
+
+	@Test
+	void branchesWithoutStatisticsDoNotKeepThePlanFromBeingOrdered() {
+		final SmartsQueryTable queries = new SmartsQueryTable( ChemLib.CHEMLIB_CDK );
+		final SmartsPlan plan = SmartsPlan.compile( List.of( "C", "N", "O" ), queries );
+		final SmartsPlan.Branch[] branches = plan.getOrBranches().clone();
+		// C slow and rarely matching, N never reached behind it, O cheap and selective
+		branches[0].addStatistics( 1000, 10, 1000 * 100_000L );
+		branches[2].addStatistics( 1000, 900, 1000 * 1_000L );
+		plan.order();
+		assertEquals( List.of( branches[2], branches[1], branches[0] ), List.of( plan.getOrBranches() ) );
+	}
+
+	@Test
+	void rarelyEvaluatedBranchesStayCloseToThePrior() {
+		final SmartsQueryTable queries = new SmartsQueryTable( ChemLib.CHEMLIB_CDK );
+		final SmartsPlan plan = SmartsPlan.compile( List.of( "C", "N", "O" ), queries );
+		final SmartsPlan.Branch[] branches = plan.getOrBranches().clone();
+		// two lucky evaluations of N do not move it before O
+		branches[0].addStatistics( 1000, 10, 1000 * 100_000L );
+		branches[1].addStatistics( 2, 2, 2 * 1_000L );
+		branches[2].addStatistics( 1000, 900, 1000 * 1_000L );
+		plan.order();
+		assertEquals( branches[2], plan.getOrBranches()[0] );
+	}
+
+	@Test
+	void plansWithoutStatisticsKeepTheirOrder() {
+		final SmartsQueryTable queries = new SmartsQueryTable( ChemLib.CHEMLIB_CDK );
+		final SmartsPlan plan = SmartsPlan.compile( List.of( "C", "N", "!O", "!C=O" ), queries );
+		final List<SmartsPlan.Branch> or  = List.of( plan.getOrBranches() );
+		final List<SmartsPlan.Branch> not = List.of( plan.getNotBranches() );
+		plan.order();
+		assertEquals( or, List.of( plan.getOrBranches() ) );
+		assertEquals( not, List.of( plan.getNotBranches() ) );
+		assertTrue( plan.isNotFirst() );
+	}
+
+	@Test
+	void invalidSetsNeverMatch() {
+		final SmartsQueryTable queries = new SmartsQueryTable( ChemLib.CHEMLIB_CDK );
+		for ( List<String> smartsList : List.of( List.<String>of(), List.of( "CXXX" ), List.of( "N", "CXXX" ) ) ) {
+			final SmartsPlan plan = SmartsPlan.compile( smartsList, queries );
+			assertEquals( 0, plan.getOrBranches().length + plan.getNotBranches().length );
+			assertFalse( plan.evaluate( PreparedMolecule.prepare( "C", true ), false ) );
+		}
+	}
+
+	@Test
+	void multiplicityErrorsAreFailedSearches() {
+		final SmartsQueryTable queries = new SmartsQueryTable( ChemLib.CHEMLIB_CDK );
+		final SmartsPlan plan = SmartsPlan.compile( List.of( "xMOREO", "3EXACT", "!xMOREO" ), queries );
+		assertTrue( plan.getOrBranches()[0].getNode() instanceof SmartsPlan.Failed );
+		assertTrue( plan.getOrBranches()[1].getNode() instanceof SmartsPlan.Failed );
+		assertTrue( plan.getNotBranches()[0].getNode() instanceof SmartsPlan.Failed );
+		assertFalse( plan.evaluate( PreparedMolecule.prepare( "C", true ), false ) );
+		final SmartsPlan onlyNot = SmartsPlan.compile( List.of( "!xMOREO" ), queries );
+		assertTrue( onlyNot.evaluate( PreparedMolecule.prepare( "C", true ), false ) );
+	}
+
+	/*
+	 * reference: the string based evaluation of the smarts set as AssignmentUtils did it before
+	 * plans were compiled, with the searches answered by the given results
+	 */
+	private static boolean assign( List<String> _smartsList, Results _results ) {
+		try {
+			final List<String> orResponse  = new ArrayList<>();
+			final List<String> notResponse = new ArrayList<>();
+			boolean isOrStructure  = false;
+			boolean isNotStructure = false;
+			for ( String qry : _smartsList ) {
+				final String qry2 = qry.replaceAll( "^!", "" );
+				if ( qry2.equals( qry ) ) {
+					isOrStructure = true;
+					if ( !qry.contains( "XXX" ) ) {
+						if ( !qry.contains( "." ) ) {
+							orResponse.add( String.valueOf( multiplicity( qry, _results ) > 0 ) );
+						} else {
+							final List<String> and = new ArrayList<>();
+							for ( String part : AssignmentUtils.Segmenter( qry, "." ) ) and.add( String.valueOf( search( part, _results ) > 0 ) );
+							if ( AssignmentUtils.IsAndConnected( and ) ) orResponse.add( and.get( 0 ) );
+						}
+					} else {
+						final List<String> parts = AssignmentUtils.Segmenter( qry, "XXX" );
+						final List<String> and = new ArrayList<>();
+						and.add( String.valueOf( search( parts.get( 0 ), _results ) > 0 ) );
+						and.add( String.valueOf( multiplicity( parts.get( 1 ), _results ) > 0 ) );
+						if ( AssignmentUtils.IsAndConnected( and ) ) orResponse.add( and.get( 0 ) );
+					}
+				} else {
+					isNotStructure = true;
+					if ( !qry2.contains( "XXX" ) && !qry2.contains( "." ) ) {
+						notResponse.add( String.valueOf( multiplicity( qry2, _results ) <= 0 ) );
+					} else {
+						final List<String> and = new ArrayList<>();
+						for ( String part : AssignmentUtils.Segmenter( qry2, qry2.contains( "XXX" ) ? "XXX" : "." ) ) {
+							and.add( String.valueOf( search( part, _results ) > 0 ) );
+						}
+						if ( AssignmentUtils.IsAndConnected( and ) ) notResponse.add( String.valueOf( !Boolean.parseBoolean( and.get( 0 ) ) ) );
+					}
+				}
+			}
+			final boolean asgn1 = AssignmentUtils.IsOrConnected( orResponse, "true" );
+			if ( isNotStructure ) {
+				boolean asgn2 = false;
+				if ( AssignmentUtils.IsAndConnected( notResponse ) ) asgn2 = Boolean.valueOf( notResponse.get( 0 ) );
+				if ( !isOrStructure ) return asgn2;
+				return asgn2 && asgn1;
+			}
+			return isOrStructure && asgn1;
+		} catch ( Exception e ) {
+			return false;
+		}
+	}
+
+	private static int search( String _smarts, Results _results ) {
+		return _results.found().getOrDefault( _smarts, -1 );
+	}
+
+	/* reference: multiplicity of the string based evaluation, an error is a failed search */
+	private static int multiplicity( String _smarts, Results _results ) {
+		try {
+			if ( _smarts.contains( "EXACT" ) ) {
+				final List<String> parts = AssignmentUtils.Segmenter( _smarts, "EXACT" );
+				return _results.counts().get( parts.get( 1 ) ) == Integer.parseInt( parts.get( 0 ) ) ? 1 : 0;
+			}
+			if ( _smarts.contains( "MORE" ) ) {
+				final List<String> parts = AssignmentUtils.Segmenter( _smarts, "MORE" );
+				return _results.counts().get( parts.get( 1 ) ) >= Integer.parseInt( parts.get( 0 ) ) ? 1 : 0;
+			}
+			return search( _smarts, _results );
+		} catch ( Exception e ) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+
+/**
+ * Queries and pooled strings shared by ontology versions are dropped with the last version using them.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class SmartsQueryTableTest {
+
+	@Test
+	void replacedVersionIsPruned() {
+		final SmartsQueryTable queries = new SmartsQueryTable( ChemLib.CHEMLIB_CDK );
+		final StringPool pool = new StringPool();
+		final OntologyData v1 = ontology( "v1", Map.of( "A", "[OX2H]", "B", "c1ccccc1" ), queries, pool );
+		final OntologyData v2 = ontology( "v2", Map.of( "A", "[OX2H]", "C", "C=O.N" ), queries, pool );
+		assertEquals( 4, queries.size() );
+		assertSame( v1.getIdSmartsMap().get( "A" ), v2.getIdSmartsMap().get( "A" ) );
+
+		final Set<SmartsQuery> used = new HashSet<>();
+		v2.collectSmartsQueries( used );
+		assertEquals( 3, used.size() );
+		assertEquals( 1, queries.retain( used ) );
+		assertEquals( 3, queries.size() );
+		assertSame( queries.getStereoQuery( "[OX2H]" ), v2.getSmartsPlan( "A", ChemLib.CHEMLIB_CDK ).getOrBranches()[0].getNode() instanceof SmartsPlan.Match match ? match.getQuery() : null );
+
+		final int strings = pool.size();
+		assertEquals( 3, pool.retain( List.of( v2 ) ) );
+		assertEquals( strings - 3, pool.size() );
+		assertSame( v2.getIdSmartsMap().get( "A" ), pool.intern( new ArrayList<>( List.of( "[OX2H]" ) ) ) );
+	}
+
+	private static OntologyData ontology( String _version, Map<String,String> _smarts, SmartsQueryTable _queries, StringPool _pool ) {
+		final OntologyData oData = new OntologyData();
+		oData.setVersion( _version );
+		_smarts.forEach( ( id, smarts ) -> oData.getIdSmartsMap().put( id, new ArrayList<>( List.of( smarts ) ) ) );
+		oData.internStrings( _pool );
+		oData.setSmartsQueries( _queries );
+		oData.compileSmartsPlans( ChemLib.CHEMLIB_CDK );
+		return oData;
+	}
+}
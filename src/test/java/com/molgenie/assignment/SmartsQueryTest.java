@@ -0,0 +1,73 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parsed query copies are shared by the threads matching at the same time.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class SmartsQueryTest {
+
+	final static String[] SMILES   = { "CCO", "c1ccccc1O", "CC(=O)O", "C1CCCCC1", "N#CC" };
+	final static int[] 	  EXPECTED = { 1, 1, 1, 0, 0 };
+
+	@Test
+	void concurrentMatchesShareCopies() throws Exception {
+		final SmartsQuery.CdkQuery query = new SmartsQuery.CdkQuery( "[OX2H]" );
+		query.validate();
+		final ExecutorService pool = Executors.newFixedThreadPool( 16 );
+		try {
+			final List<Future<int[]>> futures = new ArrayList<>();
+			for ( int t = 0; t < 64; t++ ) {
+				futures.add( pool.submit( () -> {
+					final int[] found = new int[SMILES.length];
+					for ( int n = 0; n < 50; n++ ) {
+						for ( int i = 0; i < SMILES.length; i++ ) {
+							found[i] += query.match( PreparedMolecule.prepare( SMILES[i], false ), false );
+						}
+					}
+					return found;
+				} ) );
+			}
+			for ( Future<int[]> future : futures ) {
+				final int[] found = future.get();
+				for ( int i = 0; i < SMILES.length; i++ ) assertEquals( 50 * EXPECTED[i], found[i], SMILES[i] );
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void invalidQueryFailsEveryMatch() {
+		final SmartsQuery.CdkQuery query = new SmartsQuery.CdkQuery( "[C" );
+		query.validate();
+		assertEquals( -1, query.match( PreparedMolecule.prepare( "CCO", false ), false ) );
+		assertEquals( -1, query.match( PreparedMolecule.prepare( "CCO", false ), false ) );
+	}
+}
@@ -0,0 +1,107 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.assignment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.aromaticity.ElectronDonation;
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.isomorphism.Pattern;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smarts.SmartsPattern;
+import org.openscience.cdk.smiles.SmilesParser;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+
+/**
+ * The feature pre-screen must never reject a molecule the smarts matcher accepts.
+ *
+ * @author lutz.weber@molgenie.com
+ */
+class SmartsScannerTest {
+
+	final static String[] SMARTS = {
+		"[C&R,N]", "[N,C&R]", "[C;R,N]", "[c,n;R]", "[c,n&R]", "[N,O;!R]C", "[C&X4,N&X3]C",
+		"C=&@,-C", "C#&@,=C", "C=,#;!@C", "[#6&R,#7]~[#8]", "[$(C=O),N]C", "[C;R]=,:[C,N]",
+		"c1ccccc1", "[nR]", "C=O", "N#C"
+	};
+
+	final static String[] SMILES = {
+		"CN", "CC", "C=C", "NCC", "C1CCCCC1N", "c1ccncc1", "CC(=O)N", "N#CC", "OCCN", "c1ccccc1C=O", "C1CC1"
+	};
+
+	@Test
+	void orBindsLooserThanAnd() {
+		assertEquals( 0, atom( "[C&R,N]" ).z );
+		assertTrue( !atom( "[C&R,N]" ).ring );
+		assertEquals( 0, atom( "[N,C&R]" ).z );
+		assertEquals( 6, atom( "[C;R,N]" ).z );
+		assertEquals( 7, atom( "[N;R]" ).z );
+		assertTrue( atom( "[N;R]" ).ring );
+		assertTrue( atom( "[c,n;R]" ).ring );
+		assertEquals( 0, atom( "[c,n;R]" ).z );
+		assertTrue( !atom( "[c,n&R]" ).ring );
+	}
+
+	@Test
+	void bondWithOrIsUnconstrained() {
+		SmartsScanner graph = SmartsScanner.scan( "C=&@,:C" );
+		assertNotNull( graph );
+		assertEquals( 0, graph.bonds.get( 0 ).order );
+		assertTrue( !graph.bonds.get( 0 ).ring );
+		graph = SmartsScanner.scan( "C=;@C" );
+		assertEquals( 2, graph.bonds.get( 0 ).order );
+		assertTrue( graph.bonds.get( 0 ).ring );
+	}
+
+	@Test
+	void featuresNeverStricterThanMatcher() throws Exception {
+		for ( String smiles : SMILES ) {
+			final IAtomContainer mol = aromatized( smiles );
+			final long[] present = SmartsFeatures.ofMolecule( mol );
+			for ( String smarts : SMARTS ) {
+				if ( !matches( smarts, mol ) ) continue;
+				assertTrue( SmartsFeatures.mayMatch( SmartsFeatures.ofQuery( smarts, true ), present ), smarts + " rejects " + smiles );
+			}
+		}
+	}
+
+	static SmartsScanner.Atom atom( String _smarts ) {
+		final SmartsScanner graph = SmartsScanner.scan( _smarts );
+		assertNotNull( graph );
+		return graph.atoms.get( 0 );
+	}
+
+	static boolean matches( String _smarts, IAtomContainer _mol ) {
+		final Pattern pattern = SmartsPattern.create( _smarts );
+		return pattern.matches( _mol );
+	}
+
+	/*
+	 * container as prepared for the matcher: atom types, implicit hydrogens, daylight aromaticity
+	 */
+	static IAtomContainer aromatized( String _smiles ) throws Exception {
+		final IAtomContainer mol = new SmilesParser( SilentChemObjectBuilder.getInstance() ).parseSmiles( _smiles );
+		AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms( mol );
+		new Aromaticity( ElectronDonation.daylight(), Cycles.or( Cycles.all(), Cycles.all( 6 ) ) ).apply( mol );
+		return mol;
+	}
+}
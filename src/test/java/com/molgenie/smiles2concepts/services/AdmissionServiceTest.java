@@ -0,0 +1,155 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.molgenie.smiles2concepts.config.IJettySettings;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+class AdmissionServiceTest {
+	
+	@Test
+	void fastRequestsRaiseTheLimit() throws InterruptedException {
+		AdmissionService admission = admission(2, 8, 1000);
+		for (int i = 0; i < 20; i++) {
+			admission.acquire(false).close();
+		}
+		// about one more per round of requests
+		double limit = admission.status().limit();
+		assertTrue(limit > 6 && limit < 7, "limit " + limit);
+		for (int i = 0; i < 1000; i++) {
+			admission.acquire(false).close();
+		}
+		assertEquals(2 + 8, admission.status().limit(), 1e-9);
+	}
+	
+	@Test
+	void slowRequestsCutTheLimit() throws InterruptedException {
+		AdmissionService admission = admission(4, 8, 50);
+		AdmissionService.Permit first = admission.acquire(false);
+		AdmissionService.Permit second = admission.acquire(false);
+		Thread.sleep(60);
+		first.close();
+		assertEquals(4 * 0.9, admission.status().limit(), 1e-9);
+		// at most one cut per target latency
+		second.close();
+		assertEquals(4 * 0.9, admission.status().limit(), 1e-9);
+		AdmissionService.Permit third = admission.acquire(false);
+		Thread.sleep(60);
+		third.close();
+		assertEquals(4 * 0.9 * 0.9, admission.status().limit(), 1e-9);
+	}
+	
+	@Test
+	void fullQueueIsRejected() throws InterruptedException {
+		AdmissionService admission = admission(1, 1, 1000);
+		AdmissionService.Permit permit = admission.acquire(false);
+		Thread waiting = admit(admission, false, new CopyOnWriteArrayList<>(), "waiting");
+		await(() -> admission.status().interactiveWaiting() == 1);
+		OverloadedException e = assertThrows(OverloadedException.class, () -> admission.acquire(false));
+		assertTrue(e.getRetryAfterSeconds() >= 1);
+		permit.close();
+		waiting.join();
+		assertEquals(1, admission.status().rejected());
+	}
+	
+	@Test
+	void lanesAreServedInOrderInteractiveFirst() throws InterruptedException {
+		// no request is within the target, the limit stays at one
+		AdmissionService admission = admission(1, 8, 0);
+		List<String> order = new CopyOnWriteArrayList<>();
+		AdmissionService.Permit permit = admission.acquire(false);
+		Thread b1 = admit(admission, true, order, "b1");
+		await(() -> admission.status().batchWaiting() == 1);
+		Thread b2 = admit(admission, true, order, "b2");
+		await(() -> admission.status().batchWaiting() == 2);
+		Thread i1 = admit(admission, false, order, "i1");
+		await(() -> admission.status().interactiveWaiting() == 1);
+		permit.close();
+		for (Thread thread : List.of(b1, b2, i1)) thread.join();
+		assertEquals(List.of("i1", "b1", "b2"), order);
+	}
+	
+	@Test
+	void batchRecordsWaitBehindRequestsWithoutTakingTheirQueue() throws InterruptedException {
+		AdmissionService admission = admission(1, 1, 0);
+		List<String> order = new CopyOnWriteArrayList<>();
+		AdmissionService.Permit permit = admission.acquire(false);
+		Thread r1 = admitRecord(admission, order, "r1");
+		await(() -> admission.status().batchWaiting() == 1);
+		Thread r2 = admitRecord(admission, order, "r2");
+		await(() -> admission.status().batchWaiting() == 2);
+		// the queue of one place is still free for a request
+		Thread i1 = admit(admission, false, order, "i1");
+		await(() -> admission.status().interactiveWaiting() == 1);
+		assertThrows(OverloadedException.class, () -> admission.acquire(false));
+		permit.close();
+		for (Thread thread : List.of(r1, r2, i1)) thread.join();
+		assertEquals(List.of("i1", "r1", "r2"), order);
+	}
+	
+	/* thread taking a permit for a batch record and giving it back at once, noting its turn */
+	private static Thread admitRecord(AdmissionService admission, List<String> order, String name) {
+		Thread thread = new Thread(() -> {
+			try (AdmissionService.Permit permit = admission.acquireRecord()) {
+				order.add(name);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		thread.start();
+		return thread;
+	}
+	
+	/* thread taking a permit and giving it back at once, noting its turn */
+	private static Thread admit(AdmissionService admission, boolean batchLane, List<String> order, String name) {
+		Thread thread = new Thread(() -> {
+			try (AdmissionService.Permit permit = admission.acquire(batchLane)) {
+				order.add(name);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		thread.start();
+		return thread;
+	}
+	
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+	
+	private static AdmissionService admission(int threads, int queue, long targetMillis) {
+		IJettySettings settings = mock(IJettySettings.class);
+		when(settings.computeThreads()).thenReturn(threads);
+		when(settings.computeQueue()).thenReturn(queue);
+		when(settings.admissionTargetMillis()).thenReturn(targetMillis);
+		when(settings.admissionMaxWaitMillis()).thenReturn(5000L);
+		when(settings.admissionQueue()).thenReturn(queue);
+		return new AdmissionService(settings, new ComputeService(settings));
+	}
+}
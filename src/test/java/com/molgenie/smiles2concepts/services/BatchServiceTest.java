@@ -0,0 +1,326 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.smiles2concepts.config.IClassifyerSettings;
+import com.molgenie.smiles2concepts.config.IJettySettings;
+import com.molgenie.smiles2concepts.models.BatchRecord;
+import com.molgenie.smiles2concepts.models.SmilesRequest;
+import com.molgenie.smiles2concepts.models.common.ClassificationResult;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BatchServiceTest {
+	private static final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger calls = new AtomicInteger();
+	private volatile CountDownLatch blocked = new CountDownLatch(0);
+	private IClassifyerSettings settings;
+	private IService service;
+	
+	@BeforeEach
+	void setUp() {
+		settings = mock(IClassifyerSettings.class);
+		when(settings.batchMaxSize()).thenReturn(100);
+		service = mock(IService.class);
+		when(service.performClassification(any(SmilesRequest.class), any(OntologyData.class), eq(true))).thenAnswer(invocation -> {
+			calls.incrementAndGet();
+			blocked.await();
+			SmilesRequest request = invocation.getArgument(0);
+			if ("CCCC".equals(request.getSmiles())) throw new IllegalStateException("not classified");
+			Thread.sleep(request.getSmiles().length() % 3);
+			return new ClassificationResult(request.getSmiles(), "test", "v1", null);
+		});
+	}
+	
+	@Test
+	void parseStopsAfterTheMaximumSize() throws IOException {
+		BatchService batch = batch(settings, service, 2, 64);
+		assertEquals(101, batch.parse(new ByteArrayInputStream(ndjson(1000)), true).size());
+		assertEquals(101, batch.parse(new ByteArrayInputStream(array(1000)), false).size());
+		assertEquals(100, batch.parse(new ByteArrayInputStream(array(100)), false).size());
+		List<BatchRecord> records = batch.parse(new ByteArrayInputStream("{\"id\":\"1\",\"smiles\":\"CCO\"}\nnot json\n".getBytes()), true);
+		assertEquals(2, records.size());
+		assertNull(records.get(1));
+		assertThrows(IllegalArgumentException.class, () -> batch.parse(new ByteArrayInputStream("[1, 2]".getBytes()), false));
+		assertThrows(IllegalArgumentException.class, () -> batch.parse(new ByteArrayInputStream("[{\"id\":".getBytes()), false));
+	}
+	
+	@Test
+	void bodyFormatIsDetected() throws IOException {
+		BatchService batch = batch(settings, service, 2, 64);
+		BufferedInputStream array = new BufferedInputStream(new ByteArrayInputStream(" \n [{}]".getBytes()));
+		assertTrue(batch.isArray(array));
+		assertEquals(' ', array.read());
+		assertFalse(batch.isArray(new BufferedInputStream(new ByteArrayInputStream("{}\n{}".getBytes()))));
+	}
+	
+	@Test
+	void resultsAreWrittenInRecordOrder() throws IOException {
+		BatchService batch = batch(settings, service, 2, 64);
+		for (boolean ndjson : new boolean[] { true, false }) {
+			List<BatchRecord> records = batch.parse(new ByteArrayInputStream(ndjson ? ndjson(100) : array(100)), ndjson);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			batch.classify(records, new OntologyData(), out, ndjson);
+			List<JsonNode> results = new ArrayList<>();
+			if (ndjson) {
+				for (String line : out.toString(StandardCharsets.UTF_8).split("\n")) results.add(mapper.readTree(line));
+			} else {
+				mapper.readTree(out.toByteArray()).forEach(results::add);
+			}
+			assertEquals(100, results.size());
+			for (int i = 0; i < 100; i++) {
+				assertEquals(String.valueOf(i), results.get(i).get("id").asText());
+				assertEquals(i % 7 == 0 ? 500 : 0, results.get(i).path("error").path("processState").path("errorCode").asInt());
+			}
+		}
+	}
+	
+	@Test
+	void recordsAreCancelledWhenTheClientIsGone() throws IOException {
+		when(settings.batchMaxSize()).thenReturn(10000);
+		BatchService batch = batch(settings, service, 2, 64);
+		List<BatchRecord> records = batch.parse(new ByteArrayInputStream(ndjson(10000)), true);
+		OutputStream gone = new OutputStream() {
+			private int written;
+			
+			@Override
+			public void write(int b) throws IOException {
+				if (++written > 2000) throw new IOException("client gone");
+			}
+		};
+		assertThrows(IOException.class, () -> batch.classify(records, new OntologyData(), gone, true));
+		int classified = calls.get();
+		assertTrue(classified < 200, classified + " records classified");
+	}
+	
+	@Test
+	void recordsWaitForTheBusyPoolInsteadOfFailing() throws Exception {
+		BatchService batch = batch(settings, service, 1, 1);
+		blocked = new CountDownLatch(1);
+		OntologyData oData = new OntologyData();
+		List<BatchRecord> records = batch.parse(new ByteArrayInputStream(ndjson(5)), true);
+		List<ByteArrayOutputStream> outs = new ArrayList<>();
+		List<Thread> batches = new ArrayList<>();
+		for (int b = 0; b < 3; b++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			outs.add(out);
+			Thread thread = new Thread(() -> {
+				try {
+					batch.classify(records, oData, out, true);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			thread.start();
+			batches.add(thread);
+		}
+		Thread.sleep(100);
+		// one record runs, the others wait for admission
+		assertEquals(1, calls.get());
+		blocked.countDown();
+		for (Thread thread : batches) thread.join();
+		for (ByteArrayOutputStream out : outs) {
+			List<JsonNode> results = lines(out);
+			assertEquals(5, results.size());
+			for (int i = 0; i < 5; i++) assertEquals(i % 7 == 0 ? 500 : 0, results.get(i).path("error").path("processState").path("errorCode").asInt());
+		}
+	}
+	
+	@Test
+	void streamedResultsFollowTheInputWhenOrdered() throws IOException {
+		BatchService batch = batch(settings, service, 2, 64);
+		byte[] in = ("\n" + new String(ndjson(500), StandardCharsets.UTF_8) + "not json\n").getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		batch.stream(new ByteArrayInputStream(in), out, new OntologyData(), true);
+		List<JsonNode> results = lines(out);
+		assertEquals(501, results.size());
+		for (int i = 0; i < 500; i++) {
+			assertEquals(String.valueOf(i), results.get(i).get("id").asText());
+			assertEquals(i % 7 == 0 ? 500 : 0, results.get(i).path("error").path("processState").path("errorCode").asInt());
+		}
+		assertFalse(results.get(500).has("id"));
+		assertEquals(100, results.get(500).get("error").get("processState").get("errorCode").asInt());
+	}
+	
+	@Test
+	void streamedResultsAreCompleteWhenUnordered() throws IOException {
+		BatchService batch = batch(settings, service, 2, 64);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		batch.stream(new ByteArrayInputStream(ndjson(500)), out, new OntologyData(), false);
+		List<JsonNode> results = lines(out);
+		assertEquals(500, results.size());
+		Set<String> ids = new HashSet<>();
+		for (JsonNode result : results) {
+			int i = result.get("id").asInt();
+			assertTrue(ids.add(result.get("id").asText()));
+			assertEquals(i % 7 == 0 ? 500 : 0, result.path("error").path("processState").path("errorCode").asInt());
+		}
+	}
+	
+	@Test
+	void streamKeepsAWindowOfRecordsInFlight() throws Exception {
+		// 2 threads, the blocked records hold the places and intake waits for them instead of answering busy
+		for (boolean ordered : new boolean[] { true, false }) {
+			BatchService batch = batch(settings, service, 2, 64);
+			blocked = new CountDownLatch(1);
+			calls.set(0);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Thread streaming = new Thread(() -> {
+				try {
+					batch.stream(new ByteArrayInputStream(ndjson(1000)), out, new OntologyData(), ordered);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			streaming.start();
+			Thread.sleep(100);
+			assertEquals(2, calls.get());
+			blocked.countDown();
+			streaming.join();
+			List<JsonNode> results = lines(out);
+			assertEquals(1000, results.size());
+			assertTrue(results.stream().noneMatch(result -> result.path("error").path("processState").path("errorCode").asInt() == 503));
+		}
+	}
+	
+	@Test
+	void concurrentStreamsAreSlowedDownNotRejected() throws Exception {
+		// four streams of 300 records each, far more than the compute pool of 2 threads and 4 places in its queue
+		BatchService batch = batch(settings, service, 2, 4);
+		List<ByteArrayOutputStream> outs = new ArrayList<>();
+		List<Thread> streams = new ArrayList<>();
+		for (int s = 0; s < 4; s++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			boolean ordered = s % 2 == 0;
+			outs.add(out);
+			Thread thread = new Thread(() -> {
+				try {
+					batch.stream(new ByteArrayInputStream(ndjson(300)), out, new OntologyData(), ordered);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			thread.start();
+			streams.add(thread);
+		}
+		for (Thread thread : streams) thread.join();
+		for (ByteArrayOutputStream out : outs) {
+			List<JsonNode> results = lines(out);
+			assertEquals(300, results.size());
+			Set<String> ids = new HashSet<>();
+			for (JsonNode result : results) {
+				assertTrue(ids.add(result.get("id").asText()));
+				assertEquals(result.get("id").asInt() % 7 == 0 ? 500 : 0, result.path("error").path("processState").path("errorCode").asInt());
+			}
+		}
+	}
+	
+	@Test
+	void unorderedRecordsAreCancelledWhenTheClientIsGone() throws Exception {
+		// the first record fails once the window is in flight, the others wait until the client is gone
+		when(service.performClassification(any(SmilesRequest.class), any(OntologyData.class), eq(true))).thenAnswer(invocation -> {
+			calls.incrementAndGet();
+			SmilesRequest request = invocation.getArgument(0);
+			if ("CCCC".equals(request.getSmiles())) {
+				if (blocked.getCount() > 0) Thread.sleep(50);
+				throw new IllegalStateException("not classified");
+			}
+			blocked.await();
+			return new ClassificationResult(request.getSmiles(), "test", "v1", null);
+		});
+		BatchService batch = batch(settings, service, 2, 64);
+		// fast records raise the admission limit over the compute threads, so records wait in the queue
+		batch.stream(new ByteArrayInputStream(ndjson(100)), OutputStream.nullOutputStream(), new OntologyData(), false);
+		blocked = new CountDownLatch(1);
+		calls.set(0);
+		OutputStream gone = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("client gone");
+			}
+		};
+		assertThrows(IOException.class, () -> batch.stream(new ByteArrayInputStream(ndjson(100)), gone, new OntologyData(), false));
+		Thread.sleep(100);
+		int running = calls.get();
+		blocked.countDown();
+		Thread.sleep(200);
+		// the records waiting for a compute thread when the client was gone are skipped
+		assertEquals(running, calls.get());
+	}
+	
+	private static List<JsonNode> lines(ByteArrayOutputStream out) throws IOException {
+		List<JsonNode> results = new ArrayList<>();
+		for (String line : out.toString(StandardCharsets.UTF_8).split("\n")) results.add(mapper.readTree(line));
+		return results;
+	}
+	
+	/* batches on a compute pool of their own, admitted as the interactive requests are */
+	static BatchService batch(IClassifyerSettings settings, IService service, int threads, int queue) {
+		IJettySettings jetty = mock(IJettySettings.class);
+		when(jetty.computeThreads()).thenReturn(threads);
+		when(jetty.computeQueue()).thenReturn(queue);
+		when(jetty.admissionTargetMillis()).thenReturn(1000L);
+		when(jetty.admissionMaxWaitMillis()).thenReturn(1000L);
+		when(jetty.admissionQueue()).thenReturn(queue);
+		ComputeService compute = new ComputeService(jetty);
+		return new BatchService(settings, service, compute, new AdmissionService(jetty, compute));
+	}
+	
+	/* records with ids 0, 1, ... and every seventh failing */
+	static byte[] ndjson(int records) {
+		StringBuilder sB = new StringBuilder();
+		for (int i = 0; i < records; i++) sB.append(record(i)).append('\n');
+		return sB.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	static byte[] array(int records) {
+		StringBuilder sB = new StringBuilder("[");
+		for (int i = 0; i < records; i++) sB.append(i > 0 ? "," : "").append(record(i));
+		return sB.append(']').toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static String record(int i) {
+		return "{\"id\":\"" + i + "\",\"smiles\":\"" + (i % 7 == 0 ? "CCCC" : "C".repeat(1 + i % 5) + "O") + "\"}";
+	}
+}
@@ -0,0 +1,169 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+
+import com.molgenie.assignment.AssignCompounds;
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.smiles2concepts.config.IClassifyerSettings;
+import com.molgenie.smiles2concepts.models.SmilesRequest;
+import com.molgenie.smiles2concepts.models.common.ClassificationResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+
+class CommandServiceTest {
+	
+	@Test
+	void timeoutIsValidatedOnce() {
+		IClassifyerSettings settings = mock(IClassifyerSettings.class);
+		when(settings.timeOut()).thenReturn("ten");
+		assertThrows(IllegalArgumentException.class, () -> new CommandService(settings));
+		when(settings.timeOut()).thenReturn("0");
+		assertThrows(IllegalArgumentException.class, () -> new CommandService(settings));
+		when(settings.timeOut()).thenReturn(" 600 ");
+		new CommandService(settings);
+	}
+	
+	@Test
+	void followersGetTheResponseOfTheLeader() {
+		CommandService service = service("600");
+		OntologyData oData = ontology();
+		List<CompletableFuture<List<ClassificationResult>>> followers = new ArrayList<>();
+		try (MockedStatic<AssignCompounds> assign = mockStatic(AssignCompounds.class)) {
+			// the same structure written as other smiles arrives while the leader assigns it
+			assign.when(() -> AssignCompounds.runCachedAssignment(any(), any(), any())).thenAnswer(call -> {
+				for (String smiles : List.of("OCC", "C(O)C", "CCO")) followers.add(service.classify(request(smiles), List.of(oData)));
+				for (CompletableFuture<List<ClassificationResult>> follower : followers) assertFalse(follower.isDone());
+				return new HashMap<>(Map.of("C:1", "alcohol"));
+			});
+			ClassificationResult leader = service.performClassification(request("OCC"), oData);
+			
+			assign.verify(() -> AssignCompounds.runCachedAssignment(any(), any(), any()), times(1));
+			assertEquals("alcohol", leader.smilesResponse().classifications().get(0).getClassName());
+			for (CompletableFuture<List<ClassificationResult>> follower : followers) {
+				assertSame(leader.smilesResponse(), follower.join().get(0).smilesResponse());
+			}
+			assertEquals("C(O)C", followers.get(1).join().get(0).smiles());
+			assertEquals(3, service.cacheStatistics().coalesced());
+			assertEquals(0, service.inFlightCount());
+		}
+	}
+	
+	@Test
+	void failureOfTheLeaderReachesEveryFollower() {
+		CommandService service = service("600");
+		OntologyData oData = ontology();
+		Error failure = new OutOfMemoryError("assignment");
+		List<CompletableFuture<List<ClassificationResult>>> followers = new ArrayList<>();
+		try (MockedStatic<AssignCompounds> assign = mockStatic(AssignCompounds.class)) {
+			assign.when(() -> AssignCompounds.runCachedAssignment(any(), any(), any())).thenAnswer(call -> {
+				for (int i = 0; i < 3; i++) followers.add(service.classify(request("OCC"), List.of(oData)));
+				throw failure;
+			});
+			assertSame(failure, assertThrows(OutOfMemoryError.class, () -> service.performClassification(request("OCC"), oData)));
+			
+			for (CompletableFuture<List<ClassificationResult>> follower : followers) {
+				ExecutionException e = assertThrows(ExecutionException.class, () -> follower.get(5, TimeUnit.SECONDS));
+				assertSame(failure, e.getCause());
+			}
+			assertEquals(0, service.cacheStatistics().coalesced());
+			assertEquals(0, service.inFlightCount());
+		}
+	}
+	
+	@Test
+	void followerWaitingLongerThanTheTimeoutIsOverloaded() {
+		CommandService service = service("1");
+		OntologyData oData = ontology();
+		try (MockedStatic<AssignCompounds> assign = mockStatic(AssignCompounds.class)) {
+			assign.when(() -> AssignCompounds.runCachedAssignment(any(), any(), any())).thenAnswer(call -> {
+				CompletableFuture<List<ClassificationResult>> follower = service.classify(request("OCC"), List.of(oData));
+				ExecutionException e = assertThrows(ExecutionException.class, () -> follower.get(5, TimeUnit.SECONDS));
+				assertInstanceOf(OverloadedException.class, e.getCause());
+				return new HashMap<>();
+			});
+			service.performClassification(request("OCC"), oData);
+			
+			assign.verify(() -> AssignCompounds.runCachedAssignment(any(), any(), any()), times(1));
+			assertEquals(0, service.inFlightCount());
+		}
+	}
+	
+	@Test
+	void classificationWithoutTheResultCacheLeavesItAlone() {
+		CommandService service = service("600");
+		OntologyData oData = ontology();
+		try (MockedStatic<AssignCompounds> assign = mockStatic(AssignCompounds.class)) {
+			assign.when(() -> AssignCompounds.runCachedAssignment(any(), any(), any())).thenAnswer(call -> new HashMap<>());
+			service.performClassification(request("OCC"), oData);
+			service.performClassification(request("OCC"), oData, false);
+			service.performClassification(request("CCN"), oData, false);
+			
+			assign.verify(() -> AssignCompounds.runCachedAssignment(any(), any(), any()), times(3));
+			assertEquals(1, service.cacheStatistics().size());
+			assertEquals(1, service.cacheStatistics().misses());
+			
+			service.performClassification(request("CCO"), oData);
+			assign.verify(() -> AssignCompounds.runCachedAssignment(any(), any(), any()), times(3));
+			assertEquals(1, service.cacheStatistics().hits());
+			
+			OntologyData next = ontology();
+			next.setVersion("next");
+			service.evictResults(oData, next);
+			assertEquals(0, service.cacheStatistics().size());
+		}
+	}
+	
+	private static CommandService service(String timeOut) {
+		IClassifyerSettings settings = mock(IClassifyerSettings.class);
+		when(settings.timeOut()).thenReturn(timeOut);
+		when(settings.cacheSize()).thenReturn(100L);
+		return new CommandService(settings);
+	}
+	
+	private static OntologyData ontology() {
+		OntologyData oData = new OntologyData();
+		oData.setVersion("test");
+		return oData;
+	}
+	
+	private static SmilesRequest request(String smiles) {
+		SmilesRequest request = new SmilesRequest();
+		request.setSmiles(smiles);
+		request.setClassifierName("test");
+		return request;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.molgenie.smiles2concepts.config.IJettySettings;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class ComputeServiceTest {
+	
+	@Test
+	void waitingForAnotherTaskFreesTheComputeThread() throws Exception {
+		IJettySettings settings = mock(IJettySettings.class);
+		when(settings.computeThreads()).thenReturn(1);
+		when(settings.computeQueue()).thenReturn(4);
+		ComputeService compute = new ComputeService(settings);
+		
+		CompletableFuture<String> running = new CompletableFuture<>();
+		CountDownLatch joined = new CountDownLatch(1);
+		Thread follower = new Thread(() -> {
+			try {
+				assertEquals("done", compute.join(() -> running.thenApply(result -> result)));
+				joined.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		follower.start();
+		// the only compute thread is free for the task completing the follower
+		assertEquals("leader", compute.call(() -> {
+			running.complete("done");
+			return "leader";
+		}));
+		assertEquals(true, joined.await(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,210 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.smiles2concepts.config.IClassifyerSettings;
+import com.molgenie.smiles2concepts.models.SmilesRequest;
+import com.molgenie.smiles2concepts.models.common.ClassificationResult;
+import com.molgenie.smiles2concepts.models.common.JobStatus;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JobServiceTest {
+	@TempDir
+	Path tmp;
+	private Path jobs;
+	private Path input;
+	private IClassifyerSettings settings;
+	private OntologyService ontology;
+	private final AtomicInteger calls = new AtomicInteger();
+	private volatile CountDownLatch blocked = new CountDownLatch(0);
+	private volatile int blockAt = Integer.MAX_VALUE;
+	
+	@BeforeEach
+	void setUp() throws IOException {
+		jobs = tmp.resolve("jobs");
+		input = Files.createDirectories(tmp.resolve("input"));
+		settings = mock(IClassifyerSettings.class);
+		when(settings.jobDirectory()).thenReturn(jobs.toString());
+		when(settings.jobInputDirectory()).thenReturn(input.toString());
+		when(settings.jobThreads()).thenReturn(2);
+		when(settings.batchMaxSize()).thenReturn(100);
+		ontology = mock(OntologyService.class);
+		when(ontology.current(any())).thenReturn(new OntologyData());
+	}
+	
+	@Test
+	void filesOutsideTheInputDirectoryAreRejected() throws IOException {
+		Path secret = Files.writeString(tmp.resolve("secret.smi"), "CCO\n");
+		JobService service = new JobService(settings, BatchServiceTest.batch(settings, service(), 2, 64), ontology);
+		assertThrows(IllegalArgumentException.class, () -> service.submit("../secret.smi", null, null));
+		assertThrows(IllegalArgumentException.class, () -> service.submit(secret.toString(), null, null));
+		assertThrows(IllegalArgumentException.class, () -> service.submit("missing.smi", null, null));
+		Files.createSymbolicLink(input.resolve("link.smi"), secret);
+		assertThrows(IllegalArgumentException.class, () -> service.submit("link.smi", null, null));
+		service.close();
+	}
+	
+	@Test
+	void noInputDirectoryTakesUploadsOnly() throws IOException {
+		when(settings.jobInputDirectory()).thenReturn(null);
+		Files.writeString(input.resolve("in.smi"), "CCO\n");
+		JobService service = new JobService(settings, BatchServiceTest.batch(settings, service(), 2, 64), ontology);
+		assertThrows(IllegalArgumentException.class, () -> service.submit("in.smi", null, null));
+		service.close();
+	}
+	
+	@Test
+	void rejectedSubmissionsLeaveNoJobDirectory() throws IOException {
+		when(ontology.current("v9")).thenReturn(null);
+		Files.writeString(input.resolve("in.smi"), "CCO\n");
+		JobService service = new JobService(settings, BatchServiceTest.batch(settings, service(), 2, 64), ontology);
+		service.resume();
+		// checked before the upload is read
+		ByteArrayInputStream upload = new ByteArrayInputStream("CCO\n".getBytes(StandardCharsets.UTF_8));
+		assertThrows(IllegalArgumentException.class, () -> service.submit(upload, "xml", null));
+		assertThrows(IllegalArgumentException.class, () -> service.submit(upload, JobService.SMILES, "v9"));
+		assertEquals(4, upload.available());
+		assertThrows(IllegalArgumentException.class, () -> service.submit("in.smi", "xml", null));
+		assertThrows(IllegalArgumentException.class, () -> service.submit("in.smi", null, "v9"));
+		// an upload failing while it is copied
+		InputStream broken = new SequenceInputStream(new ByteArrayInputStream(smiles(100)), new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("connection reset");
+			}
+		});
+		assertThrows(IOException.class, () -> service.submit(broken, JobService.SMILES, null));
+		try (var dirs = Files.list(jobs)) {
+			assertEquals(0, dirs.count());
+		}
+		assertTrue(service.status().isEmpty());
+		service.close();
+	}
+	
+	@Test
+	void gzipIsReadByItsContent() throws Exception {
+		Files.write(input.resolve("in.smi.gz"), gzip(smiles(500)));
+		JobService service = new JobService(settings, BatchServiceTest.batch(settings, service(), 2, 64), ontology);
+		service.resume();
+		JobStatus file = service.submit("in.smi.gz", null, null);
+		JobStatus upload = service.submit(new ByteArrayInputStream(gzip(smiles(500))), JobService.SMILES, null);
+		assertEquals(500, results(service, done(service, file.id())).size());
+		assertEquals(500, results(service, done(service, upload.id())).size());
+		service.close();
+	}
+	
+	@Test
+	void resumesAfterTheLastCheckpoint() throws Exception {
+		int records = 30000;
+		Files.write(input.resolve("in.smi"), smiles(records));
+		blocked = new CountDownLatch(1);
+		blockAt = 15000;
+		JobService first = new JobService(settings, BatchServiceTest.batch(settings, service(), 2, 64), ontology);
+		first.resume();
+		String id = first.submit("in.smi", null, null).id();
+		while (calls.get() < blockAt) Thread.sleep(10);
+		Thread closing = new Thread(first::close);
+		closing.start();
+		Thread.sleep(100);
+		blocked.countDown();
+		closing.join();
+		JobStatus stopped = first.status(id);
+		assertEquals(JobService.RUNNING, stopped.state());
+		assertTrue(stopped.processed() >= 10000 && stopped.processed() < records, "checkpoint at " + stopped.processed());
+		
+		JobService second = new JobService(settings, BatchServiceTest.batch(settings, service(), 2, 64), ontology);
+		second.resume();
+		JobStatus status = done(second, id);
+		assertEquals(records, status.processed());
+		List<String> lines = results(second, status);
+		assertEquals(records, lines.size());
+		for (int i = 0; i < records; i++) {
+			assertTrue(lines.get(i).startsWith("{\"id\":\"id" + i + "\""), lines.get(i));
+		}
+		second.close();
+	}
+	
+	private IService service() {
+		IService service = mock(IService.class);
+		when(service.performClassification(any(SmilesRequest.class), any(OntologyData.class), eq(false))).thenAnswer(invocation -> {
+			if (calls.incrementAndGet() >= blockAt) blocked.await();
+			SmilesRequest request = invocation.getArgument(0);
+			return new ClassificationResult(request.getSmiles(), "test", "v1", null);
+		});
+		return service;
+	}
+	
+	private static JobStatus done(JobService service, String id) throws InterruptedException {
+		JobStatus status;
+		while (!JobService.DONE.equals((status = service.status(id)).state())) {
+			assertTrue(!JobService.FAILED.equals(status.state()), status.error());
+			Thread.sleep(20);
+		}
+		return status;
+	}
+	
+	private static List<String> results(JobService service, JobStatus status) throws IOException {
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(service.results(status.id()), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) lines.add(line);
+		}
+		return lines;
+	}
+	
+	private static byte[] smiles(int records) {
+		StringBuilder sB = new StringBuilder();
+		for (int i = 0; i < records; i++) sB.append("CCO id").append(i).append('\n');
+		return sB.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+			gz.write(bytes);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,83 @@
+/*
+* Copyright MolGenie GmbH, 
+* 
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+* 
+*/
+package com.molgenie.smiles2concepts.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.molgenie.assignment.OntologyLoader.OntologyData;
+import com.molgenie.smiles2concepts.models.SmilesResponse;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+class ResultCacheTest {
+	
+	@Test
+	void editedReleaseWithTheSameVersionGetsNewKeys() {
+		OntologyData release = ontology("2025-07-18", 1);
+		OntologyData edited = ontology("2025-07-18", 2);
+		assertEquals(ResultCache.key(release, false, "idcode"), ResultCache.key(ontology("2025-07-18", 1), false, "idcode"));
+		assertNotEquals(ResultCache.key(release, false, "idcode"), ResultCache.key(edited, false, "idcode"));
+		assertNotEquals(ResultCache.key(release, false, "idcode"), ResultCache.key(release, true, "idcode"));
+		
+		ResultCache cache = new ResultCache(10, 0);
+		SmilesResponse response = new SmilesResponse(new ArrayList<>());
+		cache.put(ResultCache.key(release, false, "idcode"), response);
+		assertSame(response, cache.get(ResultCache.key(release, false, "idcode")));
+		assertNull(cache.get(ResultCache.key(edited, false, "idcode")));
+	}
+	
+	@Test
+	void replacedReleaseIsEvicted() {
+		OntologyData release = ontology("2025-07-18", 1);
+		OntologyData edited = ontology("2025-07-18", 2);
+		ResultCache cache = new ResultCache(10, 0);
+		SmilesResponse response = new SmilesResponse(new ArrayList<>());
+		cache.put(ResultCache.key(release, false, "idcode"), response);
+		cache.put(ResultCache.key(release, true, "idcode"), response);
+		cache.put(ResultCache.key(edited, false, "idcode"), response);
+		
+		// reloading the same release keeps its results
+		cache.invalidate(release, ontology("2025-07-18", 1));
+		assertEquals(3, cache.statistics().size());
+		
+		cache.invalidate(release, edited);
+		assertEquals(1, cache.statistics().size());
+		assertSame(response, cache.get(ResultCache.key(edited, false, "idcode")));
+	}
+	
+	@Test
+	void statisticsCountCoalescedRequests() {
+		ResultCache cache = new ResultCache(10, 0);
+		cache.countCoalesced();
+		cache.countCoalesced();
+		assertEquals(2, cache.statistics().coalesced());
+	}
+	
+	private static OntologyData ontology(String version, int checksum) {
+		OntologyData oData = new OntologyData();
+		oData.setVersion(version);
+		byte[] bytes = new byte[32];
+		bytes[0] = (byte) checksum;
+		oData.setChecksum(bytes);
+		return oData;
+	}
+}